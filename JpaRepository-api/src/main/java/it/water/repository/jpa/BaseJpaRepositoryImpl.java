@@ -23,7 +23,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import javax.sql.DataSource;
 
@@ -47,13 +54,35 @@ import it.water.repository.entity.model.PaginatedResult;
 import it.water.repository.entity.model.exceptions.EntityNotFound;
 import it.water.repository.entity.model.exceptions.NoResultException;
 import it.water.repository.jpa.api.JpaRepository;
+import it.water.repository.jpa.batch.BatchResult;
+import it.water.repository.jpa.batch.SavepointBatchWriter;
+import it.water.repository.jpa.concurrent.BoundedQueryExecutors;
+import it.water.repository.jpa.constraints.DuplicateBloomFilter;
+import it.water.repository.jpa.constraints.DuplicateBloomFilterAware;
 import it.water.repository.jpa.constraints.DuplicateConstraintValidator;
+import it.water.repository.jpa.constraints.NaturalKeyLookup;
 import it.water.repository.jpa.constraints.RepositoryConstraintValidatorsManager;
+import it.water.repository.jpa.constraints.UniqueConstraintChanges;
+import it.water.repository.jpa.constraints.UniqueConstraintViolationTranslator;
+import it.water.repository.jpa.constraints.UniquenessMode;
+import it.water.repository.jpa.datasource.DataSourceClosingObserver;
+import it.water.repository.jpa.datasource.PooledDataSourceFactory;
+import it.water.repository.jpa.extension.EntityExtensionUpsert;
+import it.water.repository.jpa.query.FetchPlan;
+import it.water.repository.jpa.query.ParsedQueryCache;
 import it.water.repository.jpa.query.PredicateBuilder;
+import it.water.repository.jpa.routing.ReadReplicaRouting;
+import it.water.repository.jpa.schema.SchemaFingerprintCache;
+import it.water.repository.jpa.schema.SchemaMode;
+import it.water.repository.jpa.tenant.SchemaPerTenantConnectionProvider;
+import it.water.repository.jpa.tenant.TenantContext;
+import it.water.repository.jpa.tenant.TenantRouting;
 import it.water.repository.query.DefaultQueryBuilder;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.FlushModeType;
 import jakarta.persistence.PersistenceException;
+import jakarta.persistence.UniqueConstraint;
 import jakarta.persistence.criteria.CriteriaBuilder;
 import jakarta.persistence.criteria.CriteriaQuery;
 import jakarta.persistence.criteria.Order;
@@ -77,8 +106,10 @@ import lombok.Setter;
  *            entities that interact with the platform.
  * @Author Aristide Cittadino
  */
-public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements JpaRepository<T> {
+public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements JpaRepository<T>, DuplicateBloomFilterAware {
     public static final String WATER_DEFAULT_PERSISTENCE_UNIT_NAME = "water-default-persistence-unit";
+    private static final String HIBERNATE_DEFAULT_SCHEMA = "hibernate.default_schema";
+    private static final String HIBERNATE_CREATE_NAMESPACES = "hibernate.hbm2ddl.create_namespaces";
 
     @Inject
     @Setter
@@ -107,7 +138,17 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
      * this map saves each entity manager based on the persistence unit name in order to not create more entity manager
      * than the actually defined persistence unit name
      */
-    private static Map<String, EntityManager> globalEntityManagers = new HashMap<>();
+    private static final Map<String, EntityManager> globalEntityManagers = new HashMap<>();
+
+    /**
+     * Global read replica routings, shared by repositories of the same persistence unit like global entity managers
+     */
+    private static final Map<String, ReadReplicaRouting> globalReadReplicaRoutings = new HashMap<>();
+
+    /**
+     * Pooled DataSources created by the default bootstrap, by pool name
+     */
+    private static final Map<String, DataSource> globalDataSources = new HashMap<>();
 
     /**
      * Persistence Unit related to the entity manager that must be created for this repository.
@@ -116,6 +157,113 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
 
     protected RepositoryConstraintValidatorsManager dbConstraintsValidatorManager;
 
+    /**
+     * Incremented each time components are registered or unregistered, invalidating all cached extension repositories
+     */
+    private static final AtomicLong extensionRegistryGeneration = new AtomicLong();
+    /**
+     * True only while a runtime notifies component registrations through invalidateExtensionRepositories,
+     * otherwise a missing extension repository is resolved again, since it can be registered later
+     */
+    private static volatile boolean extensionMissesCacheable;
+
+    /**
+     * Cached extension repository resolution of the entity type, including negative results
+     */
+    private volatile ExtensionRepositoryResolution extensionRepositoryResolution;
+
+    public static final String PARALLEL_COUNT_THREADS_PROPERTY = "water.repository.jpa.parallel.count.threads";
+
+    /**
+     * Shared pool used to run count queries in parallel with page queries, see BoundedQueryExecutors.
+     * It is created on first use, the number of threads can be configured with
+     * water.repository.jpa.parallel.count.threads system property (default 4).
+     */
+    private static class ParallelCountExecutorHolder {
+        private static final ExecutorService INSTANCE = BoundedQueryExecutors.create("water-jpa-parallel-count", PARALLEL_COUNT_THREADS_PROPERTY);
+    }
+
+    /**
+     * When true, paginated findAll executes the count query on a separate entity manager
+     * in parallel with the page query, so latency is bounded by the slowest of the two.
+     * Parallel count is used only outside active transactions, since a different entity manager cannot see uncommitted data.
+     */
+    @Setter
+    @Getter
+    private boolean parallelCountEnabled;
+
+    /**
+     * Executor used for parallel count queries, can be replaced with a managed one
+     */
+    @Setter
+    private Executor parallelCountExecutor;
+
+    /**
+     * When true, extensions managed by the same entity manager are updated with a bulk statement keyed on relatedEntityId
+     * and inserted only if missing, instead of being loaded first (see EntityExtensionUpsert).
+     * Disabled by default: bulk updates bypass entity listeners, second level cache and dirty checking,
+     * and two concurrent first writes of the same extension may both insert it.
+     */
+    @Setter
+    @Getter
+    private boolean extensionUpsertEnabled;
+
+    /**
+     * When true, find by id loads expandable entities together with their extension in a single query,
+     * left joining the extension on relatedEntityId.
+     */
+    @Setter
+    @Getter
+    private boolean extensionJoinFetchEnabled;
+
+    /**
+     * Rows written under the same savepoint by persistAll
+     */
+    @Setter
+    @Getter
+    private int batchChunkSize = 50;
+
+    /**
+     * How unique constraints are enforced, see UniquenessMode.
+     * When not set, it is read from persistence unit or system properties.
+     */
+    @Setter
+    private volatile UniquenessMode uniquenessMode;
+
+    /**
+     * Bloom filter of unique keys used to skip duplicate check queries, see DuplicateBloomFilter
+     */
+    private volatile DuplicateBloomFilter duplicateBloomFilter;
+    private volatile boolean duplicateBloomFilterResolved;
+
+    /**
+     * Natural key resolution based on unique constraints, see NaturalKeyLookup
+     */
+    private volatile NaturalKeyLookup<T> naturalKeyLookup;
+
+    /**
+     * Parsed filters of find(String), see ParsedQueryCache
+     */
+    private volatile ParsedQueryCache parsedQueryCache;
+
+    /**
+     * When set, reads outside transactions are served by the read replica, writes always go to the primary entity manager
+     */
+    @Setter
+    @Getter
+    private ReadReplicaRouting readReplicaRouting;
+
+    /**
+     * When set, OwnedResource entities are read and written in the schema of their owner tenant.
+     * Writes are routed by owner, operations without owner (reads, removes by id, units of work) require the tenant
+     * set with TenantContext. Tenant operations use a tenant entity manager opened for the outermost call:
+     * writes run in a resource local transaction of the tenant session, begun and committed by TenantRouting whatever
+     * the runtime transaction support is, reads run without transaction.
+     */
+    @Setter
+    @Getter
+    private TenantRouting tenantRouting;
+
     @Override
     public Class<T> getEntityType() {
         return type;
@@ -129,6 +277,7 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
     protected BaseJpaRepositoryImpl(Class<T> type) {
         setupJpaRepository(WATER_DEFAULT_PERSISTENCE_UNIT_NAME, type);
         this.initJpaRepository(initDefaultEntityManager(), new DuplicateConstraintValidator());
+        this.readReplicaRouting = initDefaultReadReplicaRouting();
     }
 
     /**
@@ -139,6 +288,7 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
     protected BaseJpaRepositoryImpl(Class<T> type, String persistenceUnitName) {
         setupJpaRepository(persistenceUnitName, type);
         this.initJpaRepository(initDefaultEntityManager(), new DuplicateConstraintValidator());
+        this.readReplicaRouting = initDefaultReadReplicaRouting();
     }
 
     /**
@@ -176,46 +326,433 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         this.persistenceUnitName = persistenceUnitName;
     }
 
-    private synchronized EntityManager initDefaultEntityManager() {
-        if (!globalEntityManagers.containsKey(this.persistenceUnitName)) {
-            try {
-                EntityManagerFactory entityManagerFactory = createDefaultEntityManagerFactory();
-                globalEntityManagers.put(this.persistenceUnitName, entityManagerFactory.createEntityManager());
-            } catch (Exception e) {
-                globalEntityManagers.remove(this.persistenceUnitName);
-                getLog().warn(e.getMessage(), e);
-                return null;
+    /**
+     * Returns the entity manager shared by all repositories of the same persistence unit.
+     * Can be overridden in order to change how shared entity managers are retrieved.
+     *
+     * @return
+     */
+    protected EntityManager initDefaultEntityManager() {
+        //global entity managers are shared between all repositories, so locking must be done on the shared map
+        synchronized (globalEntityManagers) {
+            if (!globalEntityManagers.containsKey(this.persistenceUnitName)) {
+                try {
+                    EntityManagerFactory entityManagerFactory = createDefaultEntityManagerFactory();
+                    globalEntityManagers.put(this.persistenceUnitName, entityManagerFactory.createEntityManager());
+                } catch (Exception e) {
+                    globalEntityManagers.remove(this.persistenceUnitName);
+                    getLog().warn(e.getMessage(), e);
+                    return null;
+                }
             }
+            return globalEntityManagers.get(this.persistenceUnitName);
         }
-        return globalEntityManagers.get(this.persistenceUnitName);
     }
 
     protected EntityManagerFactory createDefaultEntityManagerFactory() {
         //default persistence unit info is focused on tests,so resource local and use hibernate, override this method to change the logic
+        return setupDefaultEntityManagerFactory(persistenceUnitName, "org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:testdb", "sa", "", new Properties());
+    }
+
+    /**
+     * Creates a resource local entity manager factory on a pooled DataSource (see PooledDataSourceFactory).
+     * The pool is closed when the returned entity manager factory is closed.
+     * When pooling is disabled or not available, jdbc properties are passed to the persistence provider.
+     *
+     * @param poolName      pool name, also used to retrieve pool metrics
+     * @param driver        jdbc driver
+     * @param url           jdbc url
+     * @param user          database user
+     * @param password      database password
+     * @param jpaProperties other persistence unit properties, including pool configuration
+     * @return the entity manager factory
+     */
+    protected EntityManagerFactory setupDefaultEntityManagerFactory(String poolName, String driver, String url, String user, String password, Properties jpaProperties) {
+        if (PooledDataSourceFactory.isAvailable(jpaProperties)) {
+            DataSource dataSource = PooledDataSourceFactory.create(poolName, driver, url, user, password, jpaProperties);
+            try {
+                //the pool is owned by the entity manager factory: factories previously created with the same pool name keep their own pool until closed
+                jpaProperties.put(DataSourceClosingObserver.HIBERNATE_SESSION_FACTORY_OBSERVER, new DataSourceClosingObserver(() -> releaseDataSource(poolName, dataSource)));
+                EntityManagerFactory entityManagerFactory = buildEntityManagerFactory(dataSource, jpaProperties);
+                synchronized (globalDataSources) {
+                    globalDataSources.put(poolName, dataSource);
+                }
+                return entityManagerFactory;
+            } catch (RuntimeException e) {
+                closeDataSource(dataSource);
+                throw e;
+            }
+        }
+        //driver is detected from the url and credentials are omitted when not set
+        if (driver != null)
+            jpaProperties.put("javax.persistence.jdbc.driver", driver);
+        jpaProperties.put("javax.persistence.jdbc.url", url);
+        if (user != null)
+            jpaProperties.put("javax.persistence.jdbc.user", user);
+        if (password != null)
+            jpaProperties.put("javax.persistence.jdbc.password", password);
+        return buildEntityManagerFactory(null, jpaProperties);
+    }
+
+    /**
+     * Builds the entity manager factories created by setupDefaultEntityManagerFactory, for the persistence unit and its read replica.
+     * Runtimes with their own bootstrap override this method, so replicas are built the same way of the persistence unit.
+     *
+     * @param dataSource    pooled DataSource, null when connections are defined by jdbc properties
+     * @param jpaProperties persistence unit properties
+     * @return the entity manager factory
+     */
+    protected EntityManagerFactory buildEntityManagerFactory(DataSource dataSource, Properties jpaProperties) {
+        return setupEntityManagerFactory(persistenceUnitName, PersistenceUnitTransactionType.RESOURCE_LOCAL, null, dataSource, jpaProperties);
+    }
+
+    /**
+     * @return usage of the pool created by the default bootstrap for this persistence unit,
+     * null if the entity manager has not been created by the default bootstrap or pooling is not active
+     */
+    public PooledDataSourceFactory.PoolMetrics getDefaultPoolMetrics() {
+        synchronized (globalDataSources) {
+            return PooledDataSourceFactory.getPoolMetrics(globalDataSources.get(persistenceUnitName));
+        }
+    }
+
+    /**
+     * Closes the pool of a closed entity manager factory, metrics are removed only if the pool name has not been reused
+     *
+     * @param poolName   pool name
+     * @param dataSource pool to close
+     */
+    private void releaseDataSource(String poolName, DataSource dataSource) {
+        synchronized (globalDataSources) {
+            globalDataSources.remove(poolName, dataSource);
+        }
+        closeDataSource(dataSource);
+    }
+
+    private void closeDataSource(DataSource dataSource) {
+        if (dataSource instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                getLog().warn("Error while closing pooled datasource: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the read replica routing shared by all repositories of the same persistence unit,
+     * null if no replica has been configured.
+     *
+     * @return
+     */
+    protected ReadReplicaRouting initDefaultReadReplicaRouting() {
+        synchronized (globalReadReplicaRoutings) {
+            if (!globalReadReplicaRoutings.containsKey(this.persistenceUnitName)) {
+                try {
+                    globalReadReplicaRoutings.put(this.persistenceUnitName, createDefaultReadReplicaRouting());
+                } catch (Exception e) {
+                    getLog().warn("Impossible to create read replica, reads will use primary: {}", e.getMessage(), e);
+                    return null;
+                }
+            }
+            return globalReadReplicaRoutings.get(this.persistenceUnitName);
+        }
+    }
+
+    /**
+     * Creates the read replica routing from system properties, replica schema is not managed by default
+     * since it is replicated from the primary. The replica entity manager factory is built by buildEntityManagerFactory,
+     * the same hook of the persistence unit, the jdbc driver is detected from the url when not configured.
+     * Override this method to change the logic.
+     *
+     * @return the routing, null if no replica url is configured
+     */
+    protected ReadReplicaRouting createDefaultReadReplicaRouting() {
+        String replicaUrl = System.getProperty(ReadReplicaRouting.REPLICA_JDBC_URL_PROPERTY);
+        if (replicaUrl == null || replicaUrl.isBlank())
+            return null;
+        Properties jpaProperties = new Properties();
+        jpaProperties.put(SchemaMode.SCHEMA_MODE_PROPERTY, System.getProperty(ReadReplicaRouting.REPLICA_SCHEMA_MODE_PROPERTY, SchemaMode.NONE.getHbm2ddlValue()));
+        long stalenessMillis = Long.parseLong(System.getProperty(ReadReplicaRouting.REPLICA_STALENESS_MILLIS_PROPERTY, String.valueOf(ReadReplicaRouting.DEFAULT_STALENESS_MILLIS)));
+        EntityManagerFactory replicaEntityManagerFactory = setupDefaultEntityManagerFactory(persistenceUnitName + "-replica", System.getProperty(ReadReplicaRouting.REPLICA_JDBC_DRIVER_PROPERTY), replicaUrl,
+                System.getProperty(ReadReplicaRouting.REPLICA_JDBC_USER_PROPERTY), System.getProperty(ReadReplicaRouting.REPLICA_JDBC_PASSWORD_PROPERTY), jpaProperties);
+        return new ReadReplicaRouting(replicaEntityManagerFactory, stalenessMillis);
+    }
+
+    /**
+     * Executes a read only operation.
+     * It is executed on the read replica when configured, no transaction is active and data is not considered stale,
+     * otherwise it is executed on the primary with SUPPORTS transaction type.
+     *
+     * @param function read logic
+     * @return read result
+     */
+    protected <R> R read(Function<EntityManager, R> function) {
+        String tenant = currentTenant();
+        if (tenant != null)
+            return tenantRouting.execute(tenant, function);
+        ReadReplicaRouting routing = this.readReplicaRouting;
+        if (routing != null && routing.isReplicaReadable(this.type)) {
+            EntityManager primaryEntityManager = getEntityManager();
+            //inside a transaction reads must see uncommitted data of the primary
+            if (primaryEntityManager == null || !isInsideActiveTransaction(primaryEntityManager))
+                return routing.read(function, () -> tx(Transactional.TxType.SUPPORTS, function));
+        }
+        return tx(Transactional.TxType.SUPPORTS, function);
+    }
+
+    /**
+     * Creates a tenant routing based on Hibernate multi tenancy with one schema per tenant.
+     * Connections are borrowed from the given pooled DataSource and switched to the tenant schema.
+     *
+     * @param pooledDataSource
+     * @return
+     */
+    public TenantRouting createTenantRouting(DataSource pooledDataSource) {
+        SchemaPerTenantConnectionProvider connectionProvider = new SchemaPerTenantConnectionProvider(pooledDataSource, null);
+        Properties jpaProperties = new Properties();
+        jpaProperties.put(TenantRouting.MULTI_TENANT_CONNECTION_PROVIDER, connectionProvider);
+        jpaProperties.put(TenantRouting.TENANT_IDENTIFIER_RESOLVER, connectionProvider);
+        //tenant schemas are managed by provisioning
+        jpaProperties.put(SchemaMode.SCHEMA_MODE_PROPERTY, SchemaMode.NONE.getHbm2ddlValue());
+        EntityManagerFactory tenantEntityManagerFactory = setupEntityManagerFactory(persistenceUnitName, PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, jpaProperties);
+        return new TenantRouting(tenantEntityManagerFactory, tenant -> provisionTenantSchema(pooledDataSource, tenant));
+    }
+
+    /**
+     * Creates or updates the schema of a tenant, building a short lived entity manager factory on that schema
+     *
+     * @param dataSource
+     * @param tenant
+     */
+    protected void provisionTenantSchema(DataSource dataSource, String tenant) {
         Properties jpaProperties = new Properties();
-        jpaProperties.put("javax.persistence.jdbc.driver", "org.hsqldb.jdbcDriver");
-        jpaProperties.put("javax.persistence.jdbc.url", "jdbc:hsqldb:mem:testdb");
-        jpaProperties.put("javax.persistence.jdbc.user", "sa");
-        jpaProperties.put("javax.persistence.jdbc.password", "");
-        return setupEntityManagerFactory(persistenceUnitName, PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, jpaProperties);
+        jpaProperties.put(HIBERNATE_DEFAULT_SCHEMA, tenant);
+        jpaProperties.put(HIBERNATE_CREATE_NAMESPACES, "true");
+        jpaProperties.put(SchemaMode.SCHEMA_MODE_PROPERTY, SchemaMode.UPDATE.getHbm2ddlValue());
+        jpaProperties.put(SchemaFingerprintCache.FINGERPRINT_CACHE_ENABLED_PROPERTY, "false");
+        setupEntityManagerFactory(persistenceUnitName, PersistenceUnitTransactionType.RESOURCE_LOCAL, null, dataSource, jpaProperties).close();
+    }
+
+    private boolean isTenantRouted() {
+        return tenantRouting != null && OwnedResource.class.isAssignableFrom(this.type);
+    }
+
+    /**
+     * Operations without owner never fall back to the default schema, where owned rows do not exist
+     *
+     * @return the tenant set in the current thread, null if tenant routing does not apply to this entity type
+     */
+    private String currentTenant() {
+        if (!isTenantRouted())
+            return null;
+        String tenant = TenantContext.getCurrentTenant();
+        if (tenant == null)
+            throw new WaterRuntimeException("Tenant routing is enabled for " + this.type.getName() + ", a tenant must be set with TenantContext");
+        return tenant;
+    }
+
+    /**
+     * @param entity
+     * @return the tenant of the entity owner, or the current thread one, null if tenant routing does not apply
+     */
+    private String tenantOf(T entity) {
+        if (tenantRouting != null && entity instanceof OwnedResource owned && owned.getOwnerUserId() != null)
+            return tenantRouting.tenantOf(owned.getOwnerUserId());
+        return currentTenant();
+    }
+
+    /**
+     * Records the write for read replica routing, when the transaction of the given entity manager is committed
+     *
+     * @param em entity manager executing the write
+     */
+    private void onWrite(EntityManager em) {
+        ReadReplicaRouting routing = this.readReplicaRouting;
+        if (routing != null)
+            routing.onWrite(this.type, em);
     }
 
     protected EntityManagerFactory setupEntityManagerFactory(String persistenceUnitProviderClassName, PersistenceUnitTransactionType transactionType, DataSource jtaDs, DataSource noJtaDs, Properties properties) {
         EntityManagerFactory emf = null;
         PersistenceProviderResolver resolver = PersistenceProviderResolverHolder.getPersistenceProviderResolver();
         WaterPersistenceUnitInfo waterPersistenceUnitInfo = new WaterPersistenceUnitInfo(persistenceUnitName, type, persistenceUnitProviderClassName, transactionType, jtaDs, noJtaDs, properties);
-        for (PersistenceProvider provider : resolver.getPersistenceProviders()) {
-            emf = provider.createContainerEntityManagerFactory(waterPersistenceUnitInfo, properties);
-            if (emf != null) {
-                break;
+        try {
+            for (PersistenceProvider provider : resolver.getPersistenceProviders()) {
+                emf = provider.createContainerEntityManagerFactory(waterPersistenceUnitInfo, properties);
+                if (emf != null) {
+                    break;
+                }
             }
+        } catch (RuntimeException e) {
+            waterPersistenceUnitInfo.onEntityManagerFactoryFailed();
+            throw e;
         }
         if (emf == null) {
             throw new PersistenceException("No Persistence provider for EntityManager named " + persistenceUnitName);
         }
+        waterPersistenceUnitInfo.onEntityManagerFactoryCreated();
         return emf;
     }
 
+    /**
+     * Returns the uniqueness mode, resolved from the persistence unit or system properties when not set.
+     *
+     * @return
+     */
+    public UniquenessMode getUniquenessMode() {
+        UniquenessMode mode = this.uniquenessMode;
+        if (mode == null) {
+            EntityManager em = getEntityManager();
+            mode = UniquenessMode.fromProperties(em != null ? em.getEntityManagerFactory().getProperties() : null);
+            this.uniquenessMode = mode;
+        }
+        return mode;
+    }
+
+    /**
+     * Returns the bloom filter of unique keys, enabled by persistence unit or system properties or by enableDuplicateBloomFilter.
+     * When enabled by properties it is warmed up in background, until then duplicate checks query the database.
+     * The filter is never used for entities routed by tenant, since their rows are split between tenant schemas.
+     *
+     * @return the filter, null if not enabled
+     */
+    @Override
+    public DuplicateBloomFilter getDuplicateBloomFilter() {
+        if (isTenantRouted())
+            return null;
+        if (!duplicateBloomFilterResolved) {
+            synchronized (this) {
+                if (!duplicateBloomFilterResolved) {
+                    EntityManager em = getEntityManager();
+                    Map<String, Object> properties = em != null ? em.getEntityManagerFactory().getProperties() : null;
+                    if (em != null && DuplicateBloomFilter.isEnabledFor(this.type, properties)) {
+                        this.duplicateBloomFilter = new DuplicateBloomFilter(this.type, DuplicateBloomFilter.getMemoryBudget(properties));
+                        //warm up runs on the background query pool with its own entity manager
+                        CompletableFuture.runAsync(this::rebuildDuplicateBloomFilter, getParallelCountExecutor())
+                                .exceptionally(e -> {
+                                    log.warn("Bloom filter warm up failed for {}: {}", this.type.getName(), e.getMessage());
+                                    return null;
+                                });
+                    }
+                    this.duplicateBloomFilterResolved = true;
+                }
+            }
+        }
+        return duplicateBloomFilter;
+    }
+
+    /**
+     * Enables the bloom filter of unique keys, warming it up before returning
+     *
+     * @param memoryBudgetBytes memory used by the filters of all the unique constraints
+     * @return the filter
+     */
+    public DuplicateBloomFilter enableDuplicateBloomFilter(long memoryBudgetBytes) {
+        if (isTenantRouted())
+            throw new IllegalStateException("Bloom filter cannot be enabled for " + this.type.getName() + " since it is routed by tenant");
+        DuplicateBloomFilter filter = new DuplicateBloomFilter(this.type, memoryBudgetBytes);
+        runOnNewEntityManager(filter::rebuild);
+        synchronized (this) {
+            this.duplicateBloomFilter = filter;
+            this.duplicateBloomFilterResolved = true;
+        }
+        return filter;
+    }
+
+    /**
+     * Rebuilds the bloom filter of unique keys scanning the database,
+     * for example after bulk writes executed outside this repository.
+     */
+    public void rebuildDuplicateBloomFilter() {
+        DuplicateBloomFilter filter = getDuplicateBloomFilter();
+        if (filter == null)
+            throw new IllegalStateException("Bloom filter is not enabled for " + this.type.getName());
+        runOnNewEntityManager(filter::rebuild);
+    }
+
+    private void runOnNewEntityManager(Consumer<EntityManager> task) {
+        EntityManager em = getEntityManager().getEntityManagerFactory().createEntityManager();
+        try {
+            task.accept(em);
+        } finally {
+            em.close();
+        }
+    }
+
+    private void recordUniqueKeys(T entity) {
+        DuplicateBloomFilter filter = getDuplicateBloomFilter();
+        if (filter != null)
+            filter.put(entity);
+    }
+
+    /**
+     * Runs constraint validators, skipping duplicate checks when uniqueness is enforced by the database
+     *
+     * @param entity
+     */
+    private void runConstraintChecks(T entity) {
+        if (getUniquenessMode() == UniquenessMode.DATABASE)
+            this.dbConstraintsValidatorManager.runCheck(entity, this.type, this, checker -> !(checker instanceof DuplicateConstraintValidator));
+        else
+            this.dbConstraintsValidatorManager.runCheck(entity, this.type, this);
+    }
+
+    /**
+     * Runs the validators of this repository, as done before persisting the entity
+     *
+     * @param entity entity to validate
+     */
+    @Override
+    public void validateConstraints(T entity) {
+        runConstraintChecks(entity);
+    }
+
+    /**
+     * Runs constraint validators on update, duplicate checks are executed only for unique constraints whose columns changed
+     *
+     * @param entity       updated entity
+     * @param entityFromDb entity loaded by the entity manager, the same instance when entity is managed
+     * @param em
+     */
+    private void runUpdateConstraintChecks(T entity, T entityFromDb, EntityManager em) {
+        this.dbConstraintsValidatorManager.runCheck(entity, this.type, this, checker -> !(checker instanceof DuplicateConstraintValidator));
+        if (getUniquenessMode() == UniquenessMode.DATABASE)
+            return;
+        List<DuplicateConstraintValidator> duplicateValidators = this.dbConstraintsValidatorManager.getCheckers(DuplicateConstraintValidator.class);
+        if (duplicateValidators.isEmpty())
+            return;
+        java.util.function.Predicate<UniqueConstraint> changedConstraints = UniqueConstraintChanges.changedConstraints(em, entity, entityFromDb);
+        duplicateValidators.forEach(validator -> validator.checkConstraint(entity, this.type, this, changedConstraints));
+    }
+
+    /**
+     * Unique violations must be raised inside repository operations in order to be translated,
+     * units of work defer them to their commit.
+     *
+     * @param em
+     */
+    private void flushIfUniquenessEnforcedByDatabase(EntityManager em) {
+        if (getUniquenessMode() == UniquenessMode.DATABASE && em.getFlushMode() != FlushModeType.COMMIT)
+            em.flush();
+    }
+
+    /**
+     * Entities rejected by the database must not be flushed again by the next transaction
+     *
+     * @param em
+     */
+    private void clearIfUniquenessEnforcedByDatabase(EntityManager em) {
+        if (getUniquenessMode() == UniquenessMode.DATABASE)
+            em.clear();
+    }
+
+    private RuntimeException translateUniqueViolation(RuntimeException e) {
+        if (getUniquenessMode() != UniquenessMode.DATABASE)
+            return e;
+        return UniqueConstraintViolationTranslator.translate(e, this.type);
+    }
+
     /**
      * Identifies if the current context supports transaction or not.
      * For example in test environment where no application server is running transactional annotation won't work
@@ -241,6 +778,54 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
             em.getTransaction().begin();
     }
 
+    /**
+     * Executes the work in one transaction, routed to the tenant schema when tenant routing applies.
+     *
+     * @param work operations, receiving this repository
+     * @return work result
+     */
+    @Override
+    public <R> R inTransaction(Function<JpaRepository<T>, R> work) {
+        String tenant = currentTenant();
+        if (tenant != null)
+            return tenantRouting.executeInTransaction(tenant, em -> doInTransaction(work, em));
+        return tx(Transactional.TxType.REQUIRED, em -> doInTransaction(work, em));
+    }
+
+    /**
+     * Unit of work logic with a specific entity manager.
+     * When transactions are not managed by the container, the outermost unit begins and commits the resource local transaction,
+     * so repository operations executed inside it find an active transaction and do not commit on their own.
+     *
+     * @param work
+     * @param em
+     * @return
+     */
+    protected <R> R doInTransaction(Function<JpaRepository<T>, R> work, EntityManager em) {
+        boolean localTransactionOwner = !isTransactionalSupported(em);
+        FlushModeType flushMode = em.getFlushMode();
+        startTransactionIfNeeded(em);
+        try {
+            //writes are accumulated and flushed in one batch on commit, instead of before each query
+            em.setFlushMode(FlushModeType.COMMIT);
+            R result = work.apply(this);
+            if (localTransactionOwner)
+                em.getTransaction().commit();
+            return result;
+        } catch (RuntimeException e) {
+            if (localTransactionOwner) {
+                //a failed commit has already rolled back the transaction
+                if (em.getTransaction().isActive())
+                    em.getTransaction().rollback();
+                //pending writes were never flushed, they must not be flushed by the next transaction
+                em.clear();
+            }
+            throw translateUniqueViolation(e);
+        } finally {
+            em.setFlushMode(flushMode);
+        }
+    }
+
     /**
      * Identifies if the current context supports transaction or not.
      * For example in test environment where no application server is running transactional annotation won't work
@@ -268,7 +853,13 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
      */
     @Override
     public T persist(T entity, Runnable runnable) {
-        return tx(Transactional.TxType.REQUIRED, em -> doPersist(entity, runnable, em));
+        String tenant = tenantOf(entity);
+        if (tenant != null)
+            return tenantRouting.executeInTransaction(tenant, em -> doPersist(entity, runnable, em));
+        return tx(Transactional.TxType.REQUIRED, em -> {
+            onWrite(em);
+            return doPersist(entity, runnable, em);
+        });
     }
 
     /**
@@ -282,36 +873,180 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         startTransactionIfNeeded(em);
         try {
             log.debug("Repository Saving entity {}: {}", this.type.getSimpleName(), entity);
-            this.dbConstraintsValidatorManager.runCheck(entity, this.type, this);
+            runConstraintChecks(entity);
             log.debug("Transaction found, invoke persist");
             //managing expandable entity in the same transaction
             em.persist(entity);
-            doPersistOnExpandableEntity(entity);
+            recordUniqueKeys(entity);
+            doPersistOnExpandableEntity(entity, em);
             log.debug("Entity persisted: {}", entity);
             if (task != null)
                 task.run();
+            flushIfUniquenessEnforcedByDatabase(em);
             commitTransactionIfNeeded(em);
             return entity;
         } catch (RuntimeException e) {
             //only in context where @transactional is not supported
             if (!isTransactionalSupported(em)) {
                 em.getTransaction().rollback();
+                clearIfUniquenessEnforcedByDatabase(em);
+            }
+            throw translateUniqueViolation(e);
+        }
+    }
+
+    /**
+     * Persists entities in chunks of batchChunkSize rows, see persistAll(List, int)
+     *
+     * @param entities
+     * @return per row result
+     */
+    public BatchResult<T> persistAll(List<T> entities) {
+        return persistAll(entities, batchChunkSize);
+    }
+
+    /**
+     * Persists entities in one unit of work, writing chunks of rows under a savepoint.
+     * A failing chunk is rolled back to its savepoint and bisected in order to isolate the offending rows,
+     * so bad rows are rejected while the others are still written with jdbc batching (see WaterPersistenceUnitInfo).
+     * Rows rejected by constraint validators are not written at all.
+     * Extensions are written by the same entity manager, so they are rolled back together with their chunk:
+     * rows whose extension belongs to another persistence unit are rejected, they must be written with persist.
+     *
+     * @param entities
+     * @param chunkSize rows written under the same savepoint
+     * @return per row result
+     */
+    public BatchResult<T> persistAll(List<T> entities, int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Batch chunk size must be greater than 0");
+        Function<EntityManager, BatchResult<T>> batch = em -> doInTransaction(repository -> doPersistAll(entities, chunkSize, em), em);
+        String tenant = currentTenant();
+        if (tenant != null)
+            return tenantRouting.executeInTransaction(tenant, batch);
+        return tx(Transactional.TxType.REQUIRED, em -> {
+            onWrite(em);
+            return batch.apply(em);
+        });
+    }
+
+    /**
+     * Batch persistence logic with a specific entity manager
+     *
+     * @param entities
+     * @param chunkSize
+     * @param em
+     * @return
+     */
+    protected BatchResult<T> doPersistAll(List<T> entities, int chunkSize, EntityManager em) {
+        log.debug("Repository Saving {} entities {} in batch", entities.size(), this.type.getSimpleName());
+        BatchResult<T> result = new BatchResult<>(entities.size());
+        List<Integer> rows = new ArrayList<>(entities.size());
+        //all rows are validated before writing, so validation queries never meet queued writes
+        for (int i = 0; i < entities.size(); i++) {
+            try {
+                runConstraintChecks(entities.get(i));
+                checkBatchExtension(entities.get(i), em);
+                rows.add(i);
+            } catch (RuntimeException e) {
+                result.rejected(i, entities.get(i), e);
             }
-            throw e;
         }
+        new SavepointBatchWriter<T>(em, entity -> {
+            em.persist(entity);
+            recordUniqueKeys(entity);
+            doPersistOnExpandableEntity(entity, em);
+        }, this::translateUniqueViolation).write(entities, rows, chunkSize, result);
+        return result;
+    }
+
+    /**
+     * Extensions of another persistence unit would be written by their repository outside the chunk savepoint,
+     * so they would not be rolled back with a failing chunk
+     *
+     * @param entity batch row
+     * @param em
+     */
+    private void checkBatchExtension(T entity, EntityManager em) {
+        processExpandableEntity(entity, (entityExtension, extensionRepository) -> {
+            if (!isSamePersistenceUnit(extensionRepository) || !isManagedEntityType(em, entityExtension.getClass()))
+                throw new WaterRuntimeException("Extension " + entityExtension.getClass().getName() + " belongs to another persistence unit, it cannot be written by persistAll");
+        });
     }
 
     /**
+     * When the extension repository belongs to the same persistence unit, the extension is validated by its repository
+     * and persisted with the same entity manager, so it is flushed together with its master entity,
+     * without opening a nested repository transaction.
+     *
      * @param entity
+     * @param em
      */
-    private void doPersistOnExpandableEntity(T entity) {
+    @SuppressWarnings("unchecked")
+    private void doPersistOnExpandableEntity(T entity, EntityManager em) {
         processExpandableEntity(entity, (entityExtension, extensionRepository) -> {
             //forcing extension to have same primary key as its master entity and primary key is createad automatically
             entityExtension.setupExtensionFields(0, entity);
-            extensionRepository.persist(entityExtension);
+            if (isSamePersistenceUnit(extensionRepository) && isManagedEntityType(em, entityExtension.getClass())
+                    && validateOnExtensionRepository((JpaRepository<BaseEntity>) extensionRepository, entityExtension)) {
+                em.persist(entityExtension);
+                if (extensionRepository instanceof DuplicateBloomFilterAware bloomFilterAware && bloomFilterAware.getDuplicateBloomFilter() != null)
+                    bloomFilterAware.getDuplicateBloomFilter().put(entityExtension);
+            } else {
+                extensionRepository.persist(entityExtension);
+            }
         });
     }
 
+    /**
+     * @param extensionRepository
+     * @param entityExtension
+     * @return false when the extension repository cannot validate entities without writing them,
+     * in that case the extension must be persisted by its repository
+     */
+    private boolean validateOnExtensionRepository(JpaRepository<BaseEntity> extensionRepository, BaseEntity entityExtension) {
+        try {
+            extensionRepository.validateConstraints(entityExtension);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            log.debug("Extension repository {} does not support constraint validation, persisting extension through it", extensionRepository.getClass().getName());
+            return false;
+        }
+    }
+
+    /**
+     * Extensions can be written and read by the entity manager of this repository only when their repository
+     * uses the same entity manager factory, mapping the same classes is not enough since the database can be different.
+     *
+     * @param extensionRepository
+     * @return true if the extension repository shares the entity manager factory of this repository
+     */
+    protected boolean isSamePersistenceUnit(BaseRepository<?> extensionRepository) {
+        if (!(extensionRepository instanceof JpaRepository<?> jpaRepository))
+            return false;
+        try {
+            EntityManager em = getEntityManager();
+            EntityManager extensionEm = jpaRepository.getEntityManager();
+            return em != null && extensionEm != null && em.getEntityManagerFactory() == extensionEm.getEntityManagerFactory();
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param em
+     * @param entityClass
+     * @return true if the entity class is managed by the given entity manager
+     */
+    protected boolean isManagedEntityType(EntityManager em, Class<?> entityClass) {
+        try {
+            em.getMetamodel().entity(entityClass);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     /**
      * Update an entity in database
      * Can be overridden in order to change the logic how to retrieve entity manager
@@ -330,7 +1065,19 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
      */
     @Override
     public T update(T entity, Runnable runnable) {
-        return tx(Transactional.TxType.REQUIRED, em -> doUpdate(entity, runnable, em));
+        String tenant = tenantOf(entity);
+        if (tenant != null) {
+            return tenantRouting.executeInTransaction(tenant, em -> {
+                //merging an entity missing in the tenant schema would create it there
+                if (em.find(type, entity.getId()) == null)
+                    throw new EntityNotFound();
+                return doUpdate(entity, runnable, em);
+            });
+        }
+        return tx(Transactional.TxType.REQUIRED, em -> {
+            onWrite(em);
+            return doUpdate(entity, runnable, em);
+        });
     }
 
     /**
@@ -344,10 +1091,10 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         try {
             startTransactionIfNeeded(em);
             log.debug("Repository Update entity {}: {}", this.type.getSimpleName(), entity);
-            this.dbConstraintsValidatorManager.runCheck(entity, this.type, this);
+            T entityFromDb = em.find(type, entity.getId());
+            runUpdateConstraintChecks(entity, entityFromDb, em);
             //Enforcing the concept that the owner cannot be changed
             //TO DO: check if it is useful or not
-            T entityFromDb = em.find(type, entity.getId());
             if (entityFromDb instanceof OwnedResource ownedFromDb) {
                 Long oldOwnerId = ownedFromDb.getOwnerUserId();
                 OwnedResource owned = (OwnedResource) entity;
@@ -362,15 +1109,17 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
                     //incresing manually version since entities can come basically from non managed contexts (like rest with jackson)
                     updateEntity.setEntityVersion(updateEntity.getEntityVersion().intValue() + 1);
                 }
+                recordUniqueKeys(updateEntity);
                 log.debug("Entity merged: {}", entity);
                 //managing expandable entity
                 if (entity.isExpandableEntity()) {
                     ExpandableEntity expandableEntity = (ExpandableEntity) entity;
                     fillEntityWithExtension(updateEntity, expandableEntity.getExtension());
-                    doUpdateOnExpandableEntity(updateEntity);
+                    doUpdateOnExpandableEntity(updateEntity, em);
                 }
                 if (task != null)
                     task.run();
+                flushIfUniquenessEnforcedByDatabase(em);
                 commitTransactionIfNeeded(em);
                 return updateEntity;
             }
@@ -378,17 +1127,31 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
             //only in context where @transactional is not supported
             if (!isTransactionalSupported(em)) {
                 em.getTransaction().rollback();
+                clearIfUniquenessEnforcedByDatabase(em);
             }
-            throw e;
+            throw translateUniqueViolation(e);
         }
         throw new EntityNotFound();
     }
 
     /**
      * @param entity
+     * @param em
      */
-    private void doUpdateOnExpandableEntity(T entity) {
+    private void doUpdateOnExpandableEntity(T entity, EntityManager em) {
         processExpandableEntity(entity, (entityExtension, extensionRepository) -> {
+            EntityExtensionUpsert upsert = getExtensionUpsert(entityExtension, extensionRepository, em);
+            if (upsert != null) {
+                entityExtension.setupExtensionFields(0, entity);
+                //one update statement when extension already exists, otherwise it is created for the first time
+                EntityExtension updatedExtension = upsert.update(em, entityExtension, entity.getId());
+                if (updatedExtension == null) {
+                    em.persist(entityExtension);
+                    updatedExtension = entityExtension;
+                }
+                fillEntityWithExtension(entity, updatedExtension);
+                return;
+            }
             boolean alreadyExists = true;
             long extensionId = 0;
             try {
@@ -410,6 +1173,19 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         });
     }
 
+    /**
+     * @param entityExtension
+     * @param extensionRepository
+     * @param em
+     * @return the upsert for the extension, null if the extension must be updated through its repository
+     */
+    private EntityExtensionUpsert getExtensionUpsert(EntityExtension entityExtension, BaseRepository<BaseEntity> extensionRepository, EntityManager em) {
+        //managed extensions are already tracked by the entity manager
+        if (!extensionUpsertEnabled || em.contains(entityExtension) || !isSamePersistenceUnit(extensionRepository) || !isManagedEntityType(em, entityExtension.getClass()))
+            return null;
+        return EntityExtensionUpsert.forExtension(em, entityExtension.getClass());
+    }
+
     /**
      * Remove an entity by id
      * Can be overridden in order to change the logic how to retrieve entity manager
@@ -427,7 +1203,18 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
      */
     @Override
     public void remove(long id, Runnable runnable) {
-        txExpr(Transactional.TxType.REQUIRED, em -> doRemove(id, runnable, em));
+        String tenant = currentTenant();
+        if (tenant != null) {
+            tenantRouting.executeInTransaction(tenant, em -> {
+                doRemove(id, runnable, em);
+                return null;
+            });
+            return;
+        }
+        txExpr(Transactional.TxType.REQUIRED, em -> {
+            onWrite(em);
+            doRemove(id, runnable, em);
+        });
     }
 
     protected void doRemove(long id, Runnable task, EntityManager em) {
@@ -489,7 +1276,18 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
     public void remove(T entity) {
         log.debug("Repository Remove all entities {}: {}", this.type.getSimpleName(), entity);
         //post actions are preserved
-        txExpr(Transactional.TxType.REQUIRED, em -> doRemove(entity, em));
+        String tenant = tenantOf(entity);
+        if (tenant != null) {
+            tenantRouting.executeInTransaction(tenant, em -> {
+                doRemove(entity, em);
+                return null;
+            });
+            return;
+        }
+        txExpr(Transactional.TxType.REQUIRED, em -> {
+            onWrite(em);
+            doRemove(entity, em);
+        });
     }
 
     @Override
@@ -521,6 +1319,15 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
     @Override
     public T find(long id) {
         log.debug("Repository Find entity {} with id: {}", this.type.getSimpleName(), id);
+        if (extensionJoinFetchEnabled && ExpandableEntity.class.isAssignableFrom(this.type)) {
+            BaseRepository<BaseEntity> extensionRepository = getExtensionRepository();
+            if (extensionRepository != null && isSamePersistenceUnit(extensionRepository)) {
+                T entity = read(em -> doFindWithExtension(id, extensionRepository.getEntityType(), em));
+                if (entity == null)
+                    throw new NoResultException();
+                return entity;
+            }
+        }
         Query filter = this.getQueryBuilderInstance().field("id").equalTo(id);
         if (filter != null)
             return this.find(filter);
@@ -534,8 +1341,25 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
      */
     @Override
     public T find(String filterStr) {
-        Query filter = getQueryBuilderInstance().createQueryFilter(filterStr);
-        return find(filter);
+        return find(parseQueryFilter(filterStr));
+    }
+
+    /**
+     * Parses a filter, parsed filters are cached and shared so the returned query must not be modified
+     *
+     * @param filterStr filter
+     * @return parsed query
+     */
+    public Query parseQueryFilter(String filterStr) {
+        if (parsedQueryCache == null) {
+            synchronized (this) {
+                if (parsedQueryCache == null) {
+                    EntityManager em = getEntityManager();
+                    parsedQueryCache = ParsedQueryCache.fromProperties(em != null ? em.getEntityManagerFactory().getProperties() : null);
+                }
+            }
+        }
+        return parsedQueryCache.get(filterStr, filter -> getQueryBuilderInstance().createQueryFilter(filter));
     }
 
     /**
@@ -546,14 +1370,40 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
      */
     @Override
     public T find(Query filter) {
-        T entity = tx(Transactional.TxType.SUPPORTS, em -> doFind(filter, em));
+        return find(filter, (FetchPlan) null);
+    }
+
+    /**
+     * @param id        entity id
+     * @param fetchPlan associations to load together with the entity, can be null
+     * @return
+     */
+    @Override
+    public T find(long id, FetchPlan fetchPlan) {
+        if (fetchPlan == null)
+            return find(id);
+        return find(this.getQueryBuilderInstance().field("id").equalTo(id), fetchPlan);
+    }
+
+    /**
+     * @param filter    filter
+     * @param fetchPlan associations to load together with the entity, can be null
+     * @return
+     */
+    @Override
+    public T find(Query filter, FetchPlan fetchPlan) {
+        T entity = read(em -> doFind(filter, fetchPlan, em));
         if (entity == null)
             throw new NoResultException();
         return entity;
     }
 
-    @SuppressWarnings("unchecked")
     protected T doFind(Query filter, EntityManager em) {
+        return doFind(filter, null, em);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected T doFind(Query filter, FetchPlan fetchPlan, EntityManager em) {
         log.debug("Repository Find entity {} with filter: {}", this.type.getSimpleName(), filter);
         log.debug("Transaction found, invoke find");
         CriteriaBuilder criteriaBuilder = em.getCriteriaBuilder();
@@ -562,6 +1412,7 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         Predicate condition = (filter != null) ? toPredicate(filter, entityDef, query, criteriaBuilder) : null;
         CriteriaQuery<T> criteriaQuery = (condition != null) ? query.select(entityDef).where(condition) : query.select(entityDef);
         jakarta.persistence.Query q = em.createQuery(criteriaQuery);
+        applyFetchPlan(q, fetchPlan, em);
         try {
             T entity = (T) q.getSingleResult();
             log.debug("Found entity: {}", entity);
@@ -577,26 +1428,109 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         }
     }
 
+    /**
+     * @param naturalKey column names and values of one unique constraint
+     * @return
+     */
+    @Override
+    public T findByNaturalKey(Map<String, Object> naturalKey) {
+        log.debug("Repository Find entity {} with natural key: {}", this.type.getSimpleName(), naturalKey);
+        T entity = read(em -> doFindByNaturalKey(naturalKey, em));
+        if (entity == null)
+            throw new NoResultException();
+        return entity;
+    }
+
+    protected T doFindByNaturalKey(Map<String, Object> naturalKey, EntityManager em) {
+        T entity = getNaturalKeyLookup(em).load(naturalKey, em);
+        if (entity == null)
+            return null;
+        //inside transactions the managed instance can hold pending changes of the caller
+        if (!isInsideActiveTransaction(em))
+            em.detach(entity);
+        fillEntityWithExtension(entity);
+        return entity;
+    }
+
+    private NaturalKeyLookup<T> getNaturalKeyLookup(EntityManager em) {
+        if (naturalKeyLookup == null) {
+            synchronized (this) {
+                if (naturalKeyLookup == null)
+                    naturalKeyLookup = new NaturalKeyLookup<>(this.type, em.getEntityManagerFactory().getProperties());
+            }
+        }
+        return naturalKeyLookup;
+    }
+
+    /**
+     * Loads the entity and its extension with one query.
+     * Falls back to doFind when the extension is not managed by the same entity manager.
+     *
+     * @param id            entity id
+     * @param extensionType extension entity type
+     * @param em            entity manager
+     * @return the entity filled with its extension, null if not found
+     */
+    @SuppressWarnings("unchecked")
+    protected T doFindWithExtension(long id, Class<?> extensionType, EntityManager em) {
+        if (!isManagedEntityType(em, extensionType))
+            return doFind(this.getQueryBuilderInstance().field("id").equalTo(id), em);
+        String entityName = em.getMetamodel().entity(this.type).getName();
+        String extensionName = em.getMetamodel().entity(extensionType).getName();
+        String jpql = "select e, x from " + entityName + " e left join " + extensionName + " x on x.relatedEntityId = e.id where e.id = :id";
+        try {
+            List<Object[]> rows = em.createQuery(jpql, Object[].class).setParameter("id", id).setMaxResults(1).getResultList();
+            if (rows.isEmpty())
+                return null;
+            T entity = (T) rows.get(0)[0];
+            EntityExtension ext = (EntityExtension) rows.get(0)[1];
+            log.debug("Found entity: {} with extension: {}", entity, ext);
+            //Detaching entities in order to prevent unwanted logic
+            em.detach(entity);
+            if (ext != null) {
+                em.detach(ext);
+                fillEntityWithExtension(entity, ext);
+            }
+            return entity;
+        } catch (Exception e) {
+            throw new WaterRuntimeException("Generic error, while executing find: " + e.getMessage());
+        }
+    }
+
     /**
      * Find all entity
      * Can be overridden in order to change the logic how to retrieve entity manager
      */
     @Override
     public PaginatedResult<T> findAll(int delta, int page, Query filter, QueryOrder queryOrder) {
-        return tx(Transactional.TxType.SUPPORTS, em -> doFindAll(delta, page, filter, queryOrder, em));
+        return findAll(delta, page, filter, queryOrder, null);
+    }
+
+    /**
+     * Find all entities loading the associations described by the fetch plan.
+     * Note: when the plan fetches collections, pagination is applied by the persistence provider in memory.
+     */
+    @Override
+    public PaginatedResult<T> findAll(int delta, int page, Query filter, QueryOrder queryOrder, FetchPlan fetchPlan) {
+        return read(em -> doFindAll(delta, page, filter, queryOrder, fetchPlan, em));
     }
 
-    @SuppressWarnings("unchecked")
     protected PaginatedResult<T> doFindAll(int delta, int page, Query filter, QueryOrder queryOrder, EntityManager em) {
+        return doFindAll(delta, page, filter, queryOrder, null, em);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected PaginatedResult<T> doFindAll(int delta, int page, Query filter, QueryOrder queryOrder, FetchPlan fetchPlan, EntityManager em) {
         log.debug("Repository Find All entities {}", this.type.getSimpleName());
         jakarta.persistence.Query q = createQuery(filter, queryOrder, em);
+        applyFetchPlan(q, fetchPlan, em);
         int lastPageNumber = 1;
         int nextPage = 1;
+        CompletableFuture<Long> countFuture = null;
 
         if (delta > 0 && page > 0) {
-            Long countResults = countAll(filter);
-            lastPageNumber = (int) (Math.ceil(countResults / (double) delta));
-            nextPage = (page <= lastPageNumber - 1) ? page + 1 : 1;
+            //count is started before the page query, when parallel count is enabled they run concurrently
+            countFuture = startCountAll(filter, em);
             //Executing paginated query
             int firstResult = (page - 1) * delta;
             q.setFirstResult(firstResult);
@@ -604,6 +1538,11 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         }
 
         Collection<T> results = q.getResultList();
+        if (countFuture != null) {
+            Long countResults = joinCount(countFuture);
+            lastPageNumber = (int) (Math.ceil(countResults / (double) delta));
+            nextPage = (page <= lastPageNumber - 1) ? page + 1 : 1;
+        }
         PaginatedResult<T> paginatedResult = new PaginatedResult<>(lastPageNumber, page, nextPage, delta, results);
         //NOTE: we do not fill all entities with extension because it may lead to performance problem
         //if the user needs the details in the find all, he can retrieve this data using the specific service
@@ -612,6 +1551,64 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         return paginatedResult;
     }
 
+    /**
+     * Starts the count query related to a paginated find all.
+     * If parallel count is enabled, no transaction is active and tenant routing does not apply,
+     * the count runs asynchronously on a dedicated entity manager,
+     * otherwise it is executed immediately with the standard countAll.
+     *
+     * @param filter query filter, can be null
+     * @param em     entity manager used by the page query
+     * @return future holding the count result
+     */
+    protected CompletableFuture<Long> startCountAll(Query filter, EntityManager em) {
+        //the tenant of the current thread is not visible to the executor threads
+        if (!parallelCountEnabled || isInsideActiveTransaction(em) || isTenantRouted())
+            return CompletableFuture.completedFuture(countAll(filter));
+        EntityManagerFactory entityManagerFactory = em.getEntityManagerFactory();
+        return CompletableFuture.supplyAsync(() -> {
+            EntityManager countEntityManager = entityManagerFactory.createEntityManager();
+            try {
+                return doCountAll(filter, countEntityManager);
+            } finally {
+                countEntityManager.close();
+            }
+        }, getParallelCountExecutor());
+    }
+
+    /**
+     * @return the executor used for parallel count queries, the shared one when not replaced
+     */
+    public Executor getParallelCountExecutor() {
+        return parallelCountExecutor != null ? parallelCountExecutor : ParallelCountExecutorHolder.INSTANCE;
+    }
+
+    private Long joinCount(CompletableFuture<Long> countFuture) {
+        try {
+            return countFuture.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            throw new WaterRuntimeException("Error while executing count query: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks whether the entity manager is currently bound to an active transaction.
+     * Works both with resource local and jta entity managers.
+     *
+     * @param em
+     * @return
+     */
+    protected boolean isInsideActiveTransaction(EntityManager em) {
+        try {
+            return em.isJoinedToTransaction() || em.getTransaction().isActive();
+        } catch (IllegalStateException e) {
+            //jta entity manager do not expose resource local transactions
+            return em.isJoinedToTransaction();
+        }
+    }
+
 
     /**
      * Can be overridden in order to change the logic how to retrieve entity manager
@@ -621,7 +1618,7 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
      */
     @Override
     public long countAll(Query filter) {
-        return tx(Transactional.TxType.SUPPORTS, em -> doCountAll(filter, em));
+        return read(em -> doCountAll(filter, em));
     }
 
     protected long doCountAll(Query filter, EntityManager em) {
@@ -660,6 +1657,18 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         return em.createQuery(criteriaQuery);
     }
 
+    /**
+     * Applies the fetch plan as fetch graph hint, so only the plan associations are eagerly loaded
+     *
+     * @param q
+     * @param fetchPlan
+     * @param em
+     */
+    protected void applyFetchPlan(jakarta.persistence.Query q, FetchPlan fetchPlan, EntityManager em) {
+        if (fetchPlan != null)
+            q.setHint(FetchPlan.FETCH_GRAPH_HINT, fetchPlan.toEntityGraph(em, this.type));
+    }
+
     private Predicate toPredicate(Query filter, Root<T> entityDef, CriteriaQuery<?> criteriaQuery, CriteriaBuilder criteriaBuilder) {
         PredicateBuilder<T> predicateBuilder = new PredicateBuilder<>(entityDef, criteriaQuery, criteriaBuilder);
         return predicateBuilder.buildPredicate(filter);
@@ -679,6 +1688,44 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         return persistenceUnitName;
     }
 
+    /**
+     * Extension repository is resolved once per entity type and then reused.
+     * When no extension is found the miss is reused only if the runtime invalidates resolutions on component registration
+     * (see setExtensionMissesCacheable). Cached resolutions are discarded when invalidateExtensionRepositories is invoked.
+     *
+     * @return the extension repository related to this repository entity type, null if not found
+     */
+    @SuppressWarnings("unchecked")
+    protected BaseRepository<BaseEntity> getExtensionRepository() {
+        long generation = extensionRegistryGeneration.get();
+        ExtensionRepositoryResolution resolution = this.extensionRepositoryResolution;
+        if (resolution == null || resolution.generation() != generation || (resolution.repository() == null && !extensionMissesCacheable)) {
+            BaseRepository<BaseEntity> repository = (BaseRepository<BaseEntity>) this.componentRegistry.findEntityExtensionRepository(this.type);
+            resolution = new ExtensionRepositoryResolution(generation, repository);
+            this.extensionRepositoryResolution = resolution;
+        }
+        return resolution.repository();
+    }
+
+    /**
+     * Invalidates extension repositories cached by all repositories.
+     * Should be invoked by runtimes when components are registered or unregistered dynamically.
+     */
+    public static void invalidateExtensionRepositories() {
+        extensionRegistryGeneration.incrementAndGet();
+    }
+
+    /**
+     * Runtimes invoking invalidateExtensionRepositories on every component registration enable the caching of missing
+     * extension repositories, avoiding a registry lookup on each write of entities without extensions.
+     *
+     * @param cacheable true if missing extension repositories can be cached until the next invalidation
+     */
+    public static void setExtensionMissesCacheable(boolean cacheable) {
+        extensionMissesCacheable = cacheable;
+        invalidateExtensionRepositories();
+    }
+
     /**
      * Allow to process a task if an extension is found.
      *
@@ -689,8 +1736,7 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
         EntityExtension extension = entity.isExpandableEntity()?((ExpandableEntity)entity).getExtension():null;
         if (extension != null) {
             log.debug("Entity {} is expandable search for an extension...", this.type.getName());
-            @SuppressWarnings("unchecked")
-            BaseRepository<BaseEntity> extensionRepository = (BaseRepository<BaseEntity>) this.componentRegistry.findEntityExtensionRepository(this.type);
+            BaseRepository<BaseEntity> extensionRepository = getExtensionRepository();
             if (extensionRepository != null) {
                 log.debug("Expansion found {} for entity {}, completing task", extensionRepository.getEntityType(), type.getName());
                 task.accept(extension, extensionRepository);
@@ -706,7 +1752,7 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
      */
     private void fillEntityWithExtension(T entity) {
         if (entity.isExpandableEntity()) {
-            BaseRepository<?> baseRepository = this.componentRegistry.findEntityExtensionRepository(this.type);
+            BaseRepository<?> baseRepository = getExtensionRepository();
             if (baseRepository != null) {
                 try {
                     //Entity extension should have the same id of the master entity
@@ -732,4 +1778,7 @@ public abstract class BaseJpaRepositoryImpl<T extends BaseEntity> implements Jpa
     private Query findByRelatedEntityId(BaseRepository<?> entityExpansionRepository, T entity) {
         return entityExpansionRepository.getQueryBuilderInstance().field("relatedEntityId").equalTo(entity.getId());
     }
+
+    private record ExtensionRepositoryResolution(long generation, BaseRepository<BaseEntity> repository) {
+    }
 }
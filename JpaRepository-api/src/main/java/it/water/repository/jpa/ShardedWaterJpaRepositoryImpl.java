@@ -0,0 +1,535 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa;
+
+import it.water.core.api.model.BaseEntity;
+import it.water.core.api.model.PaginableResult;
+import it.water.core.api.repository.query.Query;
+import it.water.core.api.repository.query.QueryBuilder;
+import it.water.core.api.repository.query.QueryOrder;
+import it.water.core.api.repository.query.QueryOrderParameter;
+import it.water.core.interceptors.annotations.Inject;
+import it.water.core.model.exceptions.WaterRuntimeException;
+import it.water.repository.entity.model.PaginatedResult;
+import it.water.repository.entity.model.exceptions.EntityNotFound;
+import it.water.repository.entity.model.exceptions.NoResultException;
+import it.water.repository.jpa.api.JpaRepository;
+import it.water.repository.jpa.api.JpaRepositoryManager;
+import it.water.repository.jpa.api.ShardFunction;
+import it.water.repository.jpa.api.WaterJpaRepository;
+import it.water.repository.jpa.concurrent.BoundedQueryExecutors;
+import it.water.repository.jpa.id.WaterIdGenerator;
+import it.water.repository.jpa.query.FetchPlan;
+import it.water.repository.jpa.query.ParsedQueryCache;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Transactional;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * @Author Aristide Cittadino
+ * Water repository whose entities are distributed across many persistence units (shards).
+ * Writes and lookups by id are routed to a single shard through the shard function,
+ * findAll and countAll are executed on all shards in parallel and merged.
+ * Global pagination fetches the first page * delta results from each shard, merge sorts them by query order and
+ * extracts the requested page, so deep pages are more expensive than the first ones.
+ * Without query order, results are merged following the shard order.
+ * Entity ids must be unique across shards: the time-ordered id strategy is required, unless the shard function derives the shard from ids.
+ * Updates and removals are routed by id, updates changing the shard key of an entity are rejected.
+ * Entity managers and transactions belong to a single shard: getEntityManager, tx and inTransaction use the default shard,
+ * inTransaction(entity, work) and inShardTransaction(index, work) select it explicitly.
+ */
+public class ShardedWaterJpaRepositoryImpl<T extends BaseEntity> implements WaterJpaRepository<T> {
+    public static final String SCATTER_GATHER_THREADS_PROPERTY = "water.repository.jpa.sharded.query.threads";
+
+    /**
+     * Shared pool used to query shards in parallel, see BoundedQueryExecutors.
+     * It is created on first use, the number of threads can be configured with
+     * water.repository.jpa.sharded.query.threads system property (default 4).
+     */
+    private static class ScatterGatherExecutorHolder {
+        private static final ExecutorService INSTANCE = BoundedQueryExecutors.create("water-jpa-sharded-query", SCATTER_GATHER_THREADS_PROPERTY);
+    }
+
+    private final Class<T> type;
+    private final List<String> persistenceUnitNames;
+    private final ShardFunction<T> shardFunction;
+    private final AtomicReferenceArray<JpaRepository<T>> shards;
+    @Inject
+    @Setter
+    private JpaRepositoryManager jpaRepositoryManager;
+    /**
+     * Executor used for scatter gather queries, can be replaced with a managed one
+     */
+    @Setter
+    private Executor scatterGatherExecutor;
+    /**
+     * Shard used by the operations which cannot be routed by entity or id:
+     * getEntityManager, txExpr, tx and inTransaction(work). Default is the first shard.
+     */
+    @Setter
+    @Getter
+    private int defaultShardIndex;
+    /**
+     * Getters used to sort merged results, by class and field name
+     */
+    private final Map<List<Object>, Method> gettersCache = new ConcurrentHashMap<>();
+    /**
+     * Parsed filters of find(String), see ParsedQueryCache
+     */
+    private final ParsedQueryCache parsedQueryCache = ParsedQueryCache.fromProperties(null);
+
+    public ShardedWaterJpaRepositoryImpl(Class<T> type, List<String> persistenceUnitNames, ShardFunction<T> shardFunction) {
+        if (persistenceUnitNames == null || persistenceUnitNames.isEmpty())
+            throw new IllegalArgumentException("At least one persistence unit is required");
+        this.type = type;
+        this.persistenceUnitNames = List.copyOf(persistenceUnitNames);
+        this.shardFunction = shardFunction;
+        this.shards = new AtomicReferenceArray<>(persistenceUnitNames.size());
+        //sequences restart in every shard, so lookups by id would return or remove the row of another shard
+        if (getShardCount() > 1 && !routesIds(shardFunction) && !isTimeOrdered(System.getProperty(WaterIdGenerator.ID_STRATEGY_PROPERTY)))
+            throw new WaterRuntimeException("Sharded repository of " + type.getName() + " requires unique ids across shards: set "
+                    + WaterIdGenerator.ID_STRATEGY_PROPERTY + "=" + WaterIdGenerator.TIME_ORDERED_STRATEGY + " or a shard function implementing shardOf(id, shardCount)");
+    }
+
+    public int getShardCount() {
+        return persistenceUnitNames.size();
+    }
+
+    /**
+     * Concrete repositories are created lazily, exactly once per shard
+     *
+     * @param index shard index
+     * @return the repository of the shard
+     */
+    public JpaRepository<T> getShard(int index) {
+        JpaRepository<T> shard = shards.get(index);
+        if (shard == null) {
+            synchronized (shards) {
+                shard = shards.get(index);
+                if (shard == null) {
+                    shard = jpaRepositoryManager.createConcreteRepository(type, persistenceUnitNames.get(index));
+                    checkUniqueIds(shard, persistenceUnitNames.get(index));
+                    shards.set(index, shard);
+                }
+            }
+        }
+        return shard;
+    }
+
+    private static boolean routesIds(ShardFunction<?> shardFunction) {
+        try {
+            return shardFunction.getClass().getMethod("shardOf", long.class, int.class).getDeclaringClass() != ShardFunction.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean isTimeOrdered(Object idStrategy) {
+        return idStrategy != null && WaterIdGenerator.TIME_ORDERED_STRATEGY.equalsIgnoreCase(idStrategy.toString().trim());
+    }
+
+    /**
+     * Persistence unit properties override the system property checked by the constructor, so each shard is checked again when created
+     */
+    private void checkUniqueIds(JpaRepository<T> shard, String persistenceUnitName) {
+        if (getShardCount() == 1 || routesIds(shardFunction))
+            return;
+        EntityManager entityManager = shard.getEntityManager();
+        if (entityManager == null)
+            return;
+        Object idStrategy = entityManager.getEntityManagerFactory().getProperties().get(WaterIdGenerator.ID_STRATEGY_PROPERTY);
+        if (!isTimeOrdered(idStrategy != null ? idStrategy : System.getProperty(WaterIdGenerator.ID_STRATEGY_PROPERTY)))
+            throw new WaterRuntimeException("Shard " + persistenceUnitName + " of " + type.getName() + " does not use " + WaterIdGenerator.TIME_ORDERED_STRATEGY + " ids, ids would not be unique across shards");
+    }
+
+    protected JpaRepository<T> shardOf(T entity) {
+        return getShard(checkShardIndex(shardFunction.shardOf(entity, getShardCount())));
+    }
+
+    /**
+     * @param id
+     * @return the shard storing the entity with the given id, null if not found
+     */
+    protected JpaRepository<T> shardOf(long id) {
+        int index = shardFunction.shardOf(id, getShardCount());
+        if (index != ShardFunction.UNKNOWN_SHARD)
+            return getShard(checkShardIndex(index));
+        Query idFilter = getQueryBuilderInstance().field("id").equalTo(id);
+        List<Long> counts = scatter(shard -> shard.countAll(idFilter));
+        for (int i = 0; i < counts.size(); i++) {
+            if (counts.get(i) > 0)
+                return getShard(i);
+        }
+        return null;
+    }
+
+    private int checkShardIndex(int index) {
+        if (index < 0 || index >= getShardCount())
+            throw new WaterRuntimeException("Invalid shard index " + index + " for entity " + type.getName());
+        return index;
+    }
+
+    @Override
+    public Class<T> getEntityType() {
+        return type;
+    }
+
+    @Override
+    public T persist(T entity) {
+        return persist(entity, null);
+    }
+
+    @Override
+    public T persist(T entity, Runnable runnable) {
+        return shardOf(entity).persist(entity, runnable);
+    }
+
+    @Override
+    public T update(T entity) {
+        return update(entity, null);
+    }
+
+    /**
+     * The entity is updated in the shard holding its id, entities cannot be moved to another shard changing their shard key
+     */
+    @Override
+    public T update(T entity, Runnable runnable) {
+        return ownerShardOf(entity).update(entity, runnable);
+    }
+
+    @Override
+    public void remove(long id) {
+        remove(id, null);
+    }
+
+    @Override
+    public void remove(long id, Runnable runnable) {
+        JpaRepository<T> shard = shardOf(id);
+        if (shard == null)
+            throw new EntityNotFound();
+        shard.remove(id, runnable);
+    }
+
+    /**
+     * The entity is removed from the shard holding its id, whatever its current shard key
+     */
+    @Override
+    public void remove(T entity) {
+        JpaRepository<T> shard = shardOf(entity.getId());
+        if (shard == null)
+            throw new EntityNotFound();
+        shard.remove(entity);
+    }
+
+    /**
+     * @param entity an existing entity
+     * @return the shard holding the entity
+     */
+    private JpaRepository<T> ownerShardOf(T entity) {
+        JpaRepository<T> shard = shardOf(entity.getId());
+        if (shard == null)
+            throw new EntityNotFound();
+        if (shard != shardOf(entity))
+            throw new WaterRuntimeException("Shard key of " + type.getName() + " with id " + entity.getId() + " has changed, entities cannot be moved between shards");
+        return shard;
+    }
+
+    @Override
+    public void removeAllByIds(Iterable<Long> ids) {
+        ids.forEach(this::remove);
+    }
+
+    @Override
+    public void removeAll(Iterable<T> entities) {
+        entities.forEach(this::remove);
+    }
+
+    @Override
+    public void removeAll() {
+        scatter(shard -> {
+            shard.removeAll();
+            return null;
+        });
+    }
+
+    @Override
+    public T find(long id) {
+        return find(id, null);
+    }
+
+    @Override
+    public T find(String filterStr) {
+        return find(parsedQueryCache.get(filterStr, filter -> getQueryBuilderInstance().createQueryFilter(filter)));
+    }
+
+    @Override
+    public T find(Query filter) {
+        return find(filter, null);
+    }
+
+    @Override
+    public T find(long id, FetchPlan fetchPlan) {
+        int index = shardFunction.shardOf(id, getShardCount());
+        if (index != ShardFunction.UNKNOWN_SHARD)
+            return getShard(checkShardIndex(index)).find(id, fetchPlan);
+        return find(getQueryBuilderInstance().field("id").equalTo(id), fetchPlan);
+    }
+
+    /**
+     * Queries all shards returning the first entity found
+     */
+    @Override
+    public T find(Query filter, FetchPlan fetchPlan) {
+        List<T> results = scatter(shard -> {
+            try {
+                return shard.find(filter, fetchPlan);
+            } catch (NoResultException e) {
+                return null;
+            }
+        });
+        return results.stream().filter(entity -> entity != null).findFirst().orElseThrow(NoResultException::new);
+    }
+
+    /**
+     * Queries all shards returning the first entity found
+     */
+    @Override
+    public T findByNaturalKey(Map<String, Object> naturalKey) {
+        List<T> results = scatter(shard -> {
+            try {
+                return shard.findByNaturalKey(naturalKey);
+            } catch (NoResultException e) {
+                return null;
+            }
+        });
+        return results.stream().filter(entity -> entity != null).findFirst().orElseThrow(NoResultException::new);
+    }
+
+    @Override
+    public PaginableResult<T> findAll(int delta, int page, Query filter, QueryOrder queryOrder) {
+        return findAll(delta, page, filter, queryOrder, null);
+    }
+
+    @Override
+    public PaginableResult<T> findAll(int delta, int page, Query filter, QueryOrder queryOrder, FetchPlan fetchPlan) {
+        boolean paginated = delta > 0 && page > 0;
+        //each shard returns its own first page * delta results, global page is extracted after merging
+        int shardDelta = paginated ? Math.multiplyExact(page, delta) : delta;
+        int shardPage = paginated ? 1 : page;
+        List<Collection<T>> shardResults = scatter(shard -> shard.findAll(shardDelta, shardPage, filter, queryOrder, fetchPlan).getResults());
+        List<T> merged = merge(shardResults, queryOrder);
+        if (!paginated)
+            return new PaginatedResult<>(1, page, 1, delta, merged);
+        long countResults = countAll(filter);
+        int lastPageNumber = (int) (Math.ceil(countResults / (double) delta));
+        int nextPage = (page <= lastPageNumber - 1) ? page + 1 : 1;
+        int firstResult = Math.min((page - 1) * delta, merged.size());
+        List<T> results = new ArrayList<>(merged.subList(firstResult, Math.min(firstResult + delta, merged.size())));
+        return new PaginatedResult<>(lastPageNumber, page, nextPage, delta, results);
+    }
+
+    @Override
+    public long countAll(Query filter) {
+        return scatter(shard -> shard.countAll(filter)).stream().mapToLong(Long::longValue).sum();
+    }
+
+    @Override
+    public QueryBuilder getQueryBuilderInstance() {
+        return getShard(0).getQueryBuilderInstance();
+    }
+
+    /**
+     * Entity manager of the default shard, see defaultShardIndex
+     */
+    @Override
+    public EntityManager getEntityManager() {
+        return getDefaultShard().getEntityManager();
+    }
+
+    /**
+     * Executes the function in a transaction of the default shard, see defaultShardIndex
+     */
+    @Override
+    public void txExpr(Transactional.TxType txType, Consumer<EntityManager> function) {
+        getDefaultShard().txExpr(txType, function);
+    }
+
+    /**
+     * Executes the function in a transaction of the default shard, see defaultShardIndex
+     */
+    @Override
+    public <R> R tx(Transactional.TxType txType, Function<EntityManager, R> function) {
+        return getDefaultShard().tx(txType, function);
+    }
+
+    /**
+     * Executes the unit of work on the default shard, see defaultShardIndex.
+     * Units of work cannot span many shards: the work receives the shard repository, so its writes are not routed by the shard function.
+     * Use inTransaction(entity, work) to select the shard by entity.
+     */
+    @Override
+    public <R> R inTransaction(Function<JpaRepository<T>, R> work) {
+        return getDefaultShard().inTransaction(work);
+    }
+
+    /**
+     * Executes the unit of work on the shard of the given entity, see inTransaction
+     *
+     * @param entity entity selecting the shard through the shard function
+     * @param work   operations, receiving the shard repository
+     * @return work result
+     */
+    public <R> R inTransaction(T entity, Function<JpaRepository<T>, R> work) {
+        return shardOf(entity).inTransaction(work);
+    }
+
+    /**
+     * Executes the unit of work on the given shard, see inTransaction
+     *
+     * @param shardIndex shard index
+     * @param work       operations, receiving the shard repository
+     * @return work result
+     */
+    public <R> R inShardTransaction(int shardIndex, Function<JpaRepository<T>, R> work) {
+        return getShard(checkShardIndex(shardIndex)).inTransaction(work);
+    }
+
+    protected JpaRepository<T> getDefaultShard() {
+        return getShard(checkShardIndex(defaultShardIndex));
+    }
+
+    /**
+     * Executes the function on every shard in parallel
+     *
+     * @param function
+     * @return results ordered by shard index
+     */
+    protected <R> List<R> scatter(Function<JpaRepository<T>, R> function) {
+        //results may contain nulls, so they are collected without immutable lists
+        List<R> results = new ArrayList<>();
+        if (getShardCount() == 1) {
+            results.add(function.apply(getShard(0)));
+            return results;
+        }
+        List<CompletableFuture<R>> futures = new ArrayList<>();
+        for (int i = 0; i < getShardCount(); i++) {
+            JpaRepository<T> shard = getShard(i);
+            futures.add(CompletableFuture.supplyAsync(() -> function.apply(shard), getScatterGatherExecutor()));
+        }
+        try {
+            futures.forEach(future -> results.add(future.join()));
+            return results;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            throw e;
+        }
+    }
+
+    /**
+     * @return the executor used for scatter gather queries, the shared one when not replaced
+     */
+    public Executor getScatterGatherExecutor() {
+        return scatterGatherExecutor != null ? scatterGatherExecutor : ScatterGatherExecutorHolder.INSTANCE;
+    }
+
+    /**
+     * Merges shard results, each of them already sorted by the query order
+     */
+    private List<T> merge(List<Collection<T>> shardResults, QueryOrder queryOrder) {
+        List<T> merged = new ArrayList<>();
+        shardResults.forEach(merged::addAll);
+        Comparator<T> comparator = comparator(queryOrder);
+        //stable sort: merging sorted runs is linear with timsort
+        if (comparator != null)
+            merged.sort(comparator);
+        return merged;
+    }
+
+    /**
+     * Comparator of merged results, order fields can be nested paths like owner.name.
+     * Getters are resolved on the runtime class of each value and cached.
+     * Null values, including null intermediate values of nested paths, come first.
+     *
+     * @param queryOrder query order, can be null
+     * @return the comparator, null if no order is defined
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected Comparator<T> comparator(QueryOrder queryOrder) {
+        if (queryOrder == null || queryOrder.getParametersList() == null || queryOrder.getParametersList().isEmpty())
+            return null;
+        Comparator<T> comparator = null;
+        for (QueryOrderParameter orderParameter : queryOrder.getParametersList()) {
+            String path = orderParameter.getName();
+            String[] fieldNames = path.split("\\.", -1);
+            //fails fast on the entity field
+            findGetter(type, fieldNames[0], path);
+            Comparator<Comparable> valueComparator = orderParameter.isAsc() ? Comparator.naturalOrder() : Comparator.reverseOrder();
+            Comparator<T> fieldComparator = Comparator.comparing(entity -> (Comparable) readValue(fieldNames, path, entity), Comparator.nullsFirst(valueComparator));
+            comparator = (comparator == null) ? fieldComparator : comparator.thenComparing(fieldComparator);
+        }
+        return comparator;
+    }
+
+    private Object readValue(String[] fieldNames, String path, T entity) {
+        Object value = entity;
+        for (String fieldName : fieldNames) {
+            Method getter = findGetter(value.getClass(), fieldName, path);
+            try {
+                value = getter.invoke(value);
+            } catch (ReflectiveOperationException e) {
+                throw new WaterRuntimeException("Impossible to read " + getter.getName() + " on " + value.getClass().getName() + ": " + e.getMessage());
+            }
+            if (value == null)
+                return null;
+        }
+        return value;
+    }
+
+    private Method findGetter(Class<?> ownerType, String fieldName, String path) {
+        return gettersCache.computeIfAbsent(List.of(ownerType, fieldName), key -> {
+            if (fieldName.isEmpty())
+                throw new WaterRuntimeException("Impossible to order sharded results by " + path + ", invalid path");
+            String capitalized = fieldName.substring(0, 1).toUpperCase() + fieldName.substring(1);
+            try {
+                return ownerType.getMethod("get" + capitalized);
+            } catch (NoSuchMethodException e) {
+                try {
+                    return ownerType.getMethod("is" + capitalized);
+                } catch (NoSuchMethodException ex) {
+                    throw new WaterRuntimeException("Impossible to order sharded results by " + path + ", getter of " + fieldName + " not found on " + ownerType.getName());
+                }
+            }
+        });
+    }
+}
@@ -16,19 +16,24 @@
 
 package it.water.repository.jpa;
 
+import it.water.core.api.bundle.ApplicationProperties;
 import it.water.core.api.model.BaseEntity;
 import it.water.core.api.model.PaginableResult;
 import it.water.core.api.repository.query.Query;
 import it.water.core.api.repository.query.QueryBuilder;
 import it.water.core.api.repository.query.QueryOrder;
 import it.water.core.interceptors.annotations.Inject;
+import it.water.core.interceptors.annotations.OnActivate;
 import it.water.repository.jpa.api.JpaRepository;
 import it.water.repository.jpa.api.JpaRepositoryManager;
 import it.water.repository.jpa.api.WaterJpaRepository;
+import it.water.repository.jpa.query.FetchPlan;
 import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
+import lombok.Getter;
 import lombok.Setter;
 
+import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -43,23 +48,73 @@ import java.util.function.Function;
  * It must be always an BaseJpaRepositoryImpl object.
  */
 public class WaterJpaRepositoryImpl<T extends BaseEntity> implements WaterJpaRepository<T> {
-    private JpaRepository<T> concreteRepository;
+    public static final String EAGER_INITIALIZATION_PROPERTY = "water.repository.jpa.eager.initialization";
+    //volatile in order to publish the concrete repository safely without locking on the read path
+    private volatile JpaRepository<T> concreteRepository;
+    private final Object concreteRepositoryLock = new Object();
     private Class<T> type;
     private String persistenceUnitName;
     @Inject
     @Setter
     private JpaRepositoryManager jpaRepositoryManager;
+    @Inject
+    @Setter
+    private ApplicationProperties applicationProperties;
+    /**
+     * When true the concrete repository is created at component activation,
+     * so first requests do not pay the repository construction cost.
+     * It can be enabled also with water.repository.jpa.eager.initialization inside application properties or as system property.
+     */
+    @Setter
+    @Getter
+    private boolean eagerInitialization;
 
     public WaterJpaRepositoryImpl(Class<T> type, String persistenceUnitName) {
         this.type = type;
         this.persistenceUnitName = persistenceUnitName;
     }
 
+    @OnActivate
+    public void onActivate() {
+        if (eagerInitialization || isEagerInitializationConfigured())
+            warmUp();
+    }
+
+    /**
+     * @return true if eager initialization is enabled by application properties or, when not set, by system properties
+     */
+    private boolean isEagerInitializationConfigured() {
+        Object value = applicationProperties != null ? applicationProperties.getProperty(EAGER_INITIALIZATION_PROPERTY) : null;
+        if (value == null)
+            value = System.getProperty(EAGER_INITIALIZATION_PROPERTY);
+        return value != null && Boolean.parseBoolean(value.toString().trim());
+    }
+
+    /**
+     * Forces the creation of the concrete repository.
+     */
+    public void warmUp() {
+        getConcreteRepository();
+    }
+
+    /**
+     * Double checked locking: concrete repository (and its entity manager) is created exactly once,
+     * even when many threads access the repository concurrently at startup.
+     *
+     * @return
+     */
     private JpaRepository<T> getConcreteRepository() {
-        if (this.concreteRepository == null) {
-            this.concreteRepository = jpaRepositoryManager.createConcreteRepository(type, persistenceUnitName);
+        JpaRepository<T> repository = this.concreteRepository;
+        if (repository == null) {
+            synchronized (concreteRepositoryLock) {
+                repository = this.concreteRepository;
+                if (repository == null) {
+                    repository = jpaRepositoryManager.createConcreteRepository(type, persistenceUnitName);
+                    this.concreteRepository = repository;
+                }
+            }
         }
-        return this.concreteRepository;
+        return repository;
     }
 
     protected Class<T> getType() {
@@ -145,6 +200,36 @@ public class WaterJpaRepositoryImpl<T extends BaseEntity> implements WaterJpaRep
         return getConcreteRepository().findAll(delta, page, filter, queryOrder);
     }
 
+    @Override
+    public <R> R inTransaction(Function<JpaRepository<T>, R> work) {
+        return getConcreteRepository().inTransaction(work);
+    }
+
+    @Override
+    public void validateConstraints(T entity) {
+        getConcreteRepository().validateConstraints(entity);
+    }
+
+    @Override
+    public T findByNaturalKey(Map<String, Object> naturalKey) {
+        return getConcreteRepository().findByNaturalKey(naturalKey);
+    }
+
+    @Override
+    public T find(long id, FetchPlan fetchPlan) {
+        return getConcreteRepository().find(id, fetchPlan);
+    }
+
+    @Override
+    public T find(Query filter, FetchPlan fetchPlan) {
+        return getConcreteRepository().find(filter, fetchPlan);
+    }
+
+    @Override
+    public PaginableResult<T> findAll(int delta, int page, Query filter, QueryOrder queryOrder, FetchPlan fetchPlan) {
+        return getConcreteRepository().findAll(delta, page, filter, queryOrder, fetchPlan);
+    }
+
     @Override
     public long countAll(Query filter) {
         return getConcreteRepository().countAll(filter);
@@ -1,6 +1,9 @@
 package it.water.repository.jpa;
 
 import it.water.core.api.model.BaseEntity;
+import it.water.repository.jpa.index.JpaClassIndex;
+import it.water.repository.jpa.schema.SchemaFingerprintCache;
+import it.water.repository.jpa.schema.SchemaMode;
 import jakarta.persistence.SharedCacheMode;
 import jakarta.persistence.ValidationMode;
 import jakarta.persistence.spi.ClassTransformer;
@@ -8,20 +11,37 @@ import jakarta.persistence.spi.PersistenceUnitInfo;
 import jakarta.persistence.spi.PersistenceUnitTransactionType;
 import lombok.Getter;
 import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  * @Author Aristide Cittadino
  * Persistence Unit Info in order to avoid the use of persistence xml.
  * This class allows also to load persistence unit based on the environment.
+ * When the entity module has been compiled with JpaClassIndexProcessor, managed classes are read from the generated index
+ * and classpath scanning is disabled.
+ * Jdbc batching is enabled by default with inserts and updates ordered by entity, the batch size can be configured with
+ * water.repository.jpa.jdbc.batch.size (default 50, 0 disables batching) inside persistence unit properties or as system property.
+ * An explicit hibernate.jdbc.batch_size always takes precedence.
  */
 public class WaterPersistenceUnitInfo implements PersistenceUnitInfo {
+    private static final Logger log = LoggerFactory.getLogger(WaterPersistenceUnitInfo.class);
+    public static final String HIBERNATE_ARCHIVE_AUTODETECTION = "hibernate.archive.autodetection";
+    public static final String HIBERNATE_JDBC_BATCH_SIZE = "hibernate.jdbc.batch_size";
+    public static final String HIBERNATE_ORDER_INSERTS = "hibernate.order_inserts";
+    public static final String HIBERNATE_ORDER_UPDATES = "hibernate.order_updates";
+    public static final String JDBC_BATCH_SIZE_PROPERTY = "water.repository.jpa.jdbc.batch.size";
+    private static final String DEFAULT_JDBC_BATCH_SIZE = "50";
+    public static final String HIBERNATE_HBM2DDL_METADATA_EXTRACTION_STRATEGY = "hibernate.hbm2ddl.jdbc_metadata_extraction_strategy";
 
     private final String persistenceUnitName;
     private final List<String> managedClassNames = new ArrayList<>();
@@ -45,6 +65,14 @@ public class WaterPersistenceUnitInfo implements PersistenceUnitInfo {
     private ClassLoader classLoader;
     @Getter
     private URL persistenceUnitRootUrl;
+    private boolean excludeUnlistedClasses;
+    private boolean managedClassesResolved;
+    @Getter
+    private final SchemaMode schemaMode;
+    private final SchemaFingerprintCache schemaFingerprintCache;
+    private boolean schemaModeResolved;
+    private String schemaFingerprint;
+    private String databaseIdentity;
 
     public WaterPersistenceUnitInfo(String persistenceUnitName, Class<? extends BaseEntity> type) {
         this(persistenceUnitName, type, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, null);
@@ -62,14 +90,125 @@ public class WaterPersistenceUnitInfo implements PersistenceUnitInfo {
         this.persistenceUnitRootUrl = type.getProtectionDomain().getCodeSource().getLocation();
         if (properties != null)
             this.properties.putAll(properties);
-        setProperty("hibernate.hbm2ddl.auto", "update");
-        setProperty("hibernate.archive.autodetection", "class");
+        this.schemaMode = SchemaMode.fromProperties(properties);
+        this.schemaFingerprintCache = SchemaFingerprintCache.fromProperties(properties);
+        setProperty(SchemaMode.HIBERNATE_HBM2DDL_AUTO, schemaMode.getHbm2ddlValue());
+        setProperty(HIBERNATE_ARCHIVE_AUTODETECTION, "class");
+        setupJdbcBatching(properties);
+    }
+
+    /**
+     * Without a jdbc batch size hibernate sends one statement per row, even when many rows are flushed together
+     *
+     * @param properties persistence unit properties, can be null
+     */
+    private void setupJdbcBatching(Properties properties) {
+        if (this.properties.containsKey(HIBERNATE_JDBC_BATCH_SIZE))
+            return;
+        String batchSize = properties != null ? properties.getProperty(JDBC_BATCH_SIZE_PROPERTY) : null;
+        if (batchSize == null)
+            batchSize = System.getProperty(JDBC_BATCH_SIZE_PROPERTY, DEFAULT_JDBC_BATCH_SIZE);
+        batchSize = validJdbcBatchSize(batchSize);
+        setProperty(HIBERNATE_JDBC_BATCH_SIZE, batchSize);
+        if (Integer.parseInt(batchSize) > 0) {
+            if (!this.properties.containsKey(HIBERNATE_ORDER_INSERTS))
+                setProperty(HIBERNATE_ORDER_INSERTS, "true");
+            if (!this.properties.containsKey(HIBERNATE_ORDER_UPDATES))
+                setProperty(HIBERNATE_ORDER_UPDATES, "true");
+        }
+    }
+
+    /**
+     * @param batchSize configured batch size
+     * @return the configured batch size or the default one if it is not a number greater or equal to 0
+     */
+    private static String validJdbcBatchSize(String batchSize) {
+        try {
+            int value = Integer.parseInt(batchSize.trim());
+            if (value >= 0)
+                return String.valueOf(value);
+        } catch (NumberFormatException e) {
+            //falling back to default
+        }
+        log.warn("Invalid value {} for {}, it must be a number greater or equal to 0, using {}", batchSize, JDBC_BATCH_SIZE_PROPERTY, DEFAULT_JDBC_BATCH_SIZE);
+        return DEFAULT_JDBC_BATCH_SIZE;
     }
 
     public void addManagedClass(String className) {
         managedClassNames.add(className);
     }
 
+    /**
+     * Adds all classes listed in the given jpa class index files as managed classes.
+     * If at least one class is found, unlisted classes are excluded and hibernate archive autodetection is turned off.
+     *
+     * @param indexUrls jpa class index files
+     * @return true if managed classes have been found in the index
+     */
+    public boolean addManagedClassesFromIndex(Collection<URL> indexUrls) {
+        this.managedClassesResolved = true;
+        Set<String> indexedClassNames = JpaClassIndex.readClassNames(indexUrls);
+        if (indexedClassNames.isEmpty())
+            return false;
+        indexedClassNames.stream().filter(className -> !managedClassNames.contains(className)).forEach(this::addManagedClass);
+        this.excludeUnlistedClasses = true;
+        setProperty(HIBERNATE_ARCHIVE_AUTODETECTION, "none");
+        return true;
+    }
+
+    /**
+     * Must be invoked after the entity manager factory has been created successfully,
+     * in order to save the mapping fingerprint when the fingerprint cache is enabled.
+     */
+    public void onEntityManagerFactoryCreated() {
+        if (schemaFingerprintCache != null && schemaFingerprint != null)
+            schemaFingerprintCache.store(persistenceUnitName, databaseIdentity, schemaFingerprint);
+    }
+
+    /**
+     * Must be invoked when the creation of the entity manager factory fails, so a schema which did not pass validation
+     * is managed again with the configured schema mode on the next bootstrap.
+     */
+    public void onEntityManagerFactoryFailed() {
+        if (schemaFingerprintCache != null && databaseIdentity != null)
+            schemaFingerprintCache.remove(persistenceUnitName, databaseIdentity);
+    }
+
+    /**
+     * When the fingerprint cache is enabled and mapping has not changed since the last bootstrap,
+     * the schema is only validated instead of being updated, looking up mapped tables one by one
+     * rather than introspecting the whole database metadata.
+     * Tables dropped or altered outside the application are still detected.
+     */
+    private void resolveSchemaMode() {
+        if (!schemaModeResolved) {
+            schemaModeResolved = true;
+            if (schemaFingerprintCache != null && schemaMode != SchemaMode.NONE) {
+                schemaFingerprint = schemaFingerprintCache.computeFingerprint(managedClassNames, getClassLoader());
+                databaseIdentity = SchemaFingerprintCache.databaseIdentity(properties, jtaDataSource != null ? jtaDataSource : nonJtaDataSource);
+                if (schemaFingerprintCache.isUnchanged(persistenceUnitName, databaseIdentity, schemaFingerprint)) {
+                    setProperty(SchemaMode.HIBERNATE_HBM2DDL_AUTO, SchemaMode.VALIDATE.getHbm2ddlValue());
+                    if (!properties.containsKey(HIBERNATE_HBM2DDL_METADATA_EXTRACTION_STRATEGY))
+                        setProperty(HIBERNATE_HBM2DDL_METADATA_EXTRACTION_STRATEGY, "individually");
+                    //fingerprint is already stored
+                    schemaFingerprint = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Index is loaded lazily since the class loader can be changed after the creation of the persistence unit info.
+     * Classes added explicitly through addManagedClass take precedence over the index.
+     */
+    private void resolveManagedClasses() {
+        if (!managedClassesResolved) {
+            managedClassesResolved = true;
+            if (managedClassNames.isEmpty())
+                addManagedClassesFromIndex(JpaClassIndex.findIndexUrls(getClassLoader(), persistenceUnitRootUrl));
+        }
+    }
+
     public void setProperty(String key, String value) {
         properties.setProperty(key, value);
     }
@@ -96,16 +235,20 @@ public class WaterPersistenceUnitInfo implements PersistenceUnitInfo {
 
     @Override
     public List<String> getManagedClassNames() {
+        resolveManagedClasses();
         return managedClassNames;
     }
 
     @Override
     public boolean excludeUnlistedClasses() {
-        return false;
+        resolveManagedClasses();
+        return excludeUnlistedClasses;
     }
 
     @Override
     public Properties getProperties() {
+        resolveManagedClasses();
+        resolveSchemaMode();
         return properties;
     }
 
@@ -17,10 +17,16 @@
 package it.water.repository.jpa.api;
 
 import it.water.core.api.model.BaseEntity;
+import it.water.core.api.model.PaginableResult;
 import it.water.core.api.repository.BaseRepository;
+import it.water.core.api.repository.query.Query;
+import it.water.core.api.repository.query.QueryOrder;
+import it.water.repository.jpa.query.FetchPlan;
 import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -46,4 +52,109 @@ public interface JpaRepository<T extends BaseEntity> extends BaseRepository<T> {
      * @param function
      */
     <R> R tx(Transactional.TxType txType, Function<EntityManager, R> function);
+
+    /**
+     * Executes repository operations as a single unit of work: they share one transaction,
+     * writes are flushed together and committed once at the end of the outermost unit.
+     * Nested units of work and repository operations join the outer transaction.
+     * Queries inside the unit do not flush pending writes.
+     *
+     * By default the work is executed inside a REQUIRED transaction, implementations can override it to batch writes.
+     *
+     * @param work operations, receiving this repository
+     * @return work result
+     */
+    default <R> R inTransaction(Function<JpaRepository<T>, R> work) {
+        return tx(Transactional.TxType.REQUIRED, em -> work.apply(this));
+    }
+
+    /**
+     * Executes repository operations as a single unit of work, see inTransaction
+     *
+     * @param work operations, receiving this repository
+     */
+    default void unitOfWork(Consumer<JpaRepository<T>> work) {
+        inTransaction(repository -> {
+            work.accept(repository);
+            return null;
+        });
+    }
+
+    /**
+     * Runs the constraint validators of this repository on the entity, without writing it.
+     * Used when entities of this repository are written by a repository of the same persistence unit,
+     * for example extensions persisted together with their master entity.
+     * Implementations which cannot validate without writing keep this default: callers then write the entity
+     * through this repository instead.
+     *
+     * @param entity entity to validate
+     * @throws UnsupportedOperationException if constraints cannot be validated without writing the entity
+     */
+    default void validateConstraints(T entity) {
+        throw new UnsupportedOperationException("Constraint validation is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Finds an entity by natural key, the columns of one of the unique constraints declared on the entity table.
+     * Key based lookups are resolved through hibernate natural id resolution or by id, avoiding filter parsing.
+     * By default the entity is searched with an equality filter on each column, columns of relationships are named field_innerField.
+     *
+     * @param naturalKey column names and values of one unique constraint
+     */
+    default T findByNaturalKey(Map<String, Object> naturalKey) {
+        Query filter = null;
+        for (Map.Entry<String, Object> column : naturalKey.entrySet()) {
+            if (column.getValue() == null)
+                throw new IllegalArgumentException("Natural key column " + column.getKey() + " cannot be null");
+            Query condition = getQueryBuilderInstance().field(column.getKey().replaceFirst("_", ".")).equalTo(column.getValue());
+            filter = filter == null ? condition : filter.and(condition);
+        }
+        if (filter == null)
+            throw new IllegalArgumentException("Natural key cannot be empty");
+        return find(filter);
+    }
+
+    /**
+     * Finds an entity by a single column natural key, see findByNaturalKey
+     *
+     * @param column unique column
+     * @param value  column value
+     */
+    default T findByNaturalKey(String column, Object value) {
+        return findByNaturalKey(Collections.singletonMap(column, value));
+    }
+
+    /**
+     * Finds an entity by id loading the associations described by the fetch plan.
+     * By default the fetch plan is ignored and associations are loaded following their mapping.
+     *
+     * @param id
+     * @param fetchPlan
+     */
+    default T find(long id, FetchPlan fetchPlan) {
+        return find(id);
+    }
+
+    /**
+     * Finds an entity loading the associations described by the fetch plan, see find(id, fetchPlan)
+     *
+     * @param filter
+     * @param fetchPlan
+     */
+    default T find(Query filter, FetchPlan fetchPlan) {
+        return find(filter);
+    }
+
+    /**
+     * Finds entities loading the associations described by the fetch plan, see find(id, fetchPlan)
+     *
+     * @param delta
+     * @param page
+     * @param filter
+     * @param queryOrder
+     * @param fetchPlan
+     */
+    default PaginableResult<T> findAll(int delta, int page, Query filter, QueryOrder queryOrder, FetchPlan fetchPlan) {
+        return findAll(delta, page, filter, queryOrder);
+    }
 }
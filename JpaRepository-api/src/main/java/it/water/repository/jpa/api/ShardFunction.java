@@ -0,0 +1,55 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.api;
+
+import it.water.core.api.model.BaseEntity;
+
+import java.util.function.Function;
+
+/**
+ * @param <T> sharded entity
+ * @Author Aristide Cittadino
+ * Chooses the shard (persistence unit index) which stores an entity.
+ */
+public interface ShardFunction<T extends BaseEntity> {
+    int UNKNOWN_SHARD = -1;
+
+    /**
+     * @param entity     entity to save, it may not have an id yet
+     * @param shardCount number of shards
+     * @return index of the shard storing the entity
+     */
+    int shardOf(T entity, int shardCount);
+
+    /**
+     * @param id         entity id
+     * @param shardCount number of shards
+     * @return index of the shard storing the entity with the given id, UNKNOWN_SHARD if it cannot be derived from the id.
+     * When the shard is unknown, all shards are queried.
+     */
+    default int shardOf(long id, int shardCount) {
+        return UNKNOWN_SHARD;
+    }
+
+    /**
+     * @param shardKey extracts the sharding key from the entity, ex. the owner or tenant id
+     * @return shard function distributing entities by key hash
+     */
+    static <T extends BaseEntity> ShardFunction<T> byKey(Function<T, Object> shardKey) {
+        return (entity, shardCount) -> Math.floorMod(String.valueOf(shardKey.apply(entity)).hashCode(), shardCount);
+    }
+}
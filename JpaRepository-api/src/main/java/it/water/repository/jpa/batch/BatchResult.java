@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.batch;
+
+import it.water.core.api.model.BaseEntity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Author Aristide Cittadino
+ * Per row report of a batch write: each row is either written or rejected with the error which caused it.
+ */
+public class BatchResult<T extends BaseEntity> {
+    private final List<RowResult<T>> rows;
+
+    public BatchResult(int size) {
+        this.rows = new ArrayList<>(Collections.nCopies(size, null));
+    }
+
+    /**
+     * @param index  row position inside the batch
+     * @param entity written entity
+     */
+    public void written(int index, T entity) {
+        rows.set(index, new RowResult<>(index, entity, null));
+    }
+
+    /**
+     * @param index  row position inside the batch
+     * @param entity rejected entity
+     * @param error  cause
+     */
+    public void rejected(int index, T entity, RuntimeException error) {
+        rows.set(index, new RowResult<>(index, entity, error));
+    }
+
+    /**
+     * @return results in the same order of the batch rows
+     */
+    public List<RowResult<T>> getRows() {
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * @return written entities
+     */
+    public List<T> getWritten() {
+        return rows.stream().filter(RowResult::isWritten).map(RowResult::entity).toList();
+    }
+
+    /**
+     * @return rejected rows
+     */
+    public List<RowResult<T>> getRejected() {
+        return rows.stream().filter(row -> !row.isWritten()).toList();
+    }
+
+    /**
+     * @return true if all the rows have been written
+     */
+    public boolean isSuccessful() {
+        return rows.stream().allMatch(RowResult::isWritten);
+    }
+
+    /**
+     * @param index  row position inside the batch
+     * @param entity row entity
+     * @param error  rejection cause, null if the row has been written
+     */
+    public record RowResult<T extends BaseEntity>(int index, T entity, RuntimeException error) {
+        public boolean isWritten() {
+            return error == null;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.batch;
+
+import it.water.core.api.model.BaseEntity;
+import it.water.core.api.model.EntityExtension;
+import it.water.core.api.model.ExpandableEntity;
+import jakarta.persistence.EntityManager;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * @Author Aristide Cittadino
+ * Writes batch rows in chunks inside the current transaction, each chunk under a jdbc savepoint.
+ * When a chunk fails it is rolled back to its savepoint and bisected, until the offending rows are isolated and rejected.
+ * Queued inserts are executed directly through the hibernate action queue: a failed jpa flush would mark
+ * the whole transaction for rollback, while a savepoint rollback keeps the other chunks.
+ * Savepoints must be supported by the jdbc driver.
+ */
+public class SavepointBatchWriter<T extends BaseEntity> {
+    private static final Logger log = LoggerFactory.getLogger(SavepointBatchWriter.class);
+
+    private final EntityManager entityManager;
+    private final SessionImplementor session;
+    private final Consumer<T> rowWriter;
+    private final UnaryOperator<RuntimeException> errorTranslator;
+
+    /**
+     * @param entityManager   entity manager bound to the current transaction
+     * @param rowWriter       queues the row writes, without flushing them
+     * @param errorTranslator translates the errors of rejected rows
+     */
+    public SavepointBatchWriter(EntityManager entityManager, Consumer<T> rowWriter, UnaryOperator<RuntimeException> errorTranslator) {
+        this.entityManager = entityManager;
+        this.session = entityManager.unwrap(SessionImplementor.class);
+        this.rowWriter = rowWriter;
+        this.errorTranslator = errorTranslator;
+    }
+
+    /**
+     * @param entities  batch entities
+     * @param rows      indexes of the entities to write
+     * @param chunkSize rows written under the same savepoint
+     * @param result    report filled with the outcome of each row
+     */
+    public void write(List<T> entities, List<Integer> rows, int chunkSize, BatchResult<T> result) {
+        for (int from = 0; from < rows.size(); from += chunkSize)
+            writeChunk(entities, rows.subList(from, Math.min(from + chunkSize, rows.size())), result);
+    }
+
+    private void writeChunk(List<T> entities, List<Integer> rows, BatchResult<T> result) {
+        Savepoint savepoint = session.doReturningWork(Connection::setSavepoint);
+        try {
+            rows.forEach(row -> rowWriter.accept(entities.get(row)));
+            session.getActionQueue().executeActions();
+        } catch (RuntimeException e) {
+            session.doWork(connection -> connection.rollback(savepoint));
+            session.getActionQueue().clear();
+            rows.forEach(row -> reset(entities.get(row)));
+            if (rows.size() == 1) {
+                log.debug("Batch row {} rejected: {}", rows.get(0), e.getMessage());
+                result.rejected(rows.get(0), entities.get(rows.get(0)), errorTranslator.apply(e));
+                return;
+            }
+            int half = rows.size() / 2;
+            writeChunk(entities, rows.subList(0, half), result);
+            writeChunk(entities, rows.subList(half, rows.size()), result);
+            return;
+        }
+        releaseSavepoint(savepoint);
+        rows.forEach(row -> {
+            T entity = entities.get(row);
+            result.written(row, entity);
+            //written rows are detached, so the persistence context does not grow with the batch
+            detach(entity);
+            if (entity instanceof ExpandableEntity expandableEntity)
+                detach(expandableEntity.getExtension());
+        });
+    }
+
+    private void releaseSavepoint(Savepoint savepoint) {
+        session.doWork(connection -> {
+            try {
+                connection.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                //not supported by all drivers, savepoints are released anyway at the end of the transaction
+                log.debug("Savepoint not released: {}", e.getMessage());
+            }
+        });
+    }
+
+    private void detach(Object entity) {
+        if (entity != null && isManaged(entity) && entityManager.contains(entity))
+            entityManager.detach(entity);
+    }
+
+    /**
+     * Rows of a rolled back chunk are evicted and restored to their unsaved state, so they can be written again
+     *
+     * @param entity
+     */
+    private void reset(T entity) {
+        resetIdentifier(entity);
+        if (entity instanceof ExpandableEntity expandableEntity) {
+            EntityExtension extension = expandableEntity.getExtension();
+            if (extension != null && isManaged(extension))
+                resetIdentifier(extension);
+        }
+    }
+
+    private void resetIdentifier(Object entity) {
+        if (session.contains(entity))
+            session.evict(entity);
+        EntityPersister persister = session.getEntityPersister(null, entity);
+        persister.resetIdentifier(entity, persister.getIdentifier(entity, session), persister.getVersion(entity), session);
+    }
+
+    private boolean isManaged(Object entity) {
+        try {
+            entityManager.getMetamodel().entity(entity.getClass());
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author Aristide Cittadino
+ * Creates the shared executors used to run queries in background threads.
+ * Each background query holds a database connection, so the number of threads is bounded and should be kept
+ * below the connection pool size (water.repository.jpa.pool.maximum.size, default 10).
+ * Tasks are never queued: when all threads are busy the query is executed by the calling thread,
+ * so load is slowed down instead of exhausting the pool.
+ * Threads are daemon, so they never prevent the jvm from shutting down, and are released after one minute of inactivity.
+ * Executors should be created lazily, on first use, so the configuration is read only by applications running background queries.
+ */
+public class BoundedQueryExecutors {
+    private static final Logger log = LoggerFactory.getLogger(BoundedQueryExecutors.class);
+    public static final int DEFAULT_MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private BoundedQueryExecutors() {
+    }
+
+    /**
+     * @param threadName        name of the created threads
+     * @param maxThreadsProperty system property defining the maximum number of threads, DEFAULT_MAX_THREADS when missing or invalid
+     * @return the bounded executor
+     */
+    public static ExecutorService create(String threadName, String maxThreadsProperty) {
+        return new ThreadPoolExecutor(0, getMaxThreads(maxThreadsProperty), KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private static int getMaxThreads(String maxThreadsProperty) {
+        String value = System.getProperty(maxThreadsProperty);
+        if (value == null)
+            return DEFAULT_MAX_THREADS;
+        try {
+            int maxThreads = Integer.parseInt(value.trim());
+            if (maxThreads > 0)
+                return maxThreads;
+        } catch (NumberFormatException e) {
+            //falling back to default
+        }
+        log.warn("Invalid value {} for {}, it must be a number greater than 0, using {}", value, maxThreadsProperty, DEFAULT_MAX_THREADS);
+        return DEFAULT_MAX_THREADS;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.constraints;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * @Author Aristide Cittadino
+ * In memory Bloom filters of the unique keys of an entity, one for each @Table.uniqueConstraints.
+ * Filters are warmed by a streaming scan of the unique columns and updated on each write,
+ * so when a key is not contained the duplicate check query can be skipped.
+ * Negative answers are given only after warm up, and they only cover rows written by this jvm or found by the scan:
+ * rows written by other nodes are still rejected by the unique indexes.
+ * Keys written before or during a scan may belong to rows not yet committed, so they are never lost:
+ * filters receive writes since their creation and filters replaced by a rebuild are still consulted until the next rebuild,
+ * hence up to twice the memory budget can be used.
+ * It can be configured with persistence unit or system properties:
+ * <ul>
+ *     <li>water.repository.jpa.bloom.entities: comma separated entity class names (simple or fully qualified) or *</li>
+ *     <li>water.repository.jpa.bloom.memory.bytes: memory used by the filters of each entity (default 1MB)</li>
+ * </ul>
+ */
+public class DuplicateBloomFilter {
+    public static final String BLOOM_ENTITIES_PROPERTY = "water.repository.jpa.bloom.entities";
+    public static final String BLOOM_MEMORY_BYTES_PROPERTY = "water.repository.jpa.bloom.memory.bytes";
+    public static final long DEFAULT_MEMORY_BYTES = 1024L * 1024L;
+    private static final Logger log = LoggerFactory.getLogger(DuplicateBloomFilter.class);
+    private static final int SCAN_FETCH_SIZE = 1000;
+    private static final int MIN_EXPECTED_KEYS = 1024;
+    private static final int MAX_HASH_FUNCTIONS = 16;
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private final Class<?> type;
+    private final UniqueConstraint[] uniqueConstraints;
+    @Getter
+    private final long memoryBudgetBytes;
+    //filters receiving writes, used for negative answers after the first warm up
+    private volatile Filters current;
+    //filters replaced by the last rebuild, they can hold keys of rows not committed when the scan was executed
+    private volatile Filters previous;
+    private volatile boolean ready;
+
+    public DuplicateBloomFilter(Class<?> type, long memoryBudgetBytes) {
+        if (memoryBudgetBytes < Long.BYTES)
+            throw new IllegalArgumentException("Bloom filter memory budget must be at least " + Long.BYTES + " bytes");
+        this.type = type;
+        Table table = type.getAnnotation(Table.class);
+        this.uniqueConstraints = table != null ? table.uniqueConstraints() : new UniqueConstraint[0];
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        //writes executed before the first warm up are recorded too
+        this.current = createFilters(MIN_EXPECTED_KEYS);
+    }
+
+    /**
+     * @param type       entity type
+     * @param properties persistence unit properties, can be null
+     * @return true if the filter is enabled for the entity type
+     */
+    public static boolean isEnabledFor(Class<?> type, Map<?, ?> properties) {
+        String entities = getProperty(properties, BLOOM_ENTITIES_PROPERTY, "");
+        return Arrays.stream(entities.split(",")).map(String::trim)
+                .anyMatch(entity -> entity.equals("*") || entity.equals(type.getName()) || entity.equals(type.getSimpleName()));
+    }
+
+    /**
+     * @param properties persistence unit properties, can be null
+     * @return configured memory budget for each entity
+     */
+    public static long getMemoryBudget(Map<?, ?> properties) {
+        return Long.parseLong(getProperty(properties, BLOOM_MEMORY_BYTES_PROPERTY, String.valueOf(DEFAULT_MEMORY_BYTES)));
+    }
+
+    /**
+     * @return true when warm up has been completed and negative answers can be given
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @param constraintIndex index of the constraint inside @Table.uniqueConstraints
+     * @param entity          entity to check
+     * @return false only if the entity key is surely not present, true if it may be present or filters are not ready
+     */
+    public boolean mightContain(int constraintIndex, Object entity) {
+        if (!ready || constraintIndex >= uniqueConstraints.length)
+            return true;
+        String key = key(entity, uniqueConstraints[constraintIndex]);
+        Filters replaced = previous;
+        return current.filters[constraintIndex].mightContain(key) || (replaced != null && replaced.filters[constraintIndex].mightContain(key));
+    }
+
+    /**
+     * Adds the unique keys of a written entity
+     *
+     * @param entity
+     */
+    public void put(Object entity) {
+        String[] keys = new String[uniqueConstraints.length];
+        for (int i = 0; i < uniqueConstraints.length; i++)
+            keys[i] = key(entity, uniqueConstraints[i]);
+        Filters filters = current;
+        put(filters, keys);
+        //a rebuild replaced the filters meanwhile, keys must be in the filters which will be consulted
+        Filters latest;
+        while ((latest = current) != filters) {
+            filters = latest;
+            put(filters, keys);
+        }
+    }
+
+    private void put(Filters filters, String[] keys) {
+        for (int i = 0; i < keys.length; i++)
+            filters.filters[i].put(keys[i]);
+    }
+
+    /**
+     * Rebuilds the filters scanning the unique columns of all the rows.
+     * Until the first rebuild completes every key is considered as possibly present.
+     *
+     * @param entityManager entity manager used for the scan, it should not be bound to other threads
+     */
+    public synchronized void rebuild(EntityManager entityManager) {
+        if (uniqueConstraints.length == 0) {
+            ready = true;
+            return;
+        }
+        String entityName = entityManager.getMetamodel().entity(type).getName();
+        long rows = entityManager.createQuery("select count(e) from " + entityName + " e", Long.class).getSingleResult();
+        //room for the rows to come, so filters stay selective until the next rebuild
+        Filters building = createFilters(Math.max(MIN_EXPECTED_KEYS, rows * 2));
+        for (int i = 0; i < uniqueConstraints.length; i++)
+            scan(entityManager, entityName, uniqueConstraints[i], building.filters[i]);
+        //writes keep going to the replaced filters until the swap, which are still consulted afterwards
+        previous = current;
+        current = building;
+        ready = true;
+        log.debug("Bloom filters of {} rebuilt with {} rows", type.getName(), rows);
+    }
+
+    private Filters createFilters(long expectedKeys) {
+        if (uniqueConstraints.length == 0)
+            return new Filters(new BitFilter[0]);
+        long bitsPerConstraint = Math.max(Long.SIZE, memoryBudgetBytes * Byte.SIZE / uniqueConstraints.length);
+        int hashFunctions = (int) Math.max(1, Math.min(MAX_HASH_FUNCTIONS, Math.round((double) bitsPerConstraint / expectedKeys * Math.log(2))));
+        BitFilter[] bitFilters = new BitFilter[uniqueConstraints.length];
+        for (int i = 0; i < bitFilters.length; i++)
+            bitFilters[i] = new BitFilter(bitsPerConstraint, hashFunctions);
+        return new Filters(bitFilters);
+    }
+
+    private void scan(EntityManager entityManager, String entityName, UniqueConstraint uniqueConstraint, BitFilter filter) {
+        String[] columnNames = uniqueConstraint.columnNames();
+        String select = Arrays.stream(columnNames).map(column -> "e." + column.replaceFirst("_", ".")).collect(Collectors.joining(","));
+        try (Stream<?> rows = entityManager.createQuery("select " + select + " from " + entityName + " e", Object.class)
+                .setHint("org.hibernate.fetchSize", SCAN_FETCH_SIZE)
+                .setHint("org.hibernate.readOnly", true)
+                .getResultStream()) {
+            rows.forEach(row -> filter.put(row instanceof Object[] values ? key(values) : key(new Object[]{row})));
+        }
+    }
+
+    private String key(Object entity, UniqueConstraint uniqueConstraint) {
+        String[] columnNames = uniqueConstraint.columnNames();
+        Object[] values = new Object[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++)
+            values[i] = DuplicateConstraintValidator.readColumnValue(entity, columnNames[i]);
+        return key(values);
+    }
+
+    private static String key(Object[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (Object value : values)
+            sb.append(normalize(value)).append(KEY_SEPARATOR);
+        return sb.toString();
+    }
+
+    /**
+     * Values read from entities and from queries must produce the same key
+     */
+    private static String normalize(Object value) {
+        if (value == null)
+            return "\u0001";
+        if (value instanceof Date date)
+            return String.valueOf(date.getTime());
+        if (value instanceof BigDecimal decimal)
+            return decimal.stripTrailingZeros().toPlainString();
+        if (value instanceof Enum<?> enumValue)
+            return enumValue.name();
+        return value.toString();
+    }
+
+    private static String getProperty(Map<?, ?> properties, String key, String defaultValue) {
+        Object value = properties != null ? properties.get(key) : null;
+        return value != null ? value.toString().trim() : System.getProperty(key, defaultValue);
+    }
+
+    private record Filters(BitFilter[] filters) {
+    }
+
+    /**
+     * Thread safe bit set with double hashing
+     */
+    private static class BitFilter {
+        private final AtomicLongArray bits;
+        private final long size;
+        private final int hashFunctions;
+
+        BitFilter(long size, int hashFunctions) {
+            int words = (int) Math.min(Integer.MAX_VALUE, (size + Long.SIZE - 1) / Long.SIZE);
+            this.bits = new AtomicLongArray(words);
+            this.size = (long) words * Long.SIZE;
+            this.hashFunctions = hashFunctions;
+        }
+
+        void put(String key) {
+            long hash1 = hash(key, 0xcbf29ce484222325L);
+            long hash2 = hash(key, 0x84222325cbf29ce4L) | 1;
+            for (int i = 0; i < hashFunctions; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, size);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value = bits.get(word);
+                while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask))
+                    value = bits.get(word);
+            }
+        }
+
+        boolean mightContain(String key) {
+            long hash1 = hash(key, 0xcbf29ce484222325L);
+            long hash2 = hash(key, 0x84222325cbf29ce4L) | 1;
+            for (int i = 0; i < hashFunctions; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, size);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * fnv-1a with a final 64 bit mix
+         */
+        private static long hash(String key, long seed) {
+            long hash = seed;
+            for (int i = 0; i < key.length(); i++) {
+                hash ^= key.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
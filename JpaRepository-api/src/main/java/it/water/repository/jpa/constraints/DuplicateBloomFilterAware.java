@@ -0,0 +1,29 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.constraints;
+
+/**
+ * @Author Aristide Cittadino
+ * Implemented by repositories which keep a Bloom filter of their unique keys, used by DuplicateConstraintValidator
+ * to skip the duplicate check queries of keys which are surely not present.
+ */
+public interface DuplicateBloomFilterAware {
+    /**
+     * @return the bloom filter, null if not enabled
+     */
+    DuplicateBloomFilter getDuplicateBloomFilter();
+}
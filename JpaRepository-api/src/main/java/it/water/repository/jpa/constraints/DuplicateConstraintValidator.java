@@ -20,6 +20,7 @@ package it.water.repository.jpa.constraints;
 import it.water.core.api.model.BaseEntity;
 import it.water.core.api.repository.BaseRepository;
 import it.water.core.api.repository.RepositoryConstraintValidator;
+import it.water.core.api.repository.query.Query;
 import it.water.repository.entity.model.exceptions.DuplicateEntityException;
 import jakarta.persistence.NoResultException;
 import jakarta.persistence.Table;
@@ -27,7 +28,8 @@ import jakarta.persistence.UniqueConstraint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Method;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 
 /**
@@ -45,11 +47,24 @@ public class DuplicateConstraintValidator implements RepositoryConstraintValidat
      */
     @Override
     public <T extends BaseEntity> void checkConstraint(T entity, Class<T> type, BaseRepository<T> entityRepository) {
+        checkConstraint(entity, type, entityRepository, uniqueConstraint -> true);
+    }
+
+    /**
+     * Checks only the unique constraints accepted by the filter, for example the ones whose columns changed
+     *
+     * @param entity
+     * @param type
+     * @param entityRepository
+     * @param constraintFilter
+     * @param <T>
+     */
+    public <T extends BaseEntity> void checkConstraint(T entity, Class<T> type, BaseRepository<T> entityRepository, Predicate<UniqueConstraint> constraintFilter) {
         log.debug("Checking duplicates for entity {}", type.getName());
         Table[] tableAnnotation = entity.getClass().getAnnotationsByType(Table.class);
         if (tableAnnotation != null && tableAnnotation.length > 0) {
             UniqueConstraint[] uniqueConstraints = tableAnnotation[0].uniqueConstraints();
-            processUniqueContraints(uniqueConstraints, entity, type, entityRepository);
+            processUniqueContraints(uniqueConstraints, entity, type, entityRepository, constraintFilter);
         }
     }
 
@@ -58,14 +73,28 @@ public class DuplicateConstraintValidator implements RepositoryConstraintValidat
      * @param entity
      * @param type
      * @param entityRepository
+     * @param constraintFilter
      * @param <T>
      */
-    private <T extends BaseEntity> void processUniqueContraints(UniqueConstraint[] uniqueConstraints, T entity, Class<T> type, BaseRepository<T> entityRepository) {
+    private <T extends BaseEntity> void processUniqueContraints(UniqueConstraint[] uniqueConstraints, T entity, Class<T> type, BaseRepository<T> entityRepository, Predicate<UniqueConstraint> constraintFilter) {
         if (uniqueConstraints != null && uniqueConstraints.length > 0) {
+            DuplicateBloomFilter bloomFilter = entityRepository instanceof DuplicateBloomFilterAware aware ? aware.getDuplicateBloomFilter() : null;
             for (int i = 0; i < uniqueConstraints.length; i++) {
                 String[] columnNames = uniqueConstraints[i].columnNames();
-                String filter = createQueryFilter(entity, columnNames, type);
-                log.debug("Executing the query with parameters: {}", filter);
+                if (!constraintFilter.test(uniqueConstraints[i])) {
+                    log.debug("Unique constraint {} not changed, check skipped", String.join(",", columnNames));
+                    continue;
+                }
+                if (bloomFilter != null && !bloomFilter.mightContain(i, entity)) {
+                    log.debug("Unique key not present in bloom filter, duplicate check query skipped");
+                    continue;
+                }
+                Query filter = createQueryFilter(entity, columnNames, entityRepository);
+                if (filter == null) {
+                    log.debug("Unique constraint {} has null values, check skipped", String.join(",", columnNames));
+                    continue;
+                }
+                log.debug("Executing the query with parameters: {}", filter.getDefinition());
                 try {
                     T result = entityRepository.find(filter);
                     // if the entity has not the same id than it's duplicated
@@ -79,82 +108,74 @@ public class DuplicateConstraintValidator implements RepositoryConstraintValidat
     }
 
     /**
-     * @param entity      Current entity
-     * @param columnNames list of unique column names
-     * @param type        entity type
-     * @param <T>         Entity which is an WaterBaseEntity
-     * @return Query to check wheter duplicate entity exists or not
+     * Reads the value of a unique column, columns with "_" are relationships (field_innerField)
+     *
+     * @param entity
+     * @param columnName
+     * @return column value, null if the value or the related entity is null
      */
-    private <T extends BaseEntity> String createQueryFilter(T entity, String[] columnNames, Class<T> type) {
-        log.debug("Creating query filter...");
-        StringBuilder filterQueryBuilder = new StringBuilder();
-        for (int j = 0; j < columnNames.length; j++) {
-            String fieldName = columnNames[j];
-            String innerField = null;
-            // Field is a relationship, so we need to do 2 invocations
-            if (fieldName.contains("_")) {
-                String temp = fieldName;
-                fieldName = fieldName.substring(0, fieldName.indexOf("_"));
-                innerField = temp.substring(temp.indexOf("_") + 1);
-            }
+    public static Object readColumnValue(Object entity, String columnName) {
+        return readColumnValue(fieldName -> invokeGetter(entity, fieldName), columnName);
+    }
 
-            String getterMethod = "get" + fieldName.substring(0, 1).toUpperCase()
-                    + fieldName.substring(1);
-            boolean isFirstCondition = j == 0;
-            appendCondition(isFirstCondition, entity, type, fieldName, innerField, getterMethod, filterQueryBuilder);
+    /**
+     * @param fieldReader reads the value of an entity field, for example from a loaded state
+     * @param columnName
+     * @return column value, null if the value or the related entity is null
+     */
+    public static Object readColumnValue(Function<String, Object> fieldReader, String columnName) {
+        String fieldName = columnName;
+        String innerField = null;
+        if (fieldName.contains("_")) {
+            fieldName = columnName.substring(0, columnName.indexOf("_"));
+            innerField = columnName.substring(columnName.indexOf("_") + 1);
+        }
+        Object value = fieldReader.apply(fieldName);
+        if (innerField != null && value != null)
+            value = invokeGetter(value, innerField);
+        return value;
+    }
+
+    private static Object invokeGetter(Object target, String fieldName) {
+        try {
+            return target.getClass().getMethod(getterName(fieldName)).invoke(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Impossible to read field " + fieldName + " on " + target.getClass().getName(), e);
         }
-        return filterQueryBuilder.toString();
+    }
+
+    private static String getterName(String fieldName) {
+        return "get" + fieldName.substring(0, 1).toUpperCase() + fieldName.substring(1);
     }
 
     /**
-     * @param isFirstCondition
-     * @param entity
-     * @param type
-     * @param fieldName
-     * @param innerField
-     * @param getterMethodName
-     * @param filterQueryBuilder
-     * @param <T>
+     * Builds the filter directly with the query builder of the repository, so it is not parsed on every write
+     *
+     * @param entity           Current entity
+     * @param columnNames      list of unique column names
+     * @param entityRepository repository
+     * @param <T>              Entity which is an WaterBaseEntity
+     * @return Query to check wheter duplicate entity exists or not, null when a column value is null or no column can be read
      */
-    private <T extends BaseEntity> void appendCondition(boolean isFirstCondition, T entity, Class<T> type, String fieldName, String innerField, String getterMethodName, StringBuilder filterQueryBuilder) {
-        try {
-            Method m = type.getMethod(getterMethodName);
-            Object value = null;
-            // when inner field is null, the relative getter is invoked on the
-            // target entity
-            if (innerField == null)
-                value = m.invoke(entity);
-                // when inner field is != null then, the getter method is called on the
-                // related
-                // entity
-            else {
-                String getterInnerMethod = "get"
-                        + innerField.substring(0, 1).toUpperCase()
-                        + innerField.substring(1);
-                Object innerEntity = m.invoke(entity);
-                if (innerEntity != null) {
-                    Method innerMethod = innerEntity.getClass()
-                            .getMethod(getterInnerMethod);
-                    value = innerMethod.invoke(innerEntity);
-                } else {
-                    value = null;
-                }
-            }
-            // append only if innerMethod succeed
-            if (!isFirstCondition)
-                filterQueryBuilder.append(" AND ");
-            if (innerField == null) {
-                filterQueryBuilder.append(fieldName).append("=").append(value);
-            } else {
-                if (value != null) {
-                    filterQueryBuilder.append(fieldName).append(".").append(innerField).append("=")
-                            .append(value);
-                } else {
-                    filterQueryBuilder.append(fieldName).append(".").append(innerField).append(" = null");
-                }
+    private <T extends BaseEntity> Query createQueryFilter(T entity, String[] columnNames, BaseRepository<T> entityRepository) {
+        log.debug("Creating query filter...");
+        Query filter = null;
+        for (String columnName : columnNames) {
+            Object value;
+            try {
+                value = readColumnValue(entity, columnName);
+            } catch (IllegalArgumentException e) {
+                //only the unreadable column is left out, the other columns still identify duplicates
+                log.error("Impossible to read column {} on {}, column is not checked", columnName, entity.getClass().getName());
+                continue;
             }
-        } catch (Exception e) {
-            log.error("Impossible to find getter method {} on {}", getterMethodName, type.getName());
+            //null values never violate unique constraints
+            if (value == null)
+                return null;
+            // Field is a relationship: field_innerField
+            Query condition = entityRepository.getQueryBuilderInstance().field(columnName.replaceFirst("_", ".")).equalTo(value);
+            filter = filter == null ? condition : filter.and(condition);
         }
+        return filter;
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.constraints;
+
+import it.water.core.api.model.BaseEntity;
+import it.water.core.model.exceptions.WaterRuntimeException;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Root;
+import org.hibernate.NaturalIdLoadAccess;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.metamodel.mapping.NaturalIdMapping;
+import org.hibernate.metamodel.mapping.SingularAttributeMapping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * @Author Aristide Cittadino
+ * Resolves entities by natural key, a natural key is the set of attributes mapped with hibernate @NaturalId
+ * or the set of columns of one of the unique constraints declared with @Table.
+ * When the key matches the @NaturalId attributes the lookup is delegated to hibernate natural id resolution
+ * (bySimpleNaturalId for single attribute keys), which uses the persistence context and the natural id cache when configured.
+ * Otherwise, as fallback for unique constraints without @NaturalId, resolved ids are kept in a bounded LRU map,
+ * so the following lookups are executed by id (persistence context and second level cache).
+ * Entities loaded from the map are checked against the requested key, so updates and removals never return stale results.
+ * The map size can be configured with water.repository.jpa.naturalid.cache.size (default 10000) inside persistence unit properties or as system property.
+ */
+public class NaturalKeyLookup<T extends BaseEntity> {
+    public static final String NATURAL_ID_CACHE_SIZE_PROPERTY = "water.repository.jpa.naturalid.cache.size";
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private final Class<T> type;
+    private final UniqueConstraint[] uniqueConstraints;
+    private final int cacheSize;
+    private final Map<List<Object>, Long> idsByNaturalKey;
+    private volatile Set<String> naturalIdAttributes;
+
+    public NaturalKeyLookup(Class<T> type, Map<?, ?> properties) {
+        this.type = type;
+        Table table = type.getAnnotation(Table.class);
+        this.uniqueConstraints = table != null ? table.uniqueConstraints() : new UniqueConstraint[0];
+        Object value = properties != null ? properties.get(NATURAL_ID_CACHE_SIZE_PROPERTY) : null;
+        if (value == null)
+            value = System.getProperty(NATURAL_ID_CACHE_SIZE_PROPERTY);
+        this.cacheSize = value != null ? Integer.parseInt(value.toString().trim()) : DEFAULT_CACHE_SIZE;
+        this.idsByNaturalKey = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Long> eldest) {
+                return size() > NaturalKeyLookup.this.cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @param naturalKey column values of one unique constraint
+     * @param em         entity manager
+     * @return the managed entity, null if not found
+     */
+    public T load(Map<String, Object> naturalKey, EntityManager em) {
+        if (getNaturalIdAttributes(em).equals(naturalKey.keySet()))
+            return loadByNaturalId(naturalKey, em);
+        int constraintIndex = constraintOf(naturalKey);
+        String[] columnNames = uniqueConstraints[constraintIndex].columnNames();
+        List<Object> cacheKey = new ArrayList<>(columnNames.length + 1);
+        cacheKey.add(constraintIndex);
+        Arrays.stream(columnNames).forEach(column -> cacheKey.add(naturalKey.get(column)));
+        Long id;
+        synchronized (idsByNaturalKey) {
+            id = idsByNaturalKey.get(cacheKey);
+        }
+        if (id != null) {
+            T entity = em.find(type, id);
+            if (entity != null && matches(entity, naturalKey))
+                return entity;
+            synchronized (idsByNaturalKey) {
+                idsByNaturalKey.remove(cacheKey);
+            }
+        }
+        T entity = query(naturalKey, em);
+        if (entity != null && cacheSize > 0) {
+            synchronized (idsByNaturalKey) {
+                idsByNaturalKey.put(cacheKey, entity.getId());
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * @return number of resolved natural keys kept in memory
+     */
+    public int size() {
+        synchronized (idsByNaturalKey) {
+            return idsByNaturalKey.size();
+        }
+    }
+
+    private int constraintOf(Map<String, Object> naturalKey) {
+        for (int i = 0; i < uniqueConstraints.length; i++) {
+            if (new HashSet<>(Arrays.asList(uniqueConstraints[i].columnNames())).equals(naturalKey.keySet()))
+                return i;
+        }
+        throw new WaterRuntimeException("Columns " + naturalKey.keySet() + " are not a unique constraint of " + type.getName());
+    }
+
+    private T loadByNaturalId(Map<String, Object> naturalKey, EntityManager em) {
+        Session session = em.unwrap(Session.class);
+        if (naturalKey.size() == 1)
+            return session.bySimpleNaturalId(type).load(naturalKey.values().iterator().next());
+        NaturalIdLoadAccess<T> naturalIdLoadAccess = session.byNaturalId(type);
+        naturalKey.forEach(naturalIdLoadAccess::using);
+        return naturalIdLoadAccess.load();
+    }
+
+    private T query(Map<String, Object> naturalKey, EntityManager em) {
+        CriteriaBuilder criteriaBuilder = em.getCriteriaBuilder();
+        CriteriaQuery<T> query = criteriaBuilder.createQuery(type);
+        Root<T> root = query.from(type);
+        query.select(root).where(naturalKey.entrySet().stream().map(column -> {
+            Path<Object> path = columnPath(root, column.getKey());
+            return column.getValue() != null ? criteriaBuilder.equal(path, column.getValue()) : criteriaBuilder.isNull(path);
+        }).toArray(jakarta.persistence.criteria.Predicate[]::new));
+        List<T> results = em.createQuery(query).setMaxResults(1).getResultList();
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    //same convention of the duplicate validator: field_innerField
+    private Path<Object> columnPath(Root<T> root, String columnName) {
+        int separator = columnName.indexOf("_");
+        if (separator < 0)
+            return root.get(columnName);
+        return root.get(columnName.substring(0, separator)).get(columnName.substring(separator + 1));
+    }
+
+    private boolean matches(T entity, Map<String, Object> naturalKey) {
+        return naturalKey.entrySet().stream()
+                .allMatch(column -> Objects.equals(DuplicateConstraintValidator.readColumnValue(entity, column.getKey()), column.getValue()));
+    }
+
+    private Set<String> getNaturalIdAttributes(EntityManager em) {
+        if (naturalIdAttributes == null) {
+            NaturalIdMapping naturalIdMapping = em.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class)
+                    .getMappingMetamodel().getEntityDescriptor(type).getNaturalIdMapping();
+            naturalIdAttributes = naturalIdMapping == null ? Collections.emptySet() : naturalIdMapping.getNaturalIdAttributes().stream()
+                    .map(SingularAttributeMapping::getAttributeName).collect(Collectors.toSet());
+        }
+        return naturalIdAttributes;
+    }
+}
@@ -23,7 +23,9 @@ import it.water.core.api.repository.RepositoryConstraintValidator;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
 
 
 /**
@@ -45,4 +47,24 @@ public class RepositoryConstraintValidatorsManager {
     public <T extends BaseEntity> void runCheck(T entity, Class<T> type, BaseRepository<T> repo) {
         checkers.stream().forEach(checker -> checker.checkConstraint(entity, type, repo));
     }
+
+    /**
+     * Runs only the validators accepted by the filter
+     *
+     * @param entity
+     * @param type
+     * @param repo
+     * @param filter
+     */
+    public <T extends BaseEntity> void runCheck(T entity, Class<T> type, BaseRepository<T> repo, Predicate<RepositoryConstraintValidator> filter) {
+        checkers.stream().filter(filter).forEach(checker -> checker.checkConstraint(entity, type, repo));
+    }
+
+    /**
+     * @param checkerType
+     * @return validators of the given type
+     */
+    public <V extends RepositoryConstraintValidator> List<V> getCheckers(Class<V> checkerType) {
+        return checkers.stream().filter(checkerType::isInstance).map(checkerType::cast).toList();
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.constraints;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.UniqueConstraint;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * @Author Aristide Cittadino
+ * Detects which unique constraints of an updated entity have changed columns,
+ * comparing the entity against the state loaded from the database.
+ */
+public class UniqueConstraintChanges {
+
+    private UniqueConstraintChanges() {
+    }
+
+    /**
+     * @param entityManager entity manager of the update
+     * @param entity        updated entity
+     * @param entityFromDb  the same entity loaded by the entity manager, null if not found
+     * @return filter accepting the unique constraints whose columns changed, all of them when the previous state is unknown
+     */
+    public static Predicate<UniqueConstraint> changedConstraints(EntityManager entityManager, Object entity, Object entityFromDb) {
+        if (entityFromDb == null)
+            return uniqueConstraint -> true;
+        //previous state is the hibernate dirty tracking snapshot of the managed instance
+        EntityEntry entry = entityManager.unwrap(SessionImplementor.class).getPersistenceContextInternal().getEntry(entityFromDb);
+        Function<String, Object> previousFieldReader;
+        if (entry != null && entry.getLoadedState() != null)
+            previousFieldReader = entry::getLoadedValue;
+        else if (entityFromDb != entity)
+            previousFieldReader = fieldName -> DuplicateConstraintValidator.readColumnValue(entityFromDb, fieldName);
+        else
+            return uniqueConstraint -> true;
+        return uniqueConstraint -> Arrays.stream(uniqueConstraint.columnNames())
+                .anyMatch(column -> !Objects.equals(DuplicateConstraintValidator.readColumnValue(entity, column), DuplicateConstraintValidator.readColumnValue(previousFieldReader, column)));
+    }
+}
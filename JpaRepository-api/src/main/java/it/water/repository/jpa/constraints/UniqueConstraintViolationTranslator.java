@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.constraints;
+
+import it.water.repository.entity.model.exceptions.DuplicateEntityException;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import org.hibernate.exception.ConstraintViolationException;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * @Author Aristide Cittadino
+ * Translates unique index violations raised by the database into DuplicateEntityException,
+ * reporting the columns of the violated @Table.uniqueConstraints.
+ * The violated constraint is resolved by constraint name, so naming unique constraints gives exact columns.
+ * Otherwise it is the only declared constraint, or the one whose columns are reported in the database message,
+ * falling back to all the unique columns of the entity.
+ */
+public class UniqueConstraintViolationTranslator {
+    private static final String UNIQUE_VIOLATION_SQL_STATE = "23505";
+    //mysql/mariadb, oracle and sql server unique violation error codes, reported with generic 23000 sql state
+    private static final Set<Integer> UNIQUE_VIOLATION_ERROR_CODES = Set.of(1062, 1, 2627, 2601);
+
+    private UniqueConstraintViolationTranslator() {
+    }
+
+    /**
+     * @param e    exception raised while writing the entity
+     * @param type entity type
+     * @return a DuplicateEntityException if e is caused by a unique violation on a constraint of the entity, e otherwise
+     */
+    public static RuntimeException translate(RuntimeException e, Class<?> type) {
+        ConstraintViolationException violation = findConstraintViolation(e);
+        if (violation == null || !isUniqueViolation(violation))
+            return e;
+        UniqueConstraint[] uniqueConstraints = getUniqueConstraints(type);
+        if (uniqueConstraints.length == 0)
+            return e;
+        String[] columnNames = resolveColumnNames(uniqueConstraints, violation);
+        DuplicateEntityException duplicateEntityException = new DuplicateEntityException(columnNames);
+        try {
+            duplicateEntityException.initCause(e);
+        } catch (IllegalStateException ignore) {
+            //cause already defined by the exception
+        }
+        return duplicateEntityException;
+    }
+
+    private static ConstraintViolationException findConstraintViolation(Throwable e) {
+        Throwable current = e;
+        while (current != null) {
+            if (current instanceof ConstraintViolationException constraintViolationException)
+                return constraintViolationException;
+            current = current.getCause() != current ? current.getCause() : null;
+        }
+        return null;
+    }
+
+    private static boolean isUniqueViolation(ConstraintViolationException violation) {
+        SQLException sqlException = violation.getSQLException();
+        if (sqlException == null)
+            return false;
+        return UNIQUE_VIOLATION_SQL_STATE.equals(sqlException.getSQLState()) || ("23000".equals(sqlException.getSQLState()) && UNIQUE_VIOLATION_ERROR_CODES.contains(sqlException.getErrorCode()));
+    }
+
+    private static UniqueConstraint[] getUniqueConstraints(Class<?> type) {
+        Table table = type.getAnnotation(Table.class);
+        return table != null ? table.uniqueConstraints() : new UniqueConstraint[0];
+    }
+
+    private static String[] resolveColumnNames(UniqueConstraint[] uniqueConstraints, ConstraintViolationException violation) {
+        String constraintName = violation.getConstraintName();
+        if (constraintName != null) {
+            String normalizedName = constraintName.toLowerCase(Locale.ROOT);
+            for (UniqueConstraint uniqueConstraint : uniqueConstraints) {
+                String name = uniqueConstraint.name().toLowerCase(Locale.ROOT);
+                //some databases qualify the name with the table (eg. mysql table.constraint)
+                if (!name.isEmpty() && (normalizedName.equals(name) || normalizedName.endsWith("." + name)))
+                    return uniqueConstraint.columnNames();
+            }
+        }
+        if (uniqueConstraints.length == 1)
+            return uniqueConstraints[0].columnNames();
+        String message = collectMessages(violation);
+        UniqueConstraint reported = null;
+        for (UniqueConstraint uniqueConstraint : uniqueConstraints) {
+            //the widest matching constraint, since columns of a combined constraint may include the ones of another
+            if (containsAllColumns(message, uniqueConstraint.columnNames()) && (reported == null || reported.columnNames().length < uniqueConstraint.columnNames().length))
+                reported = uniqueConstraint;
+        }
+        if (reported != null)
+            return reported.columnNames();
+        Set<String> allColumns = new LinkedHashSet<>();
+        Arrays.stream(uniqueConstraints).forEach(uniqueConstraint -> allColumns.addAll(Arrays.asList(uniqueConstraint.columnNames())));
+        return allColumns.toArray(new String[0]);
+    }
+
+    private static boolean containsAllColumns(String message, String[] columnNames) {
+        return Arrays.stream(columnNames).allMatch(column -> Pattern.compile("\\b" + Pattern.quote(column.toLowerCase(Locale.ROOT)) + "\\b").matcher(message).find());
+    }
+
+    private static String collectMessages(Throwable e) {
+        StringBuilder sb = new StringBuilder();
+        Throwable current = e;
+        while (current != null) {
+            if (current.getMessage() != null)
+                sb.append(current.getMessage().toLowerCase(Locale.ROOT)).append(' ');
+            if (current instanceof SQLException sqlException && sqlException.getNextException() != null && sqlException.getNextException().getMessage() != null)
+                sb.append(sqlException.getNextException().getMessage().toLowerCase(Locale.ROOT)).append(' ');
+            current = current.getCause() != current ? current.getCause() : null;
+        }
+        return sb.toString();
+    }
+}
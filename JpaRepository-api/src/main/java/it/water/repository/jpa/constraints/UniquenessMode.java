@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.constraints;
+
+import java.util.Map;
+
+/**
+ * @Author Aristide Cittadino
+ * Defines how unique constraints declared with @Table.uniqueConstraints are enforced on persist and update.
+ * It can be configured with the property water.repository.jpa.uniqueness.mode (check, database)
+ * inside persistence unit properties or as system property. Default is check.
+ * <ul>
+ *     <li>check: a query for each unique constraint is executed before writing (DuplicateConstraintValidator)</li>
+ *     <li>database: no query is executed, unique indexes violations are translated into DuplicateEntityException</li>
+ * </ul>
+ */
+public enum UniquenessMode {
+    CHECK("check"), DATABASE("database");
+
+    public static final String UNIQUENESS_MODE_PROPERTY = "water.repository.jpa.uniqueness.mode";
+
+    private final String value;
+
+    UniquenessMode(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @param properties persistence unit properties, can be null
+     * @return uniqueness mode defined in properties, or in system properties, check otherwise
+     */
+    public static UniquenessMode fromProperties(Map<?, ?> properties) {
+        Object value = properties != null ? properties.get(UNIQUENESS_MODE_PROPERTY) : null;
+        if (value == null)
+            value = System.getProperty(UNIQUENESS_MODE_PROPERTY, CHECK.value);
+        for (UniquenessMode uniquenessMode : values()) {
+            if (uniquenessMode.value.equalsIgnoreCase(value.toString().trim()))
+                return uniquenessMode;
+        }
+        throw new IllegalArgumentException("Invalid uniqueness mode: " + value + ", allowed values are check, database");
+    }
+}
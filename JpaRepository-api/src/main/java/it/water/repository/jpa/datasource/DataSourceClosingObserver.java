@@ -0,0 +1,49 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.datasource;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.SessionFactoryObserver;
+
+/**
+ * @Author Aristide Cittadino
+ * Releases the pooled DataSource of an entity manager factory when that factory is closed,
+ * so a pool is never closed while the factory using it is still open.
+ * It is registered as hibernate.session_factory_observer inside persistence unit properties.
+ */
+public class DataSourceClosingObserver implements SessionFactoryObserver {
+    public static final String HIBERNATE_SESSION_FACTORY_OBSERVER = "hibernate.session_factory_observer";
+
+    private final transient Runnable onClose;
+
+    /**
+     * @param onClose closes the DataSource, invoked once after the session factory has been closed
+     */
+    public DataSourceClosingObserver(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    @Override
+    public void sessionFactoryCreated(SessionFactory factory) {
+        //nothing to do, the DataSource is already in use
+    }
+
+    @Override
+    public void sessionFactoryClosed(SessionFactory factory) {
+        onClose.run();
+    }
+}
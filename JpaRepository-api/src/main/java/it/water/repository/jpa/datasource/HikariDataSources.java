@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.datasource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import javax.sql.DataSource;
+import java.util.Properties;
+
+import static it.water.repository.jpa.datasource.PooledDataSourceFactory.*;
+
+/**
+ * @Author Aristide Cittadino
+ * HikariCP specific code, kept apart so it is loaded only when HikariCP is available.
+ */
+class HikariDataSources {
+
+    private HikariDataSources() {
+    }
+
+    static DataSource create(String poolName, String driver, String url, String user, String password, Properties properties) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(poolName);
+        if (driver != null)
+            config.setDriverClassName(driver);
+        config.setJdbcUrl(url);
+        config.setUsername(user);
+        config.setPassword(password);
+        int maximumSize = Integer.parseInt(getProperty(properties, POOL_MAXIMUM_SIZE_PROPERTY, "10"));
+        config.setMaximumPoolSize(maximumSize);
+        //few idle connections by default, so many persistence units do not keep a full pool open each
+        config.setMinimumIdle(Integer.parseInt(getProperty(properties, POOL_MINIMUM_IDLE_PROPERTY, String.valueOf(Math.min(DEFAULT_MINIMUM_IDLE, maximumSize)))));
+        config.setConnectionTimeout(Long.parseLong(getProperty(properties, POOL_CONNECTION_TIMEOUT_PROPERTY, "30000")));
+        config.setIdleTimeout(Long.parseLong(getProperty(properties, POOL_IDLE_TIMEOUT_PROPERTY, "600000")));
+        config.setMaxLifetime(Long.parseLong(getProperty(properties, POOL_MAX_LIFETIME_PROPERTY, "1800000")));
+        config.setLeakDetectionThreshold(Long.parseLong(getProperty(properties, POOL_LEAK_DETECTION_THRESHOLD_PROPERTY, "0")));
+        config.setRegisterMbeans(Boolean.parseBoolean(getProperty(properties, POOL_JMX_PROPERTY, "false")));
+        int statementCacheSize = Integer.parseInt(getProperty(properties, POOL_STATEMENT_CACHE_SIZE_PROPERTY, "250"));
+        if (statementCacheSize > 0) {
+            //statement caching is done by jdbc drivers, unknown properties are ignored by the other drivers
+            String sqlLimit = getProperty(properties, POOL_STATEMENT_CACHE_SQL_LIMIT_PROPERTY, "2048");
+            //mysql and mariadb
+            config.addDataSourceProperty("cachePrepStmts", "true");
+            config.addDataSourceProperty("prepStmtCacheSize", String.valueOf(statementCacheSize));
+            config.addDataSourceProperty("prepStmtCacheSqlLimit", sqlLimit);
+            //postgresql
+            config.addDataSourceProperty("preparedStatementCacheQueries", String.valueOf(statementCacheSize));
+        }
+        return new HikariDataSource(config);
+    }
+
+    static PoolMetrics getPoolMetrics(DataSource dataSource) {
+        HikariPoolMXBean pool = ((HikariDataSource) dataSource).getHikariPoolMXBean();
+        if (pool == null)
+            return null;
+        return new PoolMetrics(pool.getActiveConnections(), pool.getIdleConnections(), pool.getTotalConnections(), pool.getThreadsAwaitingConnection());
+    }
+}
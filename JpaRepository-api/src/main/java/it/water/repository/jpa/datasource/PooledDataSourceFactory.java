@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.datasource;
+
+import javax.sql.DataSource;
+import java.util.Properties;
+
+/**
+ * @Author Aristide Cittadino
+ * Creates the pooled DataSource used by default entity manager factories, based on HikariCP.
+ * HikariCP is optional: when it is not available, isAvailable returns false and the persistence provider pool is used.
+ * Pool can be configured with persistence unit or system properties:
+ * <ul>
+ *     <li>water.repository.jpa.pool.enabled: true (default) or false</li>
+ *     <li>water.repository.jpa.pool.maximum.size: maximum number of connections (default 10)</li>
+ *     <li>water.repository.jpa.pool.minimum.idle: minimum idle connections (default 2, or maximum size if lower)</li>
+ *     <li>water.repository.jpa.pool.connection.timeout.millis: max wait for a connection (default 30000)</li>
+ *     <li>water.repository.jpa.pool.idle.timeout.millis: idle connection timeout (default 600000)</li>
+ *     <li>water.repository.jpa.pool.max.lifetime.millis: max connection lifetime (default 1800000)</li>
+ *     <li>water.repository.jpa.pool.leak.detection.threshold.millis: logs connections held longer than this, 0 disables it (default 0)</li>
+ *     <li>water.repository.jpa.pool.statement.cache.size: prepared statements cached per connection by the driver, 0 disables it (default 250)</li>
+ *     <li>water.repository.jpa.pool.statement.cache.sql.limit: max length of cached statements (default 2048)</li>
+ *     <li>water.repository.jpa.pool.jmx: exposes pool metrics as JMX MBeans (default false), pool names must then be unique</li>
+ * </ul>
+ */
+public class PooledDataSourceFactory {
+    public static final String POOL_ENABLED_PROPERTY = "water.repository.jpa.pool.enabled";
+    public static final String POOL_MAXIMUM_SIZE_PROPERTY = "water.repository.jpa.pool.maximum.size";
+    public static final String POOL_MINIMUM_IDLE_PROPERTY = "water.repository.jpa.pool.minimum.idle";
+    public static final String POOL_CONNECTION_TIMEOUT_PROPERTY = "water.repository.jpa.pool.connection.timeout.millis";
+    public static final String POOL_IDLE_TIMEOUT_PROPERTY = "water.repository.jpa.pool.idle.timeout.millis";
+    public static final String POOL_MAX_LIFETIME_PROPERTY = "water.repository.jpa.pool.max.lifetime.millis";
+    public static final String POOL_LEAK_DETECTION_THRESHOLD_PROPERTY = "water.repository.jpa.pool.leak.detection.threshold.millis";
+    public static final String POOL_STATEMENT_CACHE_SIZE_PROPERTY = "water.repository.jpa.pool.statement.cache.size";
+    public static final String POOL_STATEMENT_CACHE_SQL_LIMIT_PROPERTY = "water.repository.jpa.pool.statement.cache.sql.limit";
+    public static final String POOL_JMX_PROPERTY = "water.repository.jpa.pool.jmx";
+    public static final int DEFAULT_MINIMUM_IDLE = 2;
+    private static final String HIKARI_DATASOURCE_CLASS = "com.zaxxer.hikari.HikariDataSource";
+
+    private PooledDataSourceFactory() {
+    }
+
+    /**
+     * @param properties persistence unit properties, can be null
+     * @return true if pooling is enabled and HikariCP is available
+     */
+    public static boolean isAvailable(Properties properties) {
+        if (!Boolean.parseBoolean(getProperty(properties, POOL_ENABLED_PROPERTY, "true")))
+            return false;
+        try {
+            Class.forName(HIKARI_DATASOURCE_CLASS, false, PooledDataSourceFactory.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param poolName   pool name, used also for metrics
+     * @param driver     jdbc driver class name
+     * @param url        jdbc url
+     * @param user       database user
+     * @param password   database password
+     * @param properties persistence unit properties holding pool configuration, can be null
+     * @return the pooled DataSource
+     */
+    public static DataSource create(String poolName, String driver, String url, String user, String password, Properties properties) {
+        //hikari classes are loaded only here, after checking they are available
+        return HikariDataSources.create(poolName, driver, url, user, password, properties);
+    }
+
+    /**
+     * @param dataSource
+     * @return current pool metrics, null if the DataSource has not been created by this factory
+     */
+    public static PoolMetrics getPoolMetrics(DataSource dataSource) {
+        if (dataSource == null || !dataSource.getClass().getName().equals(HIKARI_DATASOURCE_CLASS))
+            return null;
+        return HikariDataSources.getPoolMetrics(dataSource);
+    }
+
+    static String getProperty(Properties properties, String key, String defaultValue) {
+        String value = properties != null ? properties.getProperty(key) : null;
+        return value != null ? value.trim() : System.getProperty(key, defaultValue);
+    }
+
+    /**
+     * Snapshot of pool usage
+     *
+     * @param activeConnections  connections in use
+     * @param idleConnections    connections available
+     * @param totalConnections   connections opened by the pool
+     * @param awaitingThreads    threads waiting for a connection
+     */
+    public record PoolMetrics(int activeConnections, int idleConnections, int totalConnections, int awaitingThreads) {
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.extension;
+
+import it.water.core.api.model.EntityExtension;
+import it.water.core.model.exceptions.WaterRuntimeException;
+import it.water.repository.jpa.model.AbstractJpaEntity;
+import jakarta.persistence.EntityListeners;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.PostUpdate;
+import jakarta.persistence.PreUpdate;
+import jakarta.persistence.Query;
+import jakarta.persistence.Table;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.SingularAttribute;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Author Aristide Cittadino
+ * Upsert of entity extensions keyed on relatedEntityId.
+ * Extension columns are written with a single bulk update statement, translated by the persistence provider for the current dialect.
+ * Only when no row has been updated the extension must be inserted, so updating an expandable entity
+ * does not need to load the extension first.
+ * The version of the extension, when present, is checked by the update statement as merge would do,
+ * columns which are not updatable are never written and the updated extension is reloaded in the persistence context.
+ * Extensions declaring unique constraints, update callbacks, entity listeners or non basic attributes are not supported,
+ * since a bulk update would skip duplicate checks and lifecycle events: in that case forExtension returns null.
+ * The upsert is opt-in (see BaseJpaRepositoryImpl.setExtensionUpsertEnabled): bulk statements still bypass the second level cache,
+ * and the update-then-insert sequence is not atomic, so two concurrent first writes may both try to insert the extension.
+ */
+public class EntityExtensionUpsert {
+    private static final Logger log = LoggerFactory.getLogger(EntityExtensionUpsert.class);
+    public static final String RELATED_ENTITY_ID_ATTRIBUTE = "relatedEntityId";
+    private static final String ENTITY_CREATE_DATE_ATTRIBUTE = "entityCreateDate";
+    private static final String ENTITY_MODIFY_DATE_ATTRIBUTE = "entityModifyDate";
+    private static final String DO_PRE_UPDATE_METHOD = "doPreUpdate";
+    private static final String PARAMETER_PREFIX = "p";
+    private static final String VERSION_PARAMETER = "version";
+
+    private static final Map<Class<?>, Optional<EntityExtensionUpsert>> upserts = new ConcurrentHashMap<>();
+
+    private final String updateStatement;
+    //same update with the optimistic check on the version
+    private final String versionedUpdateStatement;
+    private final String loadStatement;
+    private final Member versionMember;
+    //members used to read each parameter value, null for the modify date which is always set to now
+    private final List<Member> parameterMembers;
+
+    private EntityExtensionUpsert(String updateStatement, String versionedUpdateStatement, String loadStatement, Member versionMember, List<Member> parameterMembers) {
+        this.updateStatement = updateStatement;
+        this.versionedUpdateStatement = versionedUpdateStatement;
+        this.loadStatement = loadStatement;
+        this.versionMember = versionMember;
+        this.parameterMembers = parameterMembers;
+    }
+
+    /**
+     * @param em             entity manager managing the extension class
+     * @param extensionClass extension class
+     * @return the upsert for the given extension class, null if the extension class does not support it
+     */
+    public static EntityExtensionUpsert forExtension(EntityManager em, Class<?> extensionClass) {
+        return upserts.computeIfAbsent(extensionClass, clazz -> Optional.ofNullable(build(em, clazz))).orElse(null);
+    }
+
+    /**
+     * Updates the extension row related to the given entity id.
+     * When the extension carries a version, the row is updated only if it has the same version.
+     *
+     * @param em              current entity manager, inside an active transaction
+     * @param extension       extension holding the new values
+     * @param relatedEntityId id of the master entity
+     * @return the updated extension, managed by the entity manager, null if the extension must be inserted
+     * @throws OptimisticLockException if the extension row has a different version
+     */
+    public EntityExtension update(EntityManager em, EntityExtension extension, long relatedEntityId) {
+        Object version = versionMember != null ? readValue(versionMember, extension) : null;
+        Query query = em.createQuery(version != null ? versionedUpdateStatement : updateStatement);
+        for (int i = 0; i < parameterMembers.size(); i++) {
+            Member member = parameterMembers.get(i);
+            query.setParameter(PARAMETER_PREFIX + i, member != null ? readValue(member, extension) : new Date());
+        }
+        query.setParameter(RELATED_ENTITY_ID_ATTRIBUTE, relatedEntityId);
+        if (version != null)
+            query.setParameter(VERSION_PARAMETER, version);
+        int updatedRows = query.executeUpdate();
+        List<?> extensions = em.createQuery(loadStatement).setParameter(RELATED_ENTITY_ID_ATTRIBUTE, relatedEntityId).getResultList();
+        if (extensions.isEmpty())
+            return null;
+        EntityExtension updatedExtension = (EntityExtension) extensions.get(0);
+        if (updatedRows == 0)
+            throw new OptimisticLockException("Extension of entity " + relatedEntityId + " has been modified, expected version: " + version, null, updatedExtension);
+        //bulk updates bypass the persistence context, instances already managed must be synchronized
+        em.refresh(updatedExtension);
+        return updatedExtension;
+    }
+
+    private static EntityExtensionUpsert build(EntityManager em, Class<?> extensionClass) {
+        if (hasUniqueConstraints(extensionClass) || hasUpdateCallbacks(extensionClass)) {
+            log.debug("Extension {} has unique constraints or update callbacks, upsert not supported", extensionClass.getName());
+            return null;
+        }
+        EntityType<?> entityType = em.getMetamodel().entity(extensionClass);
+        if (!entityType.getPluralAttributes().isEmpty())
+            return null;
+        Set<String> updatableAttributes = getUpdatableAttributes(em, extensionClass);
+        List<String> assignments = new ArrayList<>();
+        List<Member> parameterMembers = new ArrayList<>();
+        String versionAttribute = null;
+        Member versionMember = null;
+        for (SingularAttribute<?, ?> attribute : entityType.getSingularAttributes()) {
+            String name = attribute.getName();
+            if (attribute.isVersion()) {
+                versionAttribute = name;
+                versionMember = attribute.getJavaMember();
+                assignments.add("e." + name + " = e." + name + " + 1");
+            } else if (!attribute.isId() && !name.equals(RELATED_ENTITY_ID_ATTRIBUTE) && !name.equals(ENTITY_CREATE_DATE_ATTRIBUTE) && updatableAttributes.contains(name)) {
+                if (attribute.getPersistentAttributeType() != Attribute.PersistentAttributeType.BASIC)
+                    return null;
+                assignments.add("e." + name + " = :" + PARAMETER_PREFIX + parameterMembers.size());
+                parameterMembers.add(name.equals(ENTITY_MODIFY_DATE_ATTRIBUTE) ? null : attribute.getJavaMember());
+            }
+        }
+        if (assignments.isEmpty())
+            return null;
+        String relatedEntityCondition = " where e." + RELATED_ENTITY_ID_ATTRIBUTE + " = :" + RELATED_ENTITY_ID_ATTRIBUTE;
+        String updateStatement = "update " + entityType.getName() + " e set " + String.join(", ", assignments) + relatedEntityCondition;
+        String versionedUpdateStatement = versionAttribute != null ? updateStatement + " and e." + versionAttribute + " = :" + VERSION_PARAMETER : updateStatement;
+        String loadStatement = "select e from " + entityType.getName() + " e" + relatedEntityCondition;
+        log.debug("Extension {} upsert statement: {}", extensionClass.getName(), updateStatement);
+        return new EntityExtensionUpsert(updateStatement, versionedUpdateStatement, loadStatement, versionMember, parameterMembers);
+    }
+
+    /**
+     * @return attributes written by updates, excluding for example columns mapped with updatable=false
+     */
+    private static Set<String> getUpdatableAttributes(EntityManager em, Class<?> extensionClass) {
+        EntityPersister persister = em.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class).getMappingMetamodel().getEntityDescriptor(extensionClass);
+        String[] propertyNames = persister.getPropertyNames();
+        boolean[] propertyUpdateability = persister.getPropertyUpdateability();
+        Set<String> updatableAttributes = new HashSet<>();
+        for (int i = 0; i < propertyNames.length; i++) {
+            if (propertyUpdateability[i])
+                updatableAttributes.add(propertyNames[i]);
+        }
+        return updatableAttributes;
+    }
+
+    private static boolean hasUniqueConstraints(Class<?> extensionClass) {
+        Table[] tableAnnotation = extensionClass.getAnnotationsByType(Table.class);
+        return tableAnnotation.length > 0 && tableAnnotation[0].uniqueConstraints().length > 0;
+    }
+
+    private static boolean hasUpdateCallbacks(Class<?> extensionClass) {
+        for (Class<?> current = extensionClass; current != null && current != AbstractJpaEntity.class && current != Object.class; current = current.getSuperclass()) {
+            if (current.isAnnotationPresent(EntityListeners.class))
+                return true;
+            for (Method method : current.getDeclaredMethods()) {
+                if (method.isAnnotationPresent(PreUpdate.class) || method.isAnnotationPresent(PostUpdate.class) || (method.getName().equals(DO_PRE_UPDATE_METHOD) && method.getParameterCount() == 0))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object readValue(Member member, Object target) {
+        try {
+            if (member instanceof Method method) {
+                method.setAccessible(true);
+                return method.invoke(target);
+            }
+            Field field = (Field) member;
+            field.setAccessible(true);
+            return field.get(target);
+        } catch (ReflectiveOperationException e) {
+            throw new WaterRuntimeException("Impossible to read extension attribute " + member.getName() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.id;
+
+/**
+ * @Author Aristide Cittadino
+ * Client side generator of time ordered ids, no database round trip is needed.
+ * Ids are composed by: 41 bits of milliseconds since 2024-01-01, 10 bits of node id, 12 bits of sequence.
+ * Each node of a cluster must have a different node id.
+ * If the clock moves backwards or more than 4096 ids are generated in the same millisecond, the generator keeps using
+ * a logical clock, so ids are always increasing and never duplicated on the same node.
+ */
+public class TimeOrderedIdGenerator {
+    public static final long EPOCH = 1704067200000L;
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private final long nodeId;
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    public TimeOrderedIdGenerator(long nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID)
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID);
+        this.nodeId = nodeId;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    public synchronized long nextId() {
+        long timestamp = Math.max(currentTimeMillis(), lastTimestamp);
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            //sequence exhausted, borrowing next millisecond
+            if (sequence == 0)
+                timestamp++;
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+        return ((timestamp - EPOCH) << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.id;
+
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @Author Aristide Cittadino
+ * Id generator used by AbstractJpaEntity, applied through @WaterGeneratedId.
+ * By default it behaves like the standard jpa generator: one sequence for each entity ({entity}_SEQ),
+ * allocation size 50 and pooled optimizer, so ids are assigned in memory and inserts can be batched.
+ * It can be configured with persistence unit or system properties:
+ * <ul>
+ *     <li>water.repository.jpa.id.strategy: sequence (default) or time-ordered (client side ids, see TimeOrderedIdGenerator)</li>
+ *     <li>water.repository.jpa.id.allocation.size: number of ids reserved with a single sequence call (default 50)</li>
+ *     <li>water.repository.jpa.id.optimizer: pooled (default) or pooled-lo</li>
+ *     <li>water.repository.jpa.id.node: node id used by time-ordered strategy (0-1023), it is required since nodes with the same id
+ *     generate duplicated ids, only in test mode (water.testMode=true) a random node id is used when not set.
+ *     All persistence units of a jvm share the same generator, so they must use the same node id</li>
+ * </ul>
+ * Note: switching an existing database from pooled-lo to pooled may generate duplicated ids, while the opposite is safe.
+ */
+public class WaterIdGenerator extends SequenceStyleGenerator {
+    public static final String GENERATOR_NAME = "water-id-generator";
+    public static final String ID_STRATEGY_PROPERTY = "water.repository.jpa.id.strategy";
+    public static final String ID_ALLOCATION_SIZE_PROPERTY = "water.repository.jpa.id.allocation.size";
+    public static final String ID_OPTIMIZER_PROPERTY = "water.repository.jpa.id.optimizer";
+    public static final String ID_NODE_PROPERTY = "water.repository.jpa.id.node";
+    public static final String SEQUENCE_STRATEGY = "sequence";
+    public static final String TIME_ORDERED_STRATEGY = "time-ordered";
+    public static final String TEST_MODE_PROPERTY = "water.testMode";
+    private static final Logger log = LoggerFactory.getLogger(WaterIdGenerator.class);
+
+    private static TimeOrderedIdGenerator timeOrderedIdGenerator;
+
+    private boolean timeOrdered;
+
+    @Override
+    public void configure(Type type, Properties parameters, ServiceRegistry serviceRegistry) throws MappingException {
+        Map<String, Object> settings = serviceRegistry.requireService(ConfigurationService.class).getSettings();
+        this.timeOrdered = TIME_ORDERED_STRATEGY.equalsIgnoreCase(getSetting(settings, ID_STRATEGY_PROPERTY, SEQUENCE_STRATEGY));
+        if (timeOrdered)
+            initTimeOrderedIdGenerator(settings);
+        //same sequence name of the default jpa generator, in order to keep existing schemas valid
+        String jpaEntityName = parameters.getProperty(IdentifierGenerator.JPA_ENTITY_NAME);
+        if (jpaEntityName != null)
+            parameters.putIfAbsent(SEQUENCE_PARAM, jpaEntityName + "_SEQ");
+        parameters.put(INCREMENT_PARAM, getSetting(settings, ID_ALLOCATION_SIZE_PROPERTY, "50"));
+        //when not set, hibernate default optimizer is used (pooled)
+        String optimizer = getSetting(settings, ID_OPTIMIZER_PROPERTY, null);
+        if (optimizer != null)
+            parameters.put(OPT_PARAM, optimizer);
+        super.configure(type, parameters, serviceRegistry);
+    }
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object object) {
+        if (timeOrdered)
+            return timeOrderedIdGenerator.nextId();
+        return super.generate(session, object);
+    }
+
+    private static long getNodeId(String nodeId, Map<String, Object> settings) {
+        if (nodeId != null)
+            return Long.parseLong(nodeId);
+        if (!Boolean.parseBoolean(getSetting(settings, TEST_MODE_PROPERTY, "false")))
+            throw new MappingException(ID_NODE_PROPERTY + " must be set when using " + TIME_ORDERED_STRATEGY + " ids, each node of the cluster needs a different node id");
+        long randomNodeId = ThreadLocalRandom.current().nextLong(TimeOrderedIdGenerator.MAX_NODE_ID + 1);
+        log.warn("{} is not set, using random node id {} since test mode is active", ID_NODE_PROPERTY, randomNodeId);
+        return randomNodeId;
+    }
+
+    private static synchronized void initTimeOrderedIdGenerator(Map<String, Object> settings) {
+        String nodeId = getSetting(settings, ID_NODE_PROPERTY, null);
+        //one generator per jvm, so ids are unique also across entities
+        if (timeOrderedIdGenerator == null) {
+            timeOrderedIdGenerator = new TimeOrderedIdGenerator(getNodeId(nodeId, settings));
+        } else if (nodeId != null && Long.parseLong(nodeId) != timeOrderedIdGenerator.getNodeId()) {
+            //ids would be generated with the node id of the first persistence unit, colliding with the node configured here
+            throw new MappingException(ID_NODE_PROPERTY + "=" + nodeId + " differs from node id " + timeOrderedIdGenerator.getNodeId()
+                    + " already used by this jvm, all persistence units must use the same node id");
+        }
+    }
+
+    private static String getSetting(Map<String, Object> settings, String key, String defaultValue) {
+        Object value = settings.get(key);
+        if (value == null)
+            value = System.getProperty(key);
+        return value != null ? value.toString().trim() : defaultValue;
+    }
+}
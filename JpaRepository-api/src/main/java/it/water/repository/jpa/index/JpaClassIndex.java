@@ -0,0 +1,119 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * @Author Aristide Cittadino
+ * Utility class for reading the jpa class index generated at build time by JpaClassIndexProcessor.
+ * The index uses the same format of atteo classindex: one file for each annotation under META-INF/annotations/
+ * containing the fully qualified names of the annotated classes.
+ */
+public class JpaClassIndex {
+    private static final Logger log = LoggerFactory.getLogger(JpaClassIndex.class);
+
+    public static final String ANNOTATION_INDEX_PATH = "META-INF/annotations/";
+    public static final String[] INDEXED_ANNOTATIONS = {"jakarta.persistence.Entity", "jakarta.persistence.MappedSuperclass", "jakarta.persistence.Embeddable", "jakarta.persistence.Converter"};
+
+    private JpaClassIndex() {
+    }
+
+    /**
+     * Finds index files with the given class loader, keeping only the ones contained in the specified root url.
+     *
+     * @param classLoader class loader used for lookup
+     * @param rootUrl     root url of the persistence unit (code source of the entity)
+     * @return index files urls
+     */
+    public static Collection<URL> findIndexUrls(ClassLoader classLoader, URL rootUrl) {
+        List<URL> indexUrls = new ArrayList<>();
+        if (classLoader == null || rootUrl == null)
+            return indexUrls;
+        String indexPathPrefix = normalizePath(rootUrl) + "/" + ANNOTATION_INDEX_PATH;
+        for (String annotation : INDEXED_ANNOTATIONS) {
+            try {
+                Enumeration<URL> resources = classLoader.getResources(ANNOTATION_INDEX_PATH + annotation);
+                while (resources.hasMoreElements()) {
+                    URL indexUrl = resources.nextElement();
+                    //index must be located directly inside the persistence unit root, otherwise entities of other modules would be included
+                    if (normalizePath(indexUrl).startsWith(indexPathPrefix))
+                        indexUrls.add(indexUrl);
+                }
+            } catch (IOException e) {
+                log.warn("Error while looking for jpa class index {}: {}", annotation, e.getMessage());
+            }
+        }
+        return indexUrls;
+    }
+
+    /**
+     * Path of a directory, jar or jar entry url, so that entries of a jar start with the path of the jar itself:
+     * jar:file:/lib/a.jar!/META-INF/x and file:/lib/a.jar become /lib/a.jar/META-INF/x and /lib/a.jar.
+     * The authority is kept, so entries of different osgi bundles never share the same path.
+     *
+     * @param url
+     * @return normalized path, without trailing slash
+     */
+    public static String normalizePath(URL url) {
+        String path = url.getPath();
+        if (path.startsWith("file:"))
+            path = path.substring("file:".length());
+        path = path.replace("!/", "/").replaceAll("/{2,}", "/");
+        while (path.endsWith("/") || path.endsWith("!"))
+            path = path.substring(0, path.length() - 1);
+        String authority = url.getAuthority();
+        return authority != null && !authority.isEmpty() ? "//" + authority + path : path;
+    }
+
+    /**
+     * @param indexUrls index files
+     * @return class names listed inside the given index files
+     */
+    public static Set<String> readClassNames(Collection<URL> indexUrls) {
+        Set<String> classNames = new LinkedHashSet<>();
+        indexUrls.forEach(indexUrl -> classNames.addAll(readClassNames(indexUrl)));
+        return classNames;
+    }
+
+    /**
+     * @param indexUrl index file
+     * @return class names listed inside the index file
+     */
+    public static Set<String> readClassNames(URL indexUrl) {
+        Set<String> classNames = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(indexUrl.openStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    classNames.add(line);
+            }
+        } catch (IOException e) {
+            log.warn("Error while reading jpa class index {}: {}", indexUrl, e.getMessage());
+        }
+        return classNames;
+    }
+}
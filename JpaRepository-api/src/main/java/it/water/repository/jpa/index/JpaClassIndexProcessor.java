@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.index;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * @Author Aristide Cittadino
+ * Annotation processor which generates, at build time, the list of jpa classes (entities, mapped superclasses, embeddables and converters).
+ * The index is written in META-INF/annotations/ and is used to bootstrap persistence units without scanning the classpath.
+ * Usage: annotationProcessor 'it.water.repository.jpa:JpaRepository-api:${waterVersion}'
+ * Note: supported annotations must be the same of JpaClassIndex.INDEXED_ANNOTATIONS, they are repeated here
+ * so the processor does not need other libraries on the annotation processor path.
+ */
+@SupportedAnnotationTypes({"jakarta.persistence.Entity", "jakarta.persistence.MappedSuperclass", "jakarta.persistence.Embeddable", "jakarta.persistence.Converter"})
+public class JpaClassIndexProcessor extends AbstractProcessor {
+    private final Map<String, Set<String>> index = new HashMap<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            index.forEach(this::writeIndex);
+            return false;
+        }
+        for (TypeElement annotation : annotations) {
+            Set<String> classNames = index.computeIfAbsent(annotation.getQualifiedName().toString(), key -> new TreeSet<>());
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element instanceof TypeElement typeElement)
+                    classNames.add(processingEnv.getElementUtils().getBinaryName(typeElement).toString());
+            }
+        }
+        //other processors (ex. metamodel generators) must still see jpa annotations
+        return false;
+    }
+
+    private void writeIndex(String annotation, Set<String> classNames) {
+        String indexPath = JpaClassIndex.ANNOTATION_INDEX_PATH + annotation;
+        //merging with previous index in case of incremental compilation
+        Set<String> allClassNames = new TreeSet<>(classNames);
+        allClassNames.addAll(readPreviousIndex(annotation, indexPath));
+        try {
+            FileObject indexFile = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", indexPath);
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(indexFile.openOutputStream(), StandardCharsets.UTF_8))) {
+                for (String className : allClassNames) {
+                    writer.write(className);
+                    writer.write("\n");
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write jpa class index " + indexPath + ": " + e.getMessage());
+        }
+    }
+
+    private Set<String> readPreviousIndex(String annotation, String indexPath) {
+        Set<String> classNames = new TreeSet<>();
+        try {
+            FileObject previousIndex = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", indexPath);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(previousIndex.openInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    //keeping only classes which still exist and are still annotated
+                    if (!line.isEmpty() && isAnnotatedWith(processingEnv.getElementUtils().getTypeElement(line.replace('$', '.')), annotation))
+                        classNames.add(line);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            //no previous index
+        }
+        return classNames;
+    }
+
+    private boolean isAnnotatedWith(TypeElement typeElement, String annotation) {
+        return typeElement != null && typeElement.getAnnotationMirrors().stream()
+                .anyMatch(annotationMirror -> ((TypeElement) annotationMirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation));
+    }
+}
@@ -25,9 +25,9 @@ import com.fasterxml.jackson.annotation.JsonView;
 import it.water.core.api.model.BaseEntity;
 import it.water.core.api.service.rest.WaterJsonView;
 import it.water.repository.entity.model.AbstractEntity;
+import it.water.repository.jpa.id.WaterGeneratedId;
 import jakarta.persistence.Column;
 import jakarta.persistence.Embeddable;
-import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.Id;
 import jakarta.persistence.MappedSuperclass;
 import jakarta.persistence.PrePersist;
@@ -42,6 +42,7 @@ import lombok.EqualsAndHashCode;
 /**
  * @Author Aristide Cittadino.
  * This class is a basic implementation of BaseEntity methods.
+ * Ids are generated by WaterIdGenerator through @WaterGeneratedId, so mapped entities require hibernate as persistence provider.
  */
 @MappedSuperclass
 @Embeddable
@@ -51,7 +52,7 @@ public abstract class AbstractJpaEntity extends AbstractEntity
 
     @Override
     @Id
-    @GeneratedValue
+    @WaterGeneratedId
     @JsonView({WaterJsonView.Extended.class, WaterJsonView.Compact.class, WaterJsonView.Internal.class, WaterJsonView.Privacy.class, WaterJsonView.Public.class})
     public long getId() {
         return id;
@@ -19,6 +19,7 @@ package it.water.repository.jpa.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import it.water.core.api.model.BaseEntity;
 import it.water.core.api.model.EntityExtension;
+import it.water.repository.jpa.id.WaterGeneratedId;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
@@ -51,7 +52,7 @@ public abstract class AbstractJpaEntityExpansion extends AbstractJpaEntity
 
     @Override
     @Id
-    @GeneratedValue
+    @WaterGeneratedId
     @JsonIgnore
     public long getId() {
         return super.getId();
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.query;
+
+import jakarta.persistence.EntityGraph;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Subgraph;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Author Aristide Cittadino
+ * Describes which associations must be loaded together with the queried entities.
+ * A fetch plan can reference a named entity graph, a list of dotted association paths (ex. "owner.roles") or both:
+ * paths are added on top of the named graph.
+ * It is applied as jakarta.persistence.fetchgraph hint, so associations are loaded with the entity query
+ * instead of lazily, one by one, during serialization.
+ */
+@Getter
+public class FetchPlan {
+    public static final String FETCH_GRAPH_HINT = "jakarta.persistence.fetchgraph";
+
+    private final String entityGraphName;
+    private final List<String> attributePaths;
+
+    private FetchPlan(String entityGraphName, List<String> attributePaths) {
+        this.entityGraphName = entityGraphName;
+        this.attributePaths = Collections.unmodifiableList(attributePaths);
+    }
+
+    /**
+     * @param entityGraphName name of an entity graph defined with @NamedEntityGraph
+     * @return fetch plan based on the named graph
+     */
+    public static FetchPlan named(String entityGraphName) {
+        return new FetchPlan(entityGraphName, new ArrayList<>());
+    }
+
+    /**
+     * @param attributePaths dotted association paths
+     * @return fetch plan loading the given paths
+     */
+    public static FetchPlan paths(String... attributePaths) {
+        return new FetchPlan(null, Arrays.asList(attributePaths));
+    }
+
+    /**
+     * @param attributePaths dotted association paths
+     * @return a new fetch plan with the same entity graph and the given additional paths
+     */
+    public FetchPlan withPaths(String... attributePaths) {
+        List<String> paths = new ArrayList<>(this.attributePaths);
+        paths.addAll(Arrays.asList(attributePaths));
+        return new FetchPlan(this.entityGraphName, paths);
+    }
+
+    /**
+     * Creates the entity graph described by this plan.
+     *
+     * @param em   entity manager
+     * @param type root entity type
+     * @return the entity graph
+     */
+    @SuppressWarnings("unchecked")
+    public <T> EntityGraph<T> toEntityGraph(EntityManager em, Class<T> type) {
+        //createEntityGraph returns a mutable copy of the named graph
+        EntityGraph<T> entityGraph = entityGraphName != null ? (EntityGraph<T>) em.createEntityGraph(entityGraphName) : em.createEntityGraph(type);
+        if (entityGraph == null)
+            throw new IllegalArgumentException("No entity graph found with name: " + entityGraphName);
+        attributePaths.forEach(path -> addAttributePath(entityGraph, path));
+        return entityGraph;
+    }
+
+    private static void addAttributePath(EntityGraph<?> entityGraph, String path) {
+        String[] fields = path.split("\\.");
+        if (fields.length == 1) {
+            entityGraph.addAttributeNodes(fields[0]);
+            return;
+        }
+        Subgraph<?> subgraph = entityGraph.addSubgraph(fields[0]);
+        for (int i = 1; i < fields.length - 1; i++) {
+            subgraph = subgraph.addSubgraph(fields[i]);
+        }
+        subgraph.addAttributeNodes(fields[fields.length - 1]);
+    }
+}
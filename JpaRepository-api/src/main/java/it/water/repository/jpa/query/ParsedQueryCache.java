@@ -0,0 +1,124 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.query;
+
+import it.water.core.api.repository.query.Query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * @Author Aristide Cittadino
+ * Bounded LRU cache of parsed query filters, keyed by the normalized filter text.
+ * Parsing is executed outside the lock, so concurrent misses of the same filter may parse it more than once.
+ * Cached queries are shared between callers and must not be modified.
+ * The size can be configured with water.repository.jpa.query.cache.size (default 1000, 0 disables the cache)
+ * inside persistence unit properties or as system property.
+ */
+public class ParsedQueryCache {
+    public static final String QUERY_CACHE_SIZE_PROPERTY = "water.repository.jpa.query.cache.size";
+    private static final int DEFAULT_CACHE_SIZE = 1000;
+
+    private final int maxSize;
+    private final Map<String, Query> queries;
+
+    public ParsedQueryCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.queries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+                return size() > ParsedQueryCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param properties persistence unit properties, can be null
+     * @return cache sized by properties, or by system properties
+     */
+    public static ParsedQueryCache fromProperties(Map<?, ?> properties) {
+        Object value = properties != null ? properties.get(QUERY_CACHE_SIZE_PROPERTY) : null;
+        if (value == null)
+            value = System.getProperty(QUERY_CACHE_SIZE_PROPERTY);
+        return new ParsedQueryCache(value != null ? Integer.parseInt(value.toString().trim()) : DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param filter filter text
+     * @param parser parses the filter when it is not cached
+     * @return parsed query
+     */
+    public Query get(String filter, Function<String, Query> parser) {
+        if (filter == null || maxSize <= 0)
+            return parser.apply(filter);
+        String key = normalize(filter);
+        Query query;
+        synchronized (queries) {
+            query = queries.get(key);
+        }
+        if (query == null) {
+            query = parser.apply(filter);
+            if (query != null) {
+                synchronized (queries) {
+                    queries.put(key, query);
+                }
+            }
+        }
+        return query;
+    }
+
+    public int size() {
+        synchronized (queries) {
+            return queries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (queries) {
+            queries.clear();
+        }
+    }
+
+    /**
+     * Trims the filter and collapses whitespaces outside quoted literals
+     *
+     * @param filter
+     * @return
+     */
+    static String normalize(String filter) {
+        StringBuilder normalized = new StringBuilder(filter.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (char c : filter.trim().toCharArray()) {
+            if (quote == 0 && Character.isWhitespace(c)) {
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"'))
+                quote = c;
+            else if (c == quote)
+                quote = 0;
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+}
@@ -40,15 +40,33 @@ public class PredicateBuilder<T> {
     private CriteriaQuery<?> cq;
     private CriteriaBuilder cb;
 
-    @SuppressWarnings({"rawtypes", "unchecked"})
+    /**
+     * Builds the predicate of the query, normalized by QueryNormalizer
+     *
+     * @param filter query
+     * @return predicate
+     */
     public Predicate buildPredicate(Query filter) {
-        if (filter instanceof AndOperation andOperation) {
-            return cb.and(this.buildPredicate(andOperation.getOperand(0)), this.buildPredicate(andOperation.getOperand(1)));
-        } else if (filter instanceof OrOperation orOperation) {
-            return cb.or(this.buildPredicate(orOperation.getOperand(0)), this.buildPredicate(orOperation.getOperand(1)));
-        } else if (filter instanceof NotOperation notOperation) {
-            return cb.not(this.buildPredicate(notOperation.getOperand(0)));
-        } else if (filter instanceof BinaryValueOperation binaryValueOperation) {
+        return buildPredicate(QueryNormalizer.normalize(filter));
+    }
+
+    public Predicate buildPredicate(QueryNormalizer.Node node) {
+        if (node instanceof QueryNormalizer.And and) {
+            return cb.and(and.terms().stream().map(this::buildPredicate).toArray(Predicate[]::new));
+        } else if (node instanceof QueryNormalizer.Or or) {
+            return cb.or(or.terms().stream().map(this::buildPredicate).toArray(Predicate[]::new));
+        } else if (node instanceof QueryNormalizer.Not not) {
+            return cb.not(this.buildPredicate(not.term()));
+        } else if (node instanceof QueryNormalizer.InValues inValues) {
+            Path<Object> p = getPathForFields(inValues.field());
+            return p.in(inValues.values().stream().map(value -> convertToEntityFieldType(p.getJavaType(), value)).toList());
+        }
+        return buildConditionPredicate(((QueryNormalizer.Condition) node).operation());
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private Predicate buildConditionPredicate(Query filter) {
+        if (filter instanceof BinaryValueOperation binaryValueOperation) {
             Path p = getPathForFields((AbstractOperation) filter);
             FieldValueOperand fieldValue = (FieldValueOperand) binaryValueOperation.getOperand(1);
             if (filter instanceof EqualTo) {
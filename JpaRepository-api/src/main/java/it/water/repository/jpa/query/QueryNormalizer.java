@@ -0,0 +1,317 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.query;
+
+import it.water.core.api.repository.query.Query;
+import it.water.core.api.repository.query.operands.FieldValueOperand;
+import it.water.core.api.repository.query.operations.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * @Author Aristide Cittadino
+ * Rewrites a query tree before predicate building:
+ * <ul>
+ *     <li>nested AND/OR chains are flattened into n-ary nodes</li>
+ *     <li>OR of equalities on the same field are folded into a single IN</li>
+ *     <li>double negations and duplicated terms are removed</li>
+ *     <li>AND terms are ordered by selectivity hint: id equality, equalities, IN, ranges, other conditions, OR and NOT groups</li>
+ * </ul>
+ * The original query is never modified.
+ */
+public class QueryNormalizer {
+
+    private QueryNormalizer() {
+    }
+
+    /**
+     * Normalized query node, the key is computed once and reused by the enclosing nodes
+     */
+    public abstract static sealed class Node permits And, Or, Not, Condition, InValues {
+        private String key;
+
+        /**
+         * @return textual key, equal for equivalent nodes
+         */
+        public String key() {
+            if (key == null)
+                key = computeKey();
+            return key;
+        }
+
+        protected abstract String computeKey();
+    }
+
+    public static final class And extends Node {
+        private final List<Node> terms;
+
+        And(List<Node> terms) {
+            this.terms = List.copyOf(terms);
+        }
+
+        public List<Node> terms() {
+            return terms;
+        }
+
+        @Override
+        protected String computeKey() {
+            return terms.stream().map(Node::key).collect(Collectors.joining(" AND ", "(", ")"));
+        }
+    }
+
+    public static final class Or extends Node {
+        private final List<Node> terms;
+
+        Or(List<Node> terms) {
+            this.terms = List.copyOf(terms);
+        }
+
+        public List<Node> terms() {
+            return terms;
+        }
+
+        @Override
+        protected String computeKey() {
+            return terms.stream().map(Node::key).collect(Collectors.joining(" OR ", "(", ")"));
+        }
+    }
+
+    public static final class Not extends Node {
+        private final Node term;
+
+        Not(Node term) {
+            this.term = term;
+        }
+
+        public Node term() {
+            return term;
+        }
+
+        @Override
+        protected String computeKey() {
+            return "NOT " + term.key();
+        }
+    }
+
+    /**
+     * Single field condition, kept as defined in the original query
+     */
+    public static final class Condition extends Node {
+        private final Query operation;
+
+        Condition(Query operation) {
+            this.operation = operation;
+        }
+
+        public Query operation() {
+            return operation;
+        }
+
+        @Override
+        protected String computeKey() {
+            return operation.getDefinition();
+        }
+    }
+
+    /**
+     * IN condition obtained from equalities on the same field
+     */
+    public static final class InValues extends Node {
+        private final EqualTo field;
+        private final List<Object> values;
+
+        /**
+         * @param field  first folded equality, defining the field
+         * @param values compared values
+         */
+        InValues(EqualTo field, List<Object> values) {
+            this.field = field;
+            this.values = List.copyOf(values);
+        }
+
+        public EqualTo field() {
+            return field;
+        }
+
+        public List<Object> values() {
+            return values;
+        }
+
+        @Override
+        protected String computeKey() {
+            return fieldOf(field) + " IN " + values;
+        }
+    }
+
+    /**
+     * @param filter query
+     * @return normalized tree
+     */
+    public static Node normalize(Query filter) {
+        if (filter instanceof AndOperation)
+            return and(chainTerms(filter, true));
+        if (filter instanceof OrOperation)
+            return or(chainTerms(filter, false));
+        if (filter instanceof NotOperation notOperation) {
+            Node term = normalize(notOperation.getOperand(0));
+            return term instanceof Not not ? not.term() : new Not(term);
+        }
+        return new Condition(filter);
+    }
+
+    /**
+     * Collects the operands of a whole AND (or OR) chain, whatever its shape, before normalizing them,
+     * so long left-deep chains are rewritten in one pass
+     *
+     * @param filter      first operation of the chain
+     * @param conjunction true for AND chains, false for OR chains
+     * @return normalized operands, in the original order
+     */
+    private static List<Node> chainTerms(Query filter, boolean conjunction) {
+        List<Node> terms = new ArrayList<>();
+        Deque<Query> pending = new ArrayDeque<>();
+        pending.push(filter);
+        while (!pending.isEmpty()) {
+            Query current = pending.pop();
+            if (conjunction && current instanceof AndOperation andOperation) {
+                pending.push(andOperation.getOperand(1));
+                pending.push(andOperation.getOperand(0));
+            } else if (!conjunction && current instanceof OrOperation orOperation) {
+                pending.push(orOperation.getOperand(1));
+                pending.push(orOperation.getOperand(0));
+            } else {
+                terms.add(normalize(current));
+            }
+        }
+        return terms;
+    }
+
+    private static Node and(List<Node> nodes) {
+        List<Node> terms = distinct(flatten(nodes, And.class));
+        if (terms.size() == 1)
+            return terms.get(0);
+        terms.sort(Comparator.comparingInt(QueryNormalizer::selectivityRank));
+        return new And(terms);
+    }
+
+    private static Node or(List<Node> nodes) {
+        List<Node> terms = foldEqualities(distinct(flatten(nodes, Or.class)));
+        return terms.size() == 1 ? terms.get(0) : new Or(terms);
+    }
+
+    //operands can still be chains of the same type, for example NOT NOT (a OR b)
+    private static List<Node> flatten(List<Node> nodes, Class<? extends Node> nodeType) {
+        List<Node> terms = new ArrayList<>();
+        for (Node node : nodes) {
+            if (node instanceof And and && nodeType == And.class)
+                terms.addAll(and.terms());
+            else if (node instanceof Or or && nodeType == Or.class)
+                terms.addAll(or.terms());
+            else
+                terms.add(node);
+        }
+        return terms;
+    }
+
+    private static List<Node> distinct(List<Node> terms) {
+        Map<String, Node> distinctTerms = new LinkedHashMap<>();
+        terms.forEach(term -> distinctTerms.putIfAbsent(term.key(), term));
+        return new ArrayList<>(distinctTerms.values());
+    }
+
+    /**
+     * Folds equalities and IN on the same field into one IN, in the position of the first term
+     */
+    private static List<Node> foldEqualities(List<Node> terms) {
+        Map<String, List<Node>> foldableByField = new LinkedHashMap<>();
+        terms.stream().filter(QueryNormalizer::isFoldable)
+                .forEach(term -> foldableByField.computeIfAbsent(fieldOf(term), field -> new ArrayList<>()).add(term));
+        List<Node> foldedTerms = new ArrayList<>();
+        for (Node term : terms) {
+            if (!isFoldable(term)) {
+                foldedTerms.add(term);
+                continue;
+            }
+            List<Node> sameFieldTerms = foldableByField.remove(fieldOf(term));
+            if (sameFieldTerms == null)
+                continue;
+            if (sameFieldTerms.size() == 1) {
+                foldedTerms.add(term);
+                continue;
+            }
+            Set<Object> values = new LinkedHashSet<>();
+            sameFieldTerms.forEach(sameFieldTerm -> {
+                if (sameFieldTerm instanceof InValues inValues)
+                    values.addAll(inValues.values());
+                else
+                    values.add(valueOf(equalityOf(sameFieldTerm)));
+            });
+            EqualTo field = term instanceof InValues inValues ? inValues.field() : equalityOf(term);
+            foldedTerms.add(new InValues(field, new ArrayList<>(values)));
+        }
+        return foldedTerms;
+    }
+
+    private static boolean isFoldable(Node term) {
+        if (term instanceof InValues)
+            return true;
+        return term instanceof Condition condition && condition.operation() instanceof EqualTo equalTo
+                && equalTo.getOperand(1) instanceof FieldValueOperand && valueOf(equalTo) != null;
+    }
+
+    private static String fieldOf(Node term) {
+        return term instanceof InValues inValues ? fieldOf(inValues.field()) : fieldOf(equalityOf(term));
+    }
+
+    private static String fieldOf(EqualTo equalTo) {
+        return equalTo.getOperand(0).getDefinition();
+    }
+
+    private static EqualTo equalityOf(Node term) {
+        return (EqualTo) ((Condition) term).operation();
+    }
+
+    private static Object valueOf(EqualTo equalTo) {
+        return ((FieldValueOperand) equalTo.getOperand(1)).getValue();
+    }
+
+    private static int selectivityRank(Node node) {
+        if (node instanceof Condition condition) {
+            Query operation = condition.operation();
+            if (operation instanceof EqualTo equalTo)
+                return "id".equals(fieldOf(equalTo)) ? 0 : 1;
+            if (operation instanceof In)
+                return 2;
+            if (operation instanceof GreaterThan || operation instanceof GreaterOrEqualThan
+                    || operation instanceof LowerThan || operation instanceof LowerOrEqualThan)
+                return 3;
+            return 4;
+        }
+        if (node instanceof InValues)
+            return 2;
+        return node instanceof Or ? 5 : 6;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.routing;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceException;
+import lombok.Getter;
+import lombok.Setter;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.exception.JDBCConnectionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLTransientException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * @Author Aristide Cittadino
+ * Routes read only queries to a read replica.
+ * Replicas are updated asynchronously, so after a write on an entity type, reads of the same type are kept on the primary
+ * for the configured staleness window, which should be greater than the replication lag.
+ * The window starts when the write is committed.
+ * Reads fall back to the primary only when the replica is not reachable (connection or transient sql errors),
+ * other failures, like query errors, are thrown since the primary would fail in the same way.
+ */
+public class ReadReplicaRouting {
+    private static final Logger log = LoggerFactory.getLogger(ReadReplicaRouting.class);
+    public static final String REPLICA_JDBC_DRIVER_PROPERTY = "water.repository.jpa.replica.jdbc.driver";
+    public static final String REPLICA_JDBC_URL_PROPERTY = "water.repository.jpa.replica.jdbc.url";
+    public static final String REPLICA_JDBC_USER_PROPERTY = "water.repository.jpa.replica.jdbc.user";
+    public static final String REPLICA_JDBC_PASSWORD_PROPERTY = "water.repository.jpa.replica.jdbc.password";
+    public static final String REPLICA_SCHEMA_MODE_PROPERTY = "water.repository.jpa.replica.schema.mode";
+    public static final String REPLICA_STALENESS_MILLIS_PROPERTY = "water.repository.jpa.replica.staleness.millis";
+    public static final long DEFAULT_STALENESS_MILLIS = 1000;
+
+    @Getter
+    private final EntityManagerFactory replicaEntityManagerFactory;
+    /**
+     * Time after a write in which reads of the written entity type are served by the primary
+     */
+    @Getter
+    @Setter
+    private volatile long stalenessMillis;
+    private final Map<Class<?>, Long> lastWrites = new ConcurrentHashMap<>();
+
+    public ReadReplicaRouting(EntityManagerFactory replicaEntityManagerFactory, long stalenessMillis) {
+        this.replicaEntityManagerFactory = replicaEntityManagerFactory;
+        this.stalenessMillis = stalenessMillis;
+    }
+
+    /**
+     * Records a write on the primary for the given entity type
+     *
+     * @param entityType
+     */
+    public void onWrite(Class<?> entityType) {
+        lastWrites.put(entityType, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a write executed by the given entity manager once its transaction has been committed,
+     * also when the write joins an outer transaction. Rolled back writes are not recorded.
+     * Writes are recorded immediately when the entity manager is not backed by a hibernate session.
+     *
+     * @param entityType
+     * @param em         entity manager executing the write, before its transaction completes
+     */
+    public void onWrite(Class<?> entityType, EntityManager em) {
+        SessionImplementor session;
+        try {
+            session = em.unwrap(SessionImplementor.class);
+        } catch (PersistenceException | IllegalStateException e) {
+            onWrite(entityType);
+            return;
+        }
+        session.getActionQueue().registerProcess((AfterTransactionCompletionProcess) (success, completedSession) -> {
+            if (success)
+                onWrite(entityType);
+        });
+    }
+
+    /**
+     * @param entityType
+     * @return true if the replica can serve reads of the entity type without returning stale data
+     */
+    public boolean isReplicaReadable(Class<?> entityType) {
+        Long lastWrite = lastWrites.get(entityType);
+        return replicaEntityManagerFactory.isOpen() && (lastWrite == null || System.currentTimeMillis() - lastWrite >= stalenessMillis);
+    }
+
+    /**
+     * Executes the read on a replica entity manager, falling back to the primary when the replica is not available.
+     *
+     * @param function        read logic
+     * @param primaryFallback executes the same read on the primary
+     * @return read result
+     */
+    public <R> R read(Function<EntityManager, R> function, Supplier<R> primaryFallback) {
+        EntityManager replicaEntityManager = null;
+        try {
+            replicaEntityManager = replicaEntityManagerFactory.createEntityManager();
+            return function.apply(replicaEntityManager);
+        } catch (RuntimeException e) {
+            if (!isReplicaUnavailable(e))
+                throw e;
+            log.warn("Replica not available, reading from primary: {}", e.getMessage());
+            return primaryFallback.get();
+        } finally {
+            if (replicaEntityManager != null && replicaEntityManager.isOpen())
+                replicaEntityManager.close();
+        }
+    }
+
+    private boolean isReplicaUnavailable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JDBCConnectionException || cause instanceof SQLTransientException)
+                return true;
+        }
+        return false;
+    }
+}
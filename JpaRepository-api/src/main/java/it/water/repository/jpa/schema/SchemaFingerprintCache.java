@@ -0,0 +1,207 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.schema;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * @Author Aristide Cittadino
+ * Local cache of the mapping fingerprint of each persistence unit and database.
+ * The fingerprint is a hash computed over the bytecode of the managed classes and their super classes.
+ * When the fingerprint has not changed since the last successful bootstrap, the schema is only validated,
+ * avoiding the introspection of the whole database metadata done by updates.
+ * Fingerprints are keyed by persistence unit name and database identity (jdbc url, user and default schema),
+ * so units with the same name on different databases never share them. When the database is unknown, schema management is never skipped.
+ * It is enabled with water.repository.jpa.schema.fingerprint.cache=true, the cache folder can be changed with
+ * water.repository.jpa.schema.fingerprint.dir (default: java.io.tmpdir/water-jpa-schema).
+ */
+public class SchemaFingerprintCache {
+    private static final Logger log = LoggerFactory.getLogger(SchemaFingerprintCache.class);
+
+    public static final String FINGERPRINT_CACHE_ENABLED_PROPERTY = "water.repository.jpa.schema.fingerprint.cache";
+    public static final String FINGERPRINT_CACHE_DIR_PROPERTY = "water.repository.jpa.schema.fingerprint.dir";
+    private static final String[] JDBC_URL_PROPERTIES = {"jakarta.persistence.jdbc.url", "javax.persistence.jdbc.url", "hibernate.connection.url"};
+    private static final String[] JDBC_USER_PROPERTIES = {"jakarta.persistence.jdbc.user", "javax.persistence.jdbc.user", "hibernate.connection.username"};
+    private static final String HIBERNATE_DEFAULT_SCHEMA = "hibernate.default_schema";
+
+    private final Path cacheDir;
+
+    public SchemaFingerprintCache(Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * @param properties persistence unit properties, can be null
+     * @return the fingerprint cache if enabled inside properties or system properties, null otherwise
+     */
+    public static SchemaFingerprintCache fromProperties(Properties properties) {
+        if (!Boolean.parseBoolean(getProperty(properties, FINGERPRINT_CACHE_ENABLED_PROPERTY, "false")))
+            return null;
+        String defaultDir = Paths.get(System.getProperty("java.io.tmpdir"), "water-jpa-schema").toString();
+        return new SchemaFingerprintCache(Paths.get(getProperty(properties, FINGERPRINT_CACHE_DIR_PROPERTY, defaultDir)));
+    }
+
+    private static String getProperty(Properties properties, String key, String defaultValue) {
+        String value = properties != null ? properties.getProperty(key) : null;
+        return value != null ? value : System.getProperty(key, defaultValue);
+    }
+
+    /**
+     * Identifies the database of a persistence unit, from jdbc properties or from the DataSource metadata
+     *
+     * @param properties persistence unit properties, can be null
+     * @param dataSource persistence unit DataSource, can be null
+     * @return database identity, null if unknown
+     */
+    public static String databaseIdentity(Properties properties, DataSource dataSource) {
+        String url = firstProperty(properties, JDBC_URL_PROPERTIES);
+        String user = firstProperty(properties, JDBC_USER_PROPERTIES);
+        if (url == null && dataSource != null) {
+            try (Connection connection = dataSource.getConnection()) {
+                DatabaseMetaData metaData = connection.getMetaData();
+                url = metaData.getURL();
+                user = metaData.getUserName();
+            } catch (SQLException e) {
+                log.warn("Impossible to identify the database of the schema fingerprint: {}", e.getMessage());
+                return null;
+            }
+        }
+        if (url == null)
+            return null;
+        String defaultSchema = properties != null ? properties.getProperty(HIBERNATE_DEFAULT_SCHEMA) : null;
+        return url + "|" + Objects.toString(user, "") + "|" + Objects.toString(defaultSchema, "");
+    }
+
+    private static String firstProperty(Properties properties, String[] keys) {
+        if (properties == null)
+            return null;
+        return Arrays.stream(keys).map(properties::getProperty).filter(Objects::nonNull).findFirst().orElse(null);
+    }
+
+    /**
+     * Computes the mapping fingerprint of the given classes.
+     *
+     * @param classNames  managed classes
+     * @param classLoader class loader used to load managed classes
+     * @return the fingerprint or null if it cannot be computed
+     */
+    public String computeFingerprint(Collection<String> classNames, ClassLoader classLoader) {
+        if (classNames == null || classNames.isEmpty() || classLoader == null)
+            return null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Set<Class<?>> hierarchy = new LinkedHashSet<>();
+            for (String className : new TreeSet<>(classNames)) {
+                Class<?> current = Class.forName(className, false, classLoader);
+                while (current != null && current.getClassLoader() != null) {
+                    hierarchy.add(current);
+                    current = current.getSuperclass();
+                }
+            }
+            for (Class<?> mappedClass : hierarchy) {
+                digest.update(mappedClass.getName().getBytes(StandardCharsets.UTF_8));
+                try (InputStream classBytes = mappedClass.getClassLoader().getResourceAsStream(mappedClass.getName().replace('.', '/') + ".class")) {
+                    if (classBytes == null)
+                        return null;
+                    digest.update(classBytes.readAllBytes());
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (ClassNotFoundException | IOException | NoSuchAlgorithmException e) {
+            log.warn("Impossible to compute schema fingerprint: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param persistenceUnitName persistence unit name
+     * @param databaseIdentity    database identity, see databaseIdentity
+     * @param fingerprint         current fingerprint
+     * @return true if the fingerprint matches the one saved after the last successful bootstrap on the same database
+     */
+    public boolean isUnchanged(String persistenceUnitName, String databaseIdentity, String fingerprint) {
+        if (fingerprint == null || databaseIdentity == null)
+            return false;
+        Path fingerprintFile = fingerprintFile(persistenceUnitName, databaseIdentity);
+        try {
+            return Files.exists(fingerprintFile) && fingerprint.equals(Files.readString(fingerprintFile, StandardCharsets.UTF_8).trim());
+        } catch (IOException e) {
+            log.warn("Impossible to read schema fingerprint {}: {}", fingerprintFile, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Saves the fingerprint, it should be invoked only after the schema has been successfully managed.
+     *
+     * @param persistenceUnitName persistence unit name
+     * @param databaseIdentity    database identity, see databaseIdentity
+     * @param fingerprint         fingerprint to save
+     */
+    public void store(String persistenceUnitName, String databaseIdentity, String fingerprint) {
+        if (fingerprint == null || databaseIdentity == null)
+            return;
+        Path fingerprintFile = fingerprintFile(persistenceUnitName, databaseIdentity);
+        try {
+            Files.createDirectories(cacheDir);
+            Files.writeString(fingerprintFile, fingerprint, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warn("Impossible to save schema fingerprint {}: {}", fingerprintFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the saved fingerprint, so the schema is managed again on the next bootstrap.
+     *
+     * @param persistenceUnitName persistence unit name
+     * @param databaseIdentity    database identity, see databaseIdentity
+     */
+    public void remove(String persistenceUnitName, String databaseIdentity) {
+        if (databaseIdentity == null)
+            return;
+        Path fingerprintFile = fingerprintFile(persistenceUnitName, databaseIdentity);
+        try {
+            Files.deleteIfExists(fingerprintFile);
+        } catch (IOException e) {
+            log.warn("Impossible to remove schema fingerprint {}: {}", fingerprintFile, e.getMessage());
+        }
+    }
+
+    private Path fingerprintFile(String persistenceUnitName, String databaseIdentity) {
+        try {
+            byte[] databaseHash = MessageDigest.getInstance("SHA-256").digest(databaseIdentity.getBytes(StandardCharsets.UTF_8));
+            return cacheDir.resolve(persistenceUnitName.replaceAll("[^a-zA-Z0-9._-]", "_") + "-" + HexFormat.of().formatHex(databaseHash, 0, 8) + ".fingerprint");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.schema;
+
+import java.util.Properties;
+
+/**
+ * @Author Aristide Cittadino
+ * Defines how the database schema is managed when a persistence unit is bootstrapped.
+ * It can be configured with the property water.repository.jpa.schema.mode (none, validate, update)
+ * inside persistence unit properties or as system property. Default is update.
+ */
+public enum SchemaMode {
+    NONE("none"), VALIDATE("validate"), UPDATE("update");
+
+    public static final String SCHEMA_MODE_PROPERTY = "water.repository.jpa.schema.mode";
+    public static final String HIBERNATE_HBM2DDL_AUTO = "hibernate.hbm2ddl.auto";
+
+    private final String hbm2ddlValue;
+
+    SchemaMode(String hbm2ddlValue) {
+        this.hbm2ddlValue = hbm2ddlValue;
+    }
+
+    /**
+     * @return related hibernate.hbm2ddl.auto value
+     */
+    public String getHbm2ddlValue() {
+        return hbm2ddlValue;
+    }
+
+    /**
+     * @param properties persistence unit properties, can be null
+     * @return schema mode defined in properties, or in system properties, update otherwise
+     */
+    public static SchemaMode fromProperties(Properties properties) {
+        String value = properties != null ? properties.getProperty(SCHEMA_MODE_PROPERTY) : null;
+        if (value == null)
+            value = System.getProperty(SCHEMA_MODE_PROPERTY, UPDATE.hbm2ddlValue);
+        for (SchemaMode schemaMode : values()) {
+            if (schemaMode.hbm2ddlValue.equalsIgnoreCase(value.trim()))
+                return schemaMode;
+        }
+        throw new IllegalArgumentException("Invalid schema mode: " + value + ", allowed values are none, validate, update");
+    }
+}
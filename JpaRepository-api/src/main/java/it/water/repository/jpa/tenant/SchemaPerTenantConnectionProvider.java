@@ -0,0 +1,119 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.tenant;
+
+import org.hibernate.context.spi.CurrentTenantIdentifierResolver;
+import org.hibernate.engine.jdbc.connections.spi.MultiTenantConnectionProvider;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * @Author Aristide Cittadino
+ * Hibernate multi tenant connection provider: connections are borrowed from a pooled DataSource
+ * and switched to the tenant schema, then switched back before returning them to the pool.
+ * It is also the tenant identifier resolver, based on TenantContext.
+ */
+public class SchemaPerTenantConnectionProvider implements MultiTenantConnectionProvider<String>, CurrentTenantIdentifierResolver<String> {
+    private final transient DataSource pooledDataSource;
+    private volatile String defaultSchema;
+
+    /**
+     * @param pooledDataSource pooled DataSource, connections are borrowed for each session
+     * @param defaultSchema    schema used when no tenant is set, if null it is the DataSource default one
+     */
+    public SchemaPerTenantConnectionProvider(DataSource pooledDataSource, String defaultSchema) {
+        this.pooledDataSource = pooledDataSource;
+        this.defaultSchema = defaultSchema;
+    }
+
+    @Override
+    public Connection getAnyConnection() throws SQLException {
+        Connection connection = pooledDataSource.getConnection();
+        if (defaultSchema == null)
+            defaultSchema = connection.getSchema();
+        return connection;
+    }
+
+    @Override
+    public void releaseAnyConnection(Connection connection) throws SQLException {
+        connection.close();
+    }
+
+    @Override
+    public Connection getConnection(String tenantIdentifier) throws SQLException {
+        Connection connection = getAnyConnection();
+        try {
+            connection.setSchema(tenantIdentifier);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    @Override
+    public void releaseConnection(String tenantIdentifier, Connection connection) throws SQLException {
+        try {
+            //pooled connections must not keep the tenant schema
+            connection.setSchema(defaultSchema);
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+
+    @Override
+    public String resolveCurrentTenantIdentifier() {
+        String tenant = TenantContext.getCurrentTenant();
+        if (tenant != null)
+            return tenant;
+        if (defaultSchema == null) {
+            try (Connection connection = getAnyConnection()) {
+                return connection.getSchema();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Impossible to resolve default schema: " + e.getMessage(), e);
+            }
+        }
+        return defaultSchema;
+    }
+
+    @Override
+    public boolean validateExistingCurrentSessions() {
+        return false;
+    }
+
+    @Override
+    public boolean isUnwrappableAs(Class<?> unwrapType) {
+        return unwrapType.isInstance(this) || unwrapType.isInstance(pooledDataSource);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <U> U unwrap(Class<U> unwrapType) {
+        if (unwrapType.isInstance(this))
+            return (U) this;
+        if (unwrapType.isInstance(pooledDataSource))
+            return (U) pooledDataSource;
+        throw new IllegalArgumentException("Cannot unwrap to " + unwrapType.getName());
+    }
+}
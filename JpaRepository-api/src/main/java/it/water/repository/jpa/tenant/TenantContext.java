@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.tenant;
+
+import java.util.function.Supplier;
+
+/**
+ * @Author Aristide Cittadino
+ * Holds the tenant of the current thread.
+ * It is used to route reads, which do not carry an owner, to the right tenant schema.
+ */
+public class TenantContext {
+    private static final ThreadLocal<String> currentTenant = new ThreadLocal<>();
+
+    private TenantContext() {
+    }
+
+    /**
+     * @return the tenant of the current thread, null if not set
+     */
+    public static String getCurrentTenant() {
+        return currentTenant.get();
+    }
+
+    /**
+     * Executes the supplier as the given tenant, restoring the previous tenant at the end
+     *
+     * @param tenant
+     * @param supplier
+     * @return supplier result
+     */
+    public static <R> R callAs(String tenant, Supplier<R> supplier) {
+        String previousTenant = currentTenant.get();
+        currentTenant.set(tenant);
+        try {
+            return supplier.get();
+        } finally {
+            if (previousTenant == null)
+                currentTenant.remove();
+            else
+                currentTenant.set(previousTenant);
+        }
+    }
+
+    /**
+     * Executes the runnable as the given tenant, restoring the previous tenant at the end
+     *
+     * @param tenant
+     * @param runnable
+     */
+    public static void runAs(String tenant, Runnable runnable) {
+        callAs(tenant, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+}
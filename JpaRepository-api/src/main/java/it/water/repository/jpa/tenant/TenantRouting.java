@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.tenant;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityTransaction;
+import lombok.Getter;
+import lombok.Setter;
+import org.hibernate.SessionFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * @Author Aristide Cittadino
+ * Routes operations on OwnedResource entities to the schema of their tenant, through Hibernate multi tenancy.
+ * Tenants are derived from owner ids (tenantPrefix + ownerUserId), so each owner reads and writes only its own tables and indexes.
+ * Operations of the same tenant nested in the same thread share the same entity manager.
+ */
+public class TenantRouting {
+    public static final String MULTI_TENANT_CONNECTION_PROVIDER = "hibernate.multi_tenant_connection_provider";
+    public static final String TENANT_IDENTIFIER_RESOLVER = "hibernate.tenant_identifier_resolver";
+    public static final String DEFAULT_TENANT_PREFIX = "TENANT_";
+    //tenants are used as schema names, so only safe identifiers are accepted
+    private static final Pattern TENANT_PATTERN = Pattern.compile("[A-Za-z0-9_]+");
+
+    @Getter
+    private final EntityManagerFactory entityManagerFactory;
+    private final Consumer<String> tenantProvisioner;
+    private final Set<String> provisionedTenants = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<TenantSession> currentSession = new ThreadLocal<>();
+    @Setter
+    @Getter
+    private String tenantPrefix = DEFAULT_TENANT_PREFIX;
+    /**
+     * When true, tenant schemas are created or updated the first time they are used
+     */
+    @Setter
+    @Getter
+    private boolean autoProvisioning;
+
+    /**
+     * @param entityManagerFactory multi tenant entity manager factory
+     * @param tenantProvisioner    creates or updates the schema of a tenant
+     */
+    public TenantRouting(EntityManagerFactory entityManagerFactory, Consumer<String> tenantProvisioner) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.tenantProvisioner = tenantProvisioner;
+    }
+
+    /**
+     * @param ownerUserId
+     * @return the tenant of the given owner
+     */
+    public String tenantOf(long ownerUserId) {
+        return tenantPrefix + ownerUserId;
+    }
+
+    /**
+     * Creates or updates the schema of the tenant
+     *
+     * @param tenant
+     */
+    public void provision(String tenant) {
+        checkTenant(tenant);
+        tenantProvisioner.accept(tenant);
+        provisionedTenants.add(tenant);
+    }
+
+    /**
+     * Executes the function with an entity manager bound to the tenant schema, without starting a transaction: used for reads,
+     * writes must use executeInTransaction
+     *
+     * @param tenant
+     * @param function
+     * @return function result
+     */
+    public <R> R execute(String tenant, Function<EntityManager, R> function) {
+        checkTenant(tenant);
+        TenantSession previousSession = currentSession.get();
+        if (previousSession != null && previousSession.tenant().equals(tenant))
+            return function.apply(previousSession.entityManager());
+        if (autoProvisioning && !provisionedTenants.contains(tenant))
+            provision(tenant);
+        EntityManager entityManager = entityManagerFactory.unwrap(SessionFactory.class).withOptions().tenantIdentifier(tenant).openSession();
+        currentSession.set(new TenantSession(tenant, entityManager));
+        try {
+            return TenantContext.callAs(tenant, () -> function.apply(entityManager));
+        } finally {
+            if (previousSession == null)
+                currentSession.remove();
+            else
+                currentSession.set(previousSession);
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Executes the function with an entity manager bound to the tenant schema, inside a resource local transaction of the tenant session.
+     * The transaction is owned by the call which begins it: it is committed when the function completes and rolled back when it fails,
+     * nested calls of the same tenant join it. Transactions of the container are never used, since tenant sessions are not enlisted in them.
+     *
+     * @param tenant
+     * @param function
+     * @return function result
+     */
+    public <R> R executeInTransaction(String tenant, Function<EntityManager, R> function) {
+        return execute(tenant, entityManager -> {
+            EntityTransaction transaction = entityManager.getTransaction();
+            if (transaction.isActive())
+                return function.apply(entityManager);
+            transaction.begin();
+            try {
+                R result = function.apply(entityManager);
+                transaction.commit();
+                return result;
+            } catch (RuntimeException e) {
+                //a failed commit has already rolled back the transaction
+                if (transaction.isActive())
+                    transaction.rollback();
+                //pending writes were never flushed, they must not be flushed by a following transaction of the same session
+                entityManager.clear();
+                throw e;
+            }
+        });
+    }
+
+    private static void checkTenant(String tenant) {
+        if (tenant == null || !TENANT_PATTERN.matcher(tenant).matches())
+            throw new IllegalArgumentException("Invalid tenant: " + tenant);
+    }
+
+    private record TenantSession(String tenant, EntityManager entityManager) {
+    }
+}
@@ -15,34 +15,100 @@
  */
 package it.water.repository.jpa;
 
+import it.water.core.api.bundle.ApplicationProperties;
 import it.water.core.api.model.PaginableResult;
 import it.water.core.api.registry.ComponentRegistry;
+import it.water.core.api.repository.RepositoryConstraintValidator;
 import it.water.core.api.repository.query.Query;
+import it.water.core.api.repository.query.QueryBuilder;
 import it.water.core.api.repository.query.operands.FieldValueOperand;
 import it.water.core.api.repository.query.operations.*;
 import it.water.core.api.service.Service;
 import it.water.core.interceptors.annotations.Inject;
+import it.water.core.model.exceptions.WaterRuntimeException;
 import it.water.core.testing.utils.junit.WaterTestExtension;
 import it.water.repository.entity.model.exceptions.DuplicateEntityException;
+import it.water.repository.entity.model.exceptions.EntityNotFound;
 import it.water.repository.entity.model.exceptions.NoResultException;
 import it.water.repository.jpa.api.TestEntityDetailsRepository;
+import it.water.repository.jpa.api.JpaRepository;
+import it.water.repository.jpa.api.JpaRepositoryManager;
+import it.water.repository.jpa.api.ShardFunction;
 import it.water.repository.jpa.api.TestEntityRepository;
+import it.water.repository.jpa.batch.BatchResult;
+import it.water.repository.jpa.concurrent.BoundedQueryExecutors;
+import it.water.repository.jpa.constraints.DuplicateBloomFilter;
 import it.water.repository.jpa.constraints.DuplicateConstraintValidator;
+import it.water.repository.jpa.constraints.NaturalKeyLookup;
+import it.water.repository.jpa.constraints.UniquenessMode;
+import it.water.repository.jpa.datasource.PooledDataSourceFactory;
 import it.water.repository.jpa.entity.TestEntity;
 import it.water.repository.jpa.entity.TestEntityDetails;
+import it.water.repository.jpa.entity.TestNaturalIdEntity;
+import it.water.repository.jpa.entity.TestOwnedEntity;
+import it.water.repository.jpa.id.TimeOrderedIdGenerator;
+import it.water.repository.jpa.index.JpaClassIndex;
+import it.water.repository.jpa.id.WaterIdGenerator;
 import it.water.repository.jpa.model.AbstractJpaExpandableEntity;
+import it.water.repository.jpa.query.FetchPlan;
+import it.water.repository.jpa.query.ParsedQueryCache;
 import it.water.repository.jpa.query.PredicateBuilder;
+import it.water.repository.jpa.query.QueryNormalizer;
+import it.water.repository.jpa.repository.TestEntityDetailsRepositoryImpl;
 import it.water.repository.jpa.repository.TestEntityRepositoryImpl;
+import it.water.repository.jpa.routing.ReadReplicaRouting;
+import it.water.repository.jpa.schema.SchemaFingerprintCache;
+import it.water.repository.jpa.schema.SchemaMode;
+import it.water.repository.jpa.tenant.TenantContext;
+import it.water.repository.jpa.tenant.TenantRouting;
 import it.water.repository.query.order.DefaultQueryOrder;
 import it.water.repository.query.order.DefaultQueryOrderParameter;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.FlushModeType;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.PersistenceException;
 import jakarta.persistence.criteria.Root;
+import jakarta.persistence.spi.PersistenceUnitTransactionType;
+import jakarta.transaction.Transactional;
 import lombok.Setter;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.hibernate.Session;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.exception.JDBCConnectionException;
+import org.hsqldb.jdbc.JDBCPool;
+import org.mockito.Mockito;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLTransientConnectionException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -140,6 +206,80 @@ class JpaRepositoryTest implements Service {
 
     @Test
     @Order(4)
+    void testFindAllWithParallelCount() {
+        Thread callerThread = Thread.currentThread();
+        AtomicReference<Thread> countThread = new AtomicReference<>();
+        AtomicBoolean pageQueryDoneDuringCount = new AtomicBoolean();
+        TestEntityRepositoryImpl parallelCountRepository = new TestEntityRepositoryImpl(TestEntity.class, testEntityRepository.getEntityManager()) {
+            @Override
+            protected long doCountAll(Query filter, EntityManager em) {
+                //the count is still running while the caller thread, after the page query, waits for its result
+                countThread.set(Thread.currentThread());
+                pageQueryDoneDuringCount.set(Thread.currentThread() != callerThread && awaitCountJoin(callerThread));
+                return super.doCountAll(filter, em);
+            }
+        };
+        parallelCountRepository.setParallelCountEnabled(true);
+        DefaultQueryOrder order = new DefaultQueryOrder();
+        order.addOrderField("uniqueField", true);
+        PaginableResult<TestEntity> results = parallelCountRepository.findAll(1, 1, null, order);
+        Assertions.assertEquals(1, results.getResults().size());
+        Assertions.assertEquals(2, results.getNextPage());
+        Assertions.assertEquals(testEntityRepository.findAll(1, 1, null, order).getNextPage(), results.getNextPage());
+        Assertions.assertNotSame(callerThread, countThread.get());
+        Assertions.assertTrue(pageQueryDoneDuringCount.get());
+        //parallel count threads are bounded and counts run in the caller thread when all of them are busy
+        Assertions.assertEquals(BoundedQueryExecutors.DEFAULT_MAX_THREADS, ((ThreadPoolExecutor) parallelCountRepository.getParallelCountExecutor()).getMaximumPoolSize());
+        System.setProperty("water.test.parallel.count.threads", "1");
+        ExecutorService boundedExecutor = BoundedQueryExecutors.create("water-test-parallel-count", "water.test.parallel.count.threads");
+        CountDownLatch busy = new CountDownLatch(1);
+        try {
+            boundedExecutor.execute(() -> awaitQuietly(busy));
+            parallelCountRepository.setParallelCountExecutor(boundedExecutor);
+            Assertions.assertEquals(2, parallelCountRepository.findAll(1, 1, null, order).getNextPage());
+            Assertions.assertSame(callerThread, countThread.get());
+        } finally {
+            busy.countDown();
+            boundedExecutor.shutdown();
+        }
+        //invalid thread counts fall back to the default
+        try {
+            for (String invalidThreads : List.of("0", "many")) {
+                System.setProperty("water.test.parallel.count.threads", invalidThreads);
+                ExecutorService defaultExecutor = BoundedQueryExecutors.create("water-test-parallel-count", "water.test.parallel.count.threads");
+                Assertions.assertEquals(BoundedQueryExecutors.DEFAULT_MAX_THREADS, ((ThreadPoolExecutor) defaultExecutor).getMaximumPoolSize());
+                defaultExecutor.shutdown();
+            }
+        } finally {
+            System.clearProperty("water.test.parallel.count.threads");
+        }
+    }
+
+    private boolean awaitCountJoin(Thread callerThread) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            if (Arrays.stream(callerThread.getStackTrace()).anyMatch(element -> "joinCount".equals(element.getMethodName())))
+                return true;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    @Order(5)
     void testFindAndUpdate() {
         TestEntity foundEntity = testEntityRepository.find(testEntityRepository.getQueryBuilderInstance().field("uniqueField").equalTo("a"));
         //find by id
@@ -154,7 +294,7 @@ class JpaRepositoryTest implements Service {
     }
 
     @Test
-    @Order(5)
+    @Order(6)
     void testRemoveById() {
         TestEntity newEntity = new TestEntity();
         newEntity.setUniqueField("uniqueField");
@@ -170,7 +310,7 @@ class JpaRepositoryTest implements Service {
     }
 
     @Test
-    @Order(6)
+    @Order(7)
     void testRemoveEntity() {
         TestEntity newEntity = new TestEntity();
         newEntity.setUniqueField("uniqueField");
@@ -186,7 +326,7 @@ class JpaRepositoryTest implements Service {
     }
 
     @Test
-    @Order(7)
+    @Order(8)
     void testRemoveEntityByIds() {
         TestEntity newEntity = new TestEntity();
         newEntity.setUniqueField("uniqueField");
@@ -214,7 +354,7 @@ class JpaRepositoryTest implements Service {
     }
 
     @Test
-    @Order(8)
+    @Order(9)
     void testRemoveEntities() {
         TestEntity newEntity = new TestEntity();
         newEntity.setUniqueField("uniqueField");
@@ -242,14 +382,14 @@ class JpaRepositoryTest implements Service {
     }
 
     @Test
-    @Order(8)
+    @Order(10)
     void testRemoveAll() {
         testEntityRepository.removeAll();
         Assertions.assertEquals(0, testEntityRepository.findAll(1, 1, null, null).getResults().size());
     }
 
     @Test
-    @Order(9)
+    @Order(11)
     void testOrderParameter() {
         DefaultQueryOrderParameter param1 = new DefaultQueryOrderParameter();
         param1.setName("a");
@@ -263,7 +403,7 @@ class JpaRepositoryTest implements Service {
     }
 
     @Test
-    @Order(10)
+    @Order(12)
     void testPredicateGeneration() {
         Root<TestEntity> root = testEntityRepository.getEntityManager().getCriteriaBuilder().createQuery(TestEntity.class).from(TestEntity.class);
         PredicateBuilder<TestEntity> predicateBuilder = new PredicateBuilder<>(root, testEntityRepository.getEntityManager().getCriteriaBuilder().createQuery(TestEntity.class), testEntityRepository.getEntityManager().getCriteriaBuilder());
@@ -317,7 +457,7 @@ class JpaRepositoryTest implements Service {
     }
 
     @Test
-    @Order(11)
+    @Order(13)
     void testBaseJpaRepositoryConstructors() {
         Assertions.assertDoesNotThrow(() -> new TestEntityRepositoryImpl());
         Assertions.assertDoesNotThrow(() -> new TestEntityRepositoryImpl(TestEntity.class, "water-default-persistence-unit", testEntityRepository.getEntityManager()));
@@ -326,7 +466,7 @@ class JpaRepositoryTest implements Service {
     }
 
     @Test
-    @Order(12)
+    @Order(14)
     void testEntityExtension() {
         TestEntity testEntity = new TestEntity();
         TestEntityDetails testEntityDetails = new TestEntityDetails();
@@ -367,14 +507,1078 @@ class JpaRepositoryTest implements Service {
     }
 
     @Test
-    @Order(13)
+    @Order(15)
     void testPersistenceUnitInfo() {
         WaterPersistenceUnitInfo waterPersistenceUnitInfo = new WaterPersistenceUnitInfo("water-default-persistence", TestEntity.class);
         Assertions.assertDoesNotThrow(() -> waterPersistenceUnitInfo.addManagedClass("classProva"));
         Assertions.assertNotNull(waterPersistenceUnitInfo.getPersistenceProviderClassName());
         Assertions.assertNotNull(waterPersistenceUnitInfo.getPersistenceXMLSchemaVersion());
+        //invalid batch sizes fall back to the default one instead of failing the bootstrap
+        Assertions.assertEquals("50", jdbcBatchSize("many"));
+        Assertions.assertEquals("50", jdbcBatchSize("-1"));
+        Assertions.assertEquals("20", jdbcBatchSize(" 20 "));
+        Assertions.assertEquals("0", jdbcBatchSize("0"));
+    }
+
+    private String jdbcBatchSize(String configuredBatchSize) {
+        Properties properties = new Properties();
+        properties.setProperty(WaterPersistenceUnitInfo.JDBC_BATCH_SIZE_PROPERTY, configuredBatchSize);
+        WaterPersistenceUnitInfo waterPersistenceUnitInfo = new WaterPersistenceUnitInfo("water-default-persistence", TestEntity.class, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, properties);
+        return waterPersistenceUnitInfo.getProperties().getProperty(WaterPersistenceUnitInfo.HIBERNATE_JDBC_BATCH_SIZE);
+    }
+
+    @Test
+    @Order(16)
+    void testPersistenceUnitInfoFromClassIndex() {
+        WaterPersistenceUnitInfo waterPersistenceUnitInfo = new WaterPersistenceUnitInfo("water-default-persistence", TestEntity.class);
+        Assertions.assertTrue(waterPersistenceUnitInfo.getManagedClassNames().contains(TestEntity.class.getName()));
+        Assertions.assertTrue(waterPersistenceUnitInfo.getManagedClassNames().contains(TestEntityDetails.class.getName()));
+        Assertions.assertTrue(waterPersistenceUnitInfo.excludeUnlistedClasses());
+        Assertions.assertEquals("none", waterPersistenceUnitInfo.getProperties().getProperty(WaterPersistenceUnitInfo.HIBERNATE_ARCHIVE_AUTODETECTION));
+    }
+
+    @Test
+    @Order(17)
+    void testClassIndexRootMatching() throws IOException {
+        //the nested root path contains the persistence unit root path, its index must not be included
+        Path root = Files.createTempDirectory("water-index-root");
+        Path nestedRoot = root.resolve("nested");
+        for (Path indexRoot : List.of(root, nestedRoot)) {
+            Path indexFile = indexRoot.resolve(JpaClassIndex.ANNOTATION_INDEX_PATH + "jakarta.persistence.Entity");
+            Files.createDirectories(indexFile.getParent());
+            Files.writeString(indexFile, indexRoot.getFileName() + ".Entity\n");
+        }
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{nestedRoot.toUri().toURL(), root.toUri().toURL()}, null)) {
+            Collection<URL> indexUrls = JpaClassIndex.findIndexUrls(classLoader, root.toUri().toURL());
+            Assertions.assertEquals(1, indexUrls.size());
+            Assertions.assertEquals(Set.of(root.getFileName() + ".Entity"), JpaClassIndex.readClassNames(indexUrls));
+        }
+        Assertions.assertEquals("/lib/a.jar/META-INF/x", JpaClassIndex.normalizePath(new URL("jar:file:/lib/a.jar!/META-INF/x")));
+        Assertions.assertEquals("/lib/a.jar", JpaClassIndex.normalizePath(new URL("file:/lib/a.jar")));
+    }
+
+    @Test
+    @Order(18)
+    void testPersistenceUnitInfoSchemaMode() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(SchemaMode.SCHEMA_MODE_PROPERTY, "validate");
+        WaterPersistenceUnitInfo validateUnitInfo = new WaterPersistenceUnitInfo("water-default-persistence", TestEntity.class, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, properties);
+        Assertions.assertEquals(SchemaMode.VALIDATE, validateUnitInfo.getSchemaMode());
+        Assertions.assertEquals("validate", validateUnitInfo.getProperties().getProperty(SchemaMode.HIBERNATE_HBM2DDL_AUTO));
+        properties.setProperty(SchemaMode.SCHEMA_MODE_PROPERTY, "wrong");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new WaterPersistenceUnitInfo("water-default-persistence", TestEntity.class, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, properties));
+        //fingerprint cache: first bootstrap updates the schema, next ones skip schema management if mapping is unchanged
+        Path cacheDir = Files.createTempDirectory("water-jpa-schema");
+        properties.setProperty(SchemaMode.SCHEMA_MODE_PROPERTY, "update");
+        properties.setProperty(SchemaFingerprintCache.FINGERPRINT_CACHE_ENABLED_PROPERTY, "true");
+        properties.setProperty(SchemaFingerprintCache.FINGERPRINT_CACHE_DIR_PROPERTY, cacheDir.toString());
+        properties.setProperty("javax.persistence.jdbc.url", "jdbc:hsqldb:mem:fingerprintdb");
+        WaterPersistenceUnitInfo firstUnitInfo = new WaterPersistenceUnitInfo("water-fingerprint-persistence", TestEntity.class, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, properties);
+        Assertions.assertEquals("update", firstUnitInfo.getProperties().getProperty(SchemaMode.HIBERNATE_HBM2DDL_AUTO));
+        firstUnitInfo.onEntityManagerFactoryCreated();
+        //unchanged mapping: mapped tables are only validated, one by one
+        WaterPersistenceUnitInfo secondUnitInfo = new WaterPersistenceUnitInfo("water-fingerprint-persistence", TestEntity.class, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, properties);
+        Assertions.assertEquals("validate", secondUnitInfo.getProperties().getProperty(SchemaMode.HIBERNATE_HBM2DDL_AUTO));
+        Assertions.assertEquals("individually", secondUnitInfo.getProperties().getProperty(WaterPersistenceUnitInfo.HIBERNATE_HBM2DDL_METADATA_EXTRACTION_STRATEGY));
+        //a failed validation removes the fingerprint, so the schema is updated on the next bootstrap
+        secondUnitInfo.onEntityManagerFactoryFailed();
+        WaterPersistenceUnitInfo afterFailureUnitInfo = new WaterPersistenceUnitInfo("water-fingerprint-persistence", TestEntity.class, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, properties);
+        Assertions.assertEquals("update", afterFailureUnitInfo.getProperties().getProperty(SchemaMode.HIBERNATE_HBM2DDL_AUTO));
+        afterFailureUnitInfo.onEntityManagerFactoryCreated();
+        //the cache folder can be set also as system property
+        Path systemCacheDir = Files.createTempDirectory("water-jpa-schema-system");
+        properties.remove(SchemaFingerprintCache.FINGERPRINT_CACHE_DIR_PROPERTY);
+        System.setProperty(SchemaFingerprintCache.FINGERPRINT_CACHE_DIR_PROPERTY, systemCacheDir.toString());
+        try {
+            WaterPersistenceUnitInfo systemDirUnitInfo = new WaterPersistenceUnitInfo("water-fingerprint-persistence", TestEntity.class, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, properties);
+            Assertions.assertEquals("update", systemDirUnitInfo.getProperties().getProperty(SchemaMode.HIBERNATE_HBM2DDL_AUTO));
+            systemDirUnitInfo.onEntityManagerFactoryCreated();
+            try (Stream<Path> fingerprints = Files.list(systemCacheDir)) {
+                Assertions.assertEquals(1, fingerprints.count());
+            }
+        } finally {
+            System.clearProperty(SchemaFingerprintCache.FINGERPRINT_CACHE_DIR_PROPERTY);
+            properties.setProperty(SchemaFingerprintCache.FINGERPRINT_CACHE_DIR_PROPERTY, cacheDir.toString());
+        }
+        //the same persistence unit on another database is managed again
+        properties.setProperty("javax.persistence.jdbc.url", "jdbc:hsqldb:mem:otherfingerprintdb");
+        WaterPersistenceUnitInfo otherDatabaseUnitInfo = new WaterPersistenceUnitInfo("water-fingerprint-persistence", TestEntity.class, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, properties);
+        Assertions.assertEquals("update", otherDatabaseUnitInfo.getProperties().getProperty(SchemaMode.HIBERNATE_HBM2DDL_AUTO));
+        //without a known database schema management is never skipped
+        properties.remove("javax.persistence.jdbc.url");
+        WaterPersistenceUnitInfo unknownDatabaseUnitInfo = new WaterPersistenceUnitInfo("water-fingerprint-persistence", TestEntity.class, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, properties);
+        Assertions.assertEquals("update", unknownDatabaseUnitInfo.getProperties().getProperty(SchemaMode.HIBERNATE_HBM2DDL_AUTO));
+    }
+
+
+    @Test
+    @Order(19)
+    void testConcreteRepositoryCreatedOnce() throws InterruptedException {
+        JpaRepositoryManager jpaRepositoryManager = Mockito.mock(JpaRepositoryManager.class);
+        Mockito.when(jpaRepositoryManager.createConcreteRepository(TestEntity.class, "water-default-persistence-unit")).thenReturn(new TestEntityRepositoryImpl(TestEntity.class, testEntityRepository.getEntityManager()));
+        WaterJpaRepositoryImpl<TestEntity> waterJpaRepository = new WaterJpaRepositoryImpl<>(TestEntity.class, "water-default-persistence-unit");
+        waterJpaRepository.setJpaRepositoryManager(jpaRepositoryManager);
+        int threads = 8;
+        CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executorService.submit(() -> {
+                startLatch.await();
+                return waterJpaRepository.getEntityManager();
+            });
+        }
+        startLatch.countDown();
+        executorService.shutdown();
+        Assertions.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+        waterJpaRepository.setEagerInitialization(true);
+        waterJpaRepository.onActivate();
+        Mockito.verify(jpaRepositoryManager, Mockito.times(1)).createConcreteRepository(TestEntity.class, "water-default-persistence-unit");
+        //eager initialization from application properties
+        ApplicationProperties applicationProperties = Mockito.mock(ApplicationProperties.class);
+        Mockito.when(applicationProperties.getProperty(WaterJpaRepositoryImpl.EAGER_INITIALIZATION_PROPERTY)).thenReturn("true");
+        WaterJpaRepositoryImpl<TestEntity> configuredRepository = new WaterJpaRepositoryImpl<>(TestEntity.class, "water-default-persistence-unit");
+        configuredRepository.setJpaRepositoryManager(jpaRepositoryManager);
+        configuredRepository.setApplicationProperties(applicationProperties);
+        configuredRepository.onActivate();
+        Mockito.verify(jpaRepositoryManager, Mockito.times(2)).createConcreteRepository(TestEntity.class, "water-default-persistence-unit");
+        //eager initialization from system properties, application properties take precedence
+        System.setProperty(WaterJpaRepositoryImpl.EAGER_INITIALIZATION_PROPERTY, "true");
+        try {
+            WaterJpaRepositoryImpl<TestEntity> systemConfiguredRepository = new WaterJpaRepositoryImpl<>(TestEntity.class, "water-default-persistence-unit");
+            systemConfiguredRepository.setJpaRepositoryManager(jpaRepositoryManager);
+            systemConfiguredRepository.onActivate();
+            Mockito.verify(jpaRepositoryManager, Mockito.times(3)).createConcreteRepository(TestEntity.class, "water-default-persistence-unit");
+            Mockito.when(applicationProperties.getProperty(WaterJpaRepositoryImpl.EAGER_INITIALIZATION_PROPERTY)).thenReturn("false");
+            WaterJpaRepositoryImpl<TestEntity> disabledRepository = new WaterJpaRepositoryImpl<>(TestEntity.class, "water-default-persistence-unit");
+            disabledRepository.setJpaRepositoryManager(jpaRepositoryManager);
+            disabledRepository.setApplicationProperties(applicationProperties);
+            disabledRepository.onActivate();
+            Mockito.verify(jpaRepositoryManager, Mockito.times(3)).createConcreteRepository(TestEntity.class, "water-default-persistence-unit");
+        } finally {
+            System.clearProperty(WaterJpaRepositoryImpl.EAGER_INITIALIZATION_PROPERTY);
+        }
+        //lazy by default
+        WaterJpaRepositoryImpl<TestEntity> lazyRepository = new WaterJpaRepositoryImpl<>(TestEntity.class, "water-default-persistence-unit");
+        lazyRepository.setJpaRepositoryManager(jpaRepositoryManager);
+        lazyRepository.onActivate();
+        Mockito.verify(jpaRepositoryManager, Mockito.times(3)).createConcreteRepository(TestEntity.class, "water-default-persistence-unit");
+    }
+
+    @Test
+    @Order(20)
+    void testTimeOrderedIdGenerator() {
+        TimeOrderedIdGenerator idGenerator = new TimeOrderedIdGenerator(1);
+        long previousId = 0;
+        Set<Long> ids = new HashSet<>();
+        //more ids than the per-millisecond sequence in order to test sequence overflow
+        for (int i = 0; i < 10000; i++) {
+            long id = idGenerator.nextId();
+            Assertions.assertTrue(id > previousId);
+            Assertions.assertTrue(ids.add(id));
+            previousId = id;
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new TimeOrderedIdGenerator(TimeOrderedIdGenerator.MAX_NODE_ID + 1));
+    }
+
+    @Test
+    @Order(21)
+    void testExtensionRepositoryResolutionCached() {
+        ComponentRegistry registry = Mockito.mock(ComponentRegistry.class);
+        TestEntityRepositoryImpl repository = new TestEntityRepositoryImpl(TestEntity.class, testEntityRepository.getEntityManager());
+        repository.setComponentRegistry(registry);
+        //without registration notifications, an extension repository registered later is found without invalidation
+        Assertions.assertNull(repository.getExtensionRepository());
+        TestEntityDetailsRepository lateRepository = Mockito.mock(TestEntityDetailsRepository.class);
+        Mockito.doReturn(lateRepository).when(registry).findEntityExtensionRepository(TestEntity.class);
+        Assertions.assertSame(lateRepository, repository.getExtensionRepository());
+        Assertions.assertSame(lateRepository, repository.getExtensionRepository());
+        Mockito.verify(registry, Mockito.times(2)).findEntityExtensionRepository(TestEntity.class);
+        //when the runtime notifies registrations, negative results are cached too until the next invalidation
+        Mockito.doReturn(null).when(registry).findEntityExtensionRepository(TestEntity.class);
+        BaseJpaRepositoryImpl.setExtensionMissesCacheable(true);
+        try {
+            Assertions.assertNull(repository.getExtensionRepository());
+            Assertions.assertNull(repository.getExtensionRepository());
+            Mockito.verify(registry, Mockito.times(3)).findEntityExtensionRepository(TestEntity.class);
+            Mockito.doReturn(lateRepository).when(registry).findEntityExtensionRepository(TestEntity.class);
+            BaseJpaRepositoryImpl.invalidateExtensionRepositories();
+            Assertions.assertSame(lateRepository, repository.getExtensionRepository());
+            Mockito.verify(registry, Mockito.times(4)).findEntityExtensionRepository(TestEntity.class);
+        } finally {
+            BaseJpaRepositoryImpl.setExtensionMissesCacheable(false);
+        }
+    }
+
+    @Test
+    @Order(22)
+    void testEntityExtensionUpsert() {
+        //upsert is opt-in, since bulk updates skip entity listeners, second level cache and dirty checking
+        Assertions.assertFalse(new TestEntityRepositoryImpl().isExtensionUpsertEnabled());
+        TestEntityRepositoryImpl upsertRepository = new TestEntityRepositoryImpl(TestEntity.class, testEntityRepository.getEntityManager());
+        upsertRepository.setComponentRegistry(componentRegistry);
+        upsertRepository.setExtensionUpsertEnabled(true);
+        TestEntity testEntity = new TestEntity();
+        testEntity.setUniqueField("upsert");
+        testEntity.setCombinedUniqueField1("upsert1");
+        testEntity.setCombinedUniqueField2("upsert2");
+        testEntity = upsertRepository.persist(testEntity);
+        testEntity = upsertRepository.find(testEntity.getId());
+        Assertions.assertNull(testEntity.getExtension());
+        //extension does not exist yet so it is inserted
+        TestEntityDetails testEntityDetails = new TestEntityDetails();
+        testEntityDetails.setExtensionField("inserted");
+        testEntityDetails.setImmutableField("inserted");
+        testEntity.setExtension(testEntityDetails);
+        testEntity = upsertRepository.update(testEntity);
+        testEntity = upsertRepository.find(testEntity.getId());
+        testEntityDetails = (TestEntityDetails) testEntity.getExtension();
+        Assertions.assertEquals("inserted", testEntityDetails.getExtensionField());
+        Assertions.assertEquals(1, testEntityDetails.getEntityVersion());
+        //extension coming from a non managed context, without its id, is updated by related entity id
+        TestEntityDetails detachedDetails = new TestEntityDetails();
+        detachedDetails.setExtensionField("updated");
+        detachedDetails.setExtensionField2(3);
+        detachedDetails.setImmutableField("updated");
+        testEntity.setExtension(detachedDetails);
+        testEntity = upsertRepository.update(testEntity);
+        //the returned extension is the stored one
+        TestEntityDetails updatedDetails = (TestEntityDetails) testEntity.getExtension();
+        Assertions.assertEquals(testEntityDetails.getId(), updatedDetails.getId());
+        Assertions.assertEquals(2, updatedDetails.getEntityVersion());
+        testEntity = upsertRepository.find(testEntity.getId());
+        testEntityDetails = (TestEntityDetails) testEntity.getExtension();
+        Assertions.assertEquals("updated", testEntityDetails.getExtensionField());
+        Assertions.assertEquals(3, testEntityDetails.getExtensionField2());
+        Assertions.assertEquals(2, testEntityDetails.getEntityVersion());
+        //not updatable columns are not written
+        Assertions.assertEquals("inserted", testEntityDetails.getImmutableField());
+        long relatedEntityId = testEntity.getId();
+        Assertions.assertEquals(1, testEntityDetailsRepository.countAll(testEntityDetailsRepository.getQueryBuilderInstance().field("relatedEntityId").equalTo(relatedEntityId)));
+        //extensions with a stale version are rejected
+        TestEntityDetails staleDetails = new TestEntityDetails();
+        staleDetails.setExtensionField("stale");
+        staleDetails.setEntityVersion(1);
+        testEntity.setExtension(staleDetails);
+        TestEntity staleEntity = testEntity;
+        Assertions.assertThrows(OptimisticLockException.class, () -> upsertRepository.update(staleEntity));
+        upsertRepository.getEntityManager().clear();
+        Assertions.assertEquals("updated", ((TestEntityDetails) upsertRepository.find(relatedEntityId).getExtension()).getExtensionField());
+        upsertRepository.remove(relatedEntityId);
+    }
+
+    @Test
+    @Order(23)
+    void testEntityExtensionJoinFetch() {
+        TestEntityRepositoryImpl joinFetchRepository = new TestEntityRepositoryImpl(TestEntity.class, testEntityRepository.getEntityManager());
+        joinFetchRepository.setComponentRegistry(componentRegistry);
+        joinFetchRepository.setExtensionJoinFetchEnabled(true);
+        TestEntity testEntity = new TestEntity();
+        testEntity.setUniqueField("joinFetch");
+        testEntity.setCombinedUniqueField1("joinFetch1");
+        testEntity.setCombinedUniqueField2("joinFetch2");
+        TestEntityDetails testEntityDetails = new TestEntityDetails();
+        testEntityDetails.setExtensionField("joined");
+        testEntity.setExtension(testEntityDetails);
+        testEntity = testEntityRepository.persist(testEntity);
+        TestEntity withoutExtension = new TestEntity();
+        withoutExtension.setUniqueField("joinFetchNoExt");
+        withoutExtension.setCombinedUniqueField1("joinFetchNoExt1");
+        withoutExtension.setCombinedUniqueField2("joinFetchNoExt2");
+        withoutExtension = testEntityRepository.persist(withoutExtension);
+        TestEntity found = joinFetchRepository.find(testEntity.getId());
+        Assertions.assertEquals("joinFetch", found.getUniqueField());
+        Assertions.assertEquals("joined", ((TestEntityDetails) found.getExtension()).getExtensionField());
+        Assertions.assertNull(joinFetchRepository.find(withoutExtension.getId()).getExtension());
+        Assertions.assertThrows(NoResultException.class, () -> joinFetchRepository.find(Long.MAX_VALUE));
+        testEntityRepository.remove(testEntity);
+        testEntityRepository.remove(withoutExtension);
+    }
+
+    @Test
+    @Order(24)
+    void testFindWithFetchPlan() {
+        TestEntity testEntity = new TestEntity();
+        testEntity.setUniqueField("fetchPlan");
+        testEntity.setCombinedUniqueField1("fetchPlan1");
+        testEntity.setCombinedUniqueField2("fetchPlan2");
+        testEntity = testEntityRepository.persist(testEntity);
+        FetchPlan fetchPlan = FetchPlan.paths("uniqueField").withPaths("combinedUniqueField1");
+        Assertions.assertEquals(List.of("uniqueField", "combinedUniqueField1"), fetchPlan.getAttributePaths());
+        Assertions.assertEquals("fetchPlan", testEntityRepository.find(testEntity.getId(), fetchPlan).getUniqueField());
+        Query filter = testEntityRepository.getQueryBuilderInstance().field("uniqueField").equalTo("fetchPlan");
+        Assertions.assertEquals(testEntity.getId(), testEntityRepository.find(filter, fetchPlan).getId());
+        Assertions.assertEquals(1, testEntityRepository.findAll(10, 1, filter, null, fetchPlan).getResults().size());
+        Assertions.assertEquals(testEntity.getId(), testEntityRepository.find(testEntity.getId(), null).getId());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> testEntityRepository.find(filter, FetchPlan.named("notExistingGraph")));
+        testEntityRepository.remove(testEntity);
+    }
+
+    @Test
+    @Order(25)
+    void testReadReplicaRouting() {
+        List<DataSource> builtDataSources = new ArrayList<>();
+        TestEntityRepositoryImpl routedRepository = new TestEntityRepositoryImpl(TestEntity.class, testEntityRepository.getEntityManager()) {
+            @Override
+            protected EntityManagerFactory buildEntityManagerFactory(DataSource dataSource, Properties jpaProperties) {
+                builtDataSources.add(dataSource);
+                return super.buildEntityManagerFactory(dataSource, jpaProperties);
+            }
+        };
+        routedRepository.setComponentRegistry(componentRegistry);
+        //replica is a second hsqldb instance, with its own schema since nothing replicates it in tests
+        System.setProperty(ReadReplicaRouting.REPLICA_JDBC_URL_PROPERTY, "jdbc:hsqldb:mem:replicadb");
+        System.setProperty(ReadReplicaRouting.REPLICA_JDBC_USER_PROPERTY, "sa");
+        System.setProperty(ReadReplicaRouting.REPLICA_SCHEMA_MODE_PROPERTY, "update");
+        ReadReplicaRouting readReplicaRouting;
+        try {
+            readReplicaRouting = routedRepository.createDefaultReadReplicaRouting();
+        } finally {
+            System.clearProperty(ReadReplicaRouting.REPLICA_JDBC_URL_PROPERTY);
+            System.clearProperty(ReadReplicaRouting.REPLICA_JDBC_USER_PROPERTY);
+            System.clearProperty(ReadReplicaRouting.REPLICA_SCHEMA_MODE_PROPERTY);
+        }
+        Assertions.assertNotNull(readReplicaRouting);
+        //the replica is built by the same hook of the persistence unit, on a pooled DataSource with the driver detected from the url
+        Assertions.assertEquals(1, builtDataSources.size());
+        Assertions.assertSame(builtDataSources.get(0), pooledDataSourceOf(readReplicaRouting.getReplicaEntityManagerFactory()));
+        //only an unavailable replica falls back to the primary, other errors are thrown
+        Assertions.assertEquals("primary", readReplicaRouting.read(em -> {
+            throw new JDBCConnectionException("replica down", new SQLTransientConnectionException("replica down"));
+        }, () -> "primary"));
+        ReadReplicaRouting failingRouting = readReplicaRouting;
+        Assertions.assertThrows(IllegalArgumentException.class, () -> failingRouting.read(em -> {
+            throw new IllegalArgumentException("wrong query");
+        }, () -> "primary"));
+        routedRepository.setReadReplicaRouting(readReplicaRouting);
+        EntityManager replicaEntityManager = readReplicaRouting.getReplicaEntityManagerFactory().createEntityManager();
+        TestEntity replicaEntity = new TestEntity();
+        replicaEntity.setUniqueField("replicaOnly");
+        replicaEntity.setCombinedUniqueField1("replicaOnly1");
+        replicaEntity.setCombinedUniqueField2("replicaOnly2");
+        replicaEntityManager.getTransaction().begin();
+        replicaEntityManager.persist(replicaEntity);
+        replicaEntityManager.getTransaction().commit();
+        replicaEntityManager.close();
+        Query replicaFilter = routedRepository.getQueryBuilderInstance().field("uniqueField").equalTo("replicaOnly");
+        //reads go to the replica, primary does not contain the entity
+        Assertions.assertEquals("replicaOnly", routedRepository.find(replicaFilter).getUniqueField());
+        Assertions.assertEquals(1, routedRepository.countAll(replicaFilter));
+        Assertions.assertThrows(NoResultException.class, () -> testEntityRepository.find(replicaFilter));
+        //after a write reads stay on the primary for the staleness window
+        TestEntity primaryEntity = new TestEntity();
+        primaryEntity.setUniqueField("primaryOnly");
+        primaryEntity.setCombinedUniqueField1("primaryOnly1");
+        primaryEntity.setCombinedUniqueField2("primaryOnly2");
+        readReplicaRouting.setStalenessMillis(60000);
+        primaryEntity = routedRepository.persist(primaryEntity);
+        Query primaryFilter = routedRepository.getQueryBuilderInstance().field("uniqueField").equalTo("primaryOnly");
+        Assertions.assertEquals(primaryEntity.getId(), routedRepository.find(primaryFilter).getId());
+        Assertions.assertThrows(NoResultException.class, () -> routedRepository.find(replicaFilter));
+        //once the window has elapsed, replica is used again
+        readReplicaRouting.setStalenessMillis(0);
+        Assertions.assertThrows(NoResultException.class, () -> routedRepository.find(primaryFilter));
+        Assertions.assertEquals("replicaOnly", routedRepository.find(replicaFilter).getUniqueField());
+        testEntityRepository.remove(primaryEntity);
+        //the window starts when the write is committed, rolled back writes are not recorded
+        ReadReplicaRouting commitRouting = new ReadReplicaRouting(readReplicaRouting.getReplicaEntityManagerFactory(), 60000);
+        routedRepository.setReadReplicaRouting(commitRouting);
+        Assertions.assertThrows(IllegalStateException.class, () -> routedRepository.unitOfWork(repository -> {
+            repository.persist(createUniqueTestEntity("replicaRolledBack"));
+            throw new IllegalStateException("failure");
+        }));
+        Assertions.assertTrue(commitRouting.isReplicaReadable(TestEntity.class));
+        TestEntity committedEntity = routedRepository.inTransaction(repository -> {
+            TestEntity persisted = repository.persist(createUniqueTestEntity("replicaCommitted"));
+            Assertions.assertTrue(commitRouting.isReplicaReadable(TestEntity.class));
+            return persisted;
+        });
+        Assertions.assertFalse(commitRouting.isReplicaReadable(TestEntity.class));
+        testEntityRepository.remove(committedEntity);
+        readReplicaRouting.getReplicaEntityManagerFactory().close();
+    }
+
+    @Test
+    @Order(26)
+    void testShardedRepository() {
+        ComponentRegistry registry = Mockito.mock(ComponentRegistry.class);
+        JpaRepositoryManager jpaRepositoryManager = Mockito.mock(JpaRepositoryManager.class);
+        Mockito.when(jpaRepositoryManager.createConcreteRepository(Mockito.eq(TestEntity.class), Mockito.anyString())).thenAnswer(invocation -> {
+            TestEntityRepositoryImpl shard = createShardRepository(invocation.getArgument(1));
+            shard.setComponentRegistry(registry);
+            return shard;
+        });
+        ShardFunction<TestEntity> shardFunction = (entity, shardCount) -> entity.getNumberField() < 10 ? 0 : 1;
+        //sequence ids restart in every shard, so time ordered ids or a shard function routing ids are required
+        Assertions.assertThrows(WaterRuntimeException.class, () -> new ShardedWaterJpaRepositoryImpl<>(TestEntity.class, List.of("shard0", "shard1"), shardFunction));
+        Assertions.assertDoesNotThrow(() -> new ShardedWaterJpaRepositoryImpl<>(TestEntity.class, List.of("shard0", "shard1"), new ShardFunction<TestEntity>() {
+            @Override
+            public int shardOf(TestEntity entity, int shardCount) {
+                return 0;
+            }
+
+            @Override
+            public int shardOf(long id, int shardCount) {
+                return 0;
+            }
+        }));
+        ShardedWaterJpaRepositoryImpl<TestEntity> shardedRepository = createTimeOrderedShardedRepository(shardFunction);
+        shardedRepository.setJpaRepositoryManager(jpaRepositoryManager);
+        List<TestEntity> entities = new ArrayList<>();
+        double[] numbers = {1, 12, 5, 20};
+        for (int i = 0; i < numbers.length; i++) {
+            TestEntity testEntity = new TestEntity();
+            testEntity.setUniqueField("s" + i);
+            testEntity.setCombinedUniqueField1("s" + i);
+            testEntity.setCombinedUniqueField2("s" + i);
+            testEntity.setNumberField(numbers[i]);
+            entities.add(shardedRepository.persist(testEntity));
+        }
+        Assertions.assertEquals(4, shardedRepository.countAll(null));
+        Assertions.assertEquals(2, shardedRepository.getShard(0).countAll(null));
+        Assertions.assertEquals(2, shardedRepository.getShard(1).countAll(null));
+        //global pagination merge sorting shard results
+        DefaultQueryOrder order = new DefaultQueryOrder();
+        order.addOrderField("numberField", false);
+        PaginableResult<TestEntity> firstPage = shardedRepository.findAll(3, 1, null, order);
+        Assertions.assertEquals(List.of(20d, 12d, 5d), firstPage.getResults().stream().map(TestEntity::getNumberField).toList());
+        Assertions.assertEquals(2, firstPage.getNextPage());
+        PaginableResult<TestEntity> secondPage = shardedRepository.findAll(3, 2, null, order);
+        Assertions.assertEquals(List.of(1d), secondPage.getResults().stream().map(TestEntity::getNumberField).toList());
+        Assertions.assertEquals(4, shardedRepository.findAll(-1, -1, null, null).getResults().size());
+        Assertions.assertEquals(BoundedQueryExecutors.DEFAULT_MAX_THREADS, ((ThreadPoolExecutor) shardedRepository.getScatterGatherExecutor()).getMaximumPoolSize());
+        //merged results can be ordered by nested paths, null intermediate values come first
+        DefaultQueryOrder nestedOrder = new DefaultQueryOrder();
+        nestedOrder.addOrderField("extension.extensionField", true);
+        List<TestEntity> nestedEntities = new ArrayList<>();
+        for (String extensionField : new String[]{"b", null, "a"}) {
+            TestEntity nestedEntity = createUniqueTestEntity("nested-" + extensionField);
+            if (extensionField != null) {
+                TestEntityDetails details = new TestEntityDetails();
+                details.setExtensionField(extensionField);
+                nestedEntity.setExtension(details);
+            }
+            nestedEntities.add(nestedEntity);
+        }
+        nestedEntities.sort(shardedRepository.comparator(nestedOrder));
+        Assertions.assertEquals(List.of("nested-null", "nested-a", "nested-b"), nestedEntities.stream().map(TestEntity::getUniqueField).toList());
+        DefaultQueryOrder invalidOrder = new DefaultQueryOrder();
+        invalidOrder.addOrderField("missingField.name", true);
+        Assertions.assertThrows(WaterRuntimeException.class, () -> shardedRepository.comparator(invalidOrder));
+        //lookups without shard information are executed on all shards
+        Assertions.assertEquals("s1", shardedRepository.find(entities.get(1).getId()).getUniqueField());
+        Assertions.assertEquals(20d, shardedRepository.find("uniqueField=s3").getNumberField());
+        shardedRepository.remove(entities.get(3).getId());
+        Assertions.assertThrows(NoResultException.class, () -> shardedRepository.find("uniqueField=s3"));
+        //updates and removals are routed by id, shard keys cannot be changed
+        TestEntity movedEntity = shardedRepository.find(entities.get(0).getId());
+        movedEntity.setNumberField(15d);
+        Assertions.assertThrows(WaterRuntimeException.class, () -> shardedRepository.update(movedEntity));
+        Assertions.assertEquals(1, shardedRepository.getShard(1).countAll(null));
+        shardedRepository.remove(movedEntity);
+        Assertions.assertEquals(1, shardedRepository.getShard(0).countAll(null));
+        //entity managers and units of work belong to a single shard, the default one or an explicit one
+        Assertions.assertSame(shardedRepository.getShard(0).getEntityManager(), shardedRepository.getEntityManager());
+        TestEntity routedEntity = createUniqueTestEntity("s4");
+        routedEntity.setNumberField(15d);
+        shardedRepository.inTransaction(routedEntity, shard -> shard.persist(routedEntity));
+        Assertions.assertEquals(2, shardedRepository.inShardTransaction(1, shard -> shard.countAll(null)));
+        shardedRepository.setDefaultShardIndex(1);
+        Assertions.assertSame(shardedRepository.getShard(1).getEntityManager(), shardedRepository.getEntityManager());
+        Assertions.assertEquals(2, shardedRepository.inTransaction(shard -> shard.countAll(null)));
+        shardedRepository.setDefaultShardIndex(2);
+        Assertions.assertThrows(WaterRuntimeException.class, shardedRepository::getEntityManager);
+        shardedRepository.setDefaultShardIndex(0);
+        shardedRepository.removeAll();
+        Assertions.assertEquals(0, shardedRepository.countAll(null));
+        //time ordered ids are generated by one generator per jvm, so another node id cannot be used
+        Assertions.assertNull(createShardRepository("shardOtherNode", "2").getEntityManager());
+    }
+
+    private ShardedWaterJpaRepositoryImpl<TestEntity> createTimeOrderedShardedRepository(ShardFunction<TestEntity> shardFunction) {
+        //shard persistence units use time ordered ids, see createShardRepository
+        System.setProperty(WaterIdGenerator.ID_STRATEGY_PROPERTY, WaterIdGenerator.TIME_ORDERED_STRATEGY);
+        try {
+            return new ShardedWaterJpaRepositoryImpl<>(TestEntity.class, List.of("shard0", "shard1"), shardFunction);
+        } finally {
+            System.clearProperty(WaterIdGenerator.ID_STRATEGY_PROPERTY);
+        }
+    }
+
+    private TestEntityRepositoryImpl createShardRepository(String persistenceUnitName) {
+        return createShardRepository(persistenceUnitName, "1");
+    }
+
+    private TestEntityRepositoryImpl createShardRepository(String persistenceUnitName, String nodeId) {
+        return new TestEntityRepositoryImpl(TestEntity.class, persistenceUnitName) {
+            @Override
+            protected EntityManagerFactory createDefaultEntityManagerFactory() {
+                //each shard is a different hsqldb database, ids are unique across shards
+                Properties jpaProperties = new Properties();
+                jpaProperties.put("javax.persistence.jdbc.driver", "org.hsqldb.jdbcDriver");
+                jpaProperties.put("javax.persistence.jdbc.url", "jdbc:hsqldb:mem:" + getPersistenceUnitName());
+                jpaProperties.put("javax.persistence.jdbc.user", "sa");
+                jpaProperties.put("javax.persistence.jdbc.password", "");
+                jpaProperties.put(WaterIdGenerator.ID_STRATEGY_PROPERTY, WaterIdGenerator.TIME_ORDERED_STRATEGY);
+                jpaProperties.put(WaterIdGenerator.ID_NODE_PROPERTY, nodeId);
+                return setupEntityManagerFactory(getPersistenceUnitName(), PersistenceUnitTransactionType.RESOURCE_LOCAL, null, null, jpaProperties);
+            }
+        };
+    }
+
+    @Test
+    @Order(27)
+    void testTenantRouting() {
+        BaseJpaRepositoryImpl<TestOwnedEntity> ownedRepository = new BaseJpaRepositoryImpl<>(TestOwnedEntity.class, testEntityRepository.getEntityManager()) {
+            @Override
+            public void txExpr(Transactional.TxType txType, Consumer<EntityManager> function) {
+                function.accept(getEntityManager());
+            }
+
+            @Override
+            public <R> R tx(Transactional.TxType txType, Function<EntityManager, R> function) {
+                return function.apply(getEntityManager());
+            }
+        };
+        ownedRepository.setComponentRegistry(Mockito.mock(ComponentRegistry.class));
+        JDBCPool pooledDataSource = new JDBCPool();
+        pooledDataSource.setUrl("jdbc:hsqldb:mem:tenantdb");
+        pooledDataSource.setUser("sa");
+        pooledDataSource.setPassword("");
+        TenantRouting tenantRouting = ownedRepository.createTenantRouting(pooledDataSource);
+        ownedRepository.setTenantRouting(tenantRouting);
+        //unique keys are split between tenant schemas
+        Assertions.assertNull(ownedRepository.getDuplicateBloomFilter());
+        Assertions.assertThrows(IllegalStateException.class, () -> ownedRepository.enableDuplicateBloomFilter(64 * 1024));
+        String firstTenant = tenantRouting.tenantOf(1);
+        String secondTenant = tenantRouting.tenantOf(2);
+        Assertions.assertEquals("TENANT_1", firstTenant);
+        tenantRouting.provision(firstTenant);
+        tenantRouting.provision(secondTenant);
+        //writes are routed by owner
+        TestOwnedEntity firstEntity = new TestOwnedEntity();
+        firstEntity.setName("first");
+        firstEntity.setOwnerUserId(1L);
+        firstEntity = ownedRepository.persist(firstEntity);
+        TestOwnedEntity secondEntity = new TestOwnedEntity();
+        secondEntity.setName("second");
+        secondEntity.setOwnerUserId(2L);
+        ownedRepository.persist(secondEntity);
+        //reads are routed by the tenant of the current thread
+        Assertions.assertEquals(1, TenantContext.callAs(firstTenant, () -> ownedRepository.countAll(null)));
+        Assertions.assertEquals(1, TenantContext.callAs(secondTenant, () -> ownedRepository.countAll(null)));
+        Assertions.assertEquals("first", TenantContext.callAs(firstTenant, () -> ownedRepository.find("name=first")).getName());
+        Assertions.assertThrows(NoResultException.class, () -> TenantContext.runAs(firstTenant, () -> ownedRepository.find("name=second")));
+        firstEntity.setName("firstUpdated");
+        ownedRepository.update(firstEntity);
+        long firstEntityId = firstEntity.getId();
+        Assertions.assertEquals("firstUpdated", TenantContext.callAs(firstTenant, () -> ownedRepository.find(firstEntityId)).getName());
+        //entities missing in the owner tenant are not created by update
+        TestOwnedEntity missingEntity = new TestOwnedEntity();
+        missingEntity.setId(Long.MAX_VALUE);
+        missingEntity.setOwnerUserId(2L);
+        Assertions.assertThrows(EntityNotFound.class, () -> ownedRepository.update(missingEntity));
+        //operations without owner require the tenant, instead of reading the default schema
+        Assertions.assertThrows(WaterRuntimeException.class, () -> ownedRepository.find(firstEntityId));
+        Assertions.assertThrows(WaterRuntimeException.class, () -> ownedRepository.countAll(null));
+        Assertions.assertThrows(WaterRuntimeException.class, () -> ownedRepository.remove(firstEntityId));
+        //page totals are counted in the tenant schema also when parallel count is enabled
+        TestOwnedEntity thirdEntity = new TestOwnedEntity();
+        thirdEntity.setName("third");
+        thirdEntity.setOwnerUserId(1L);
+        ownedRepository.persist(thirdEntity);
+        ownedRepository.setParallelCountEnabled(true);
+        Assertions.assertEquals(2, TenantContext.callAs(firstTenant, () -> ownedRepository.findAll(1, 1, null, null)).getNextPage());
+        Assertions.assertEquals(1, TenantContext.callAs(secondTenant, () -> ownedRepository.findAll(1, 1, null, null)).getNextPage());
+        ownedRepository.setParallelCountEnabled(false);
+        TenantContext.runAs(firstTenant, () -> ownedRepository.remove(firstEntityId));
+        Assertions.assertEquals(1, TenantContext.callAs(firstTenant, () -> ownedRepository.countAll(null)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> TenantContext.runAs("tenant;drop", () -> ownedRepository.countAll(null)));
+        tenantRouting.getEntityManagerFactory().close();
+    }
+
+    @Test
+    @Order(40)
+    void testTenantRoutingWithContainerTransactions() {
+        //osgi and spring repositories always report transaction support, tenant writes must be committed by the tenant routing
+        BaseJpaRepositoryImpl<TestOwnedEntity> ownedRepository = new BaseJpaRepositoryImpl<>(TestOwnedEntity.class, testEntityRepository.getEntityManager()) {
+            @Override
+            public void txExpr(Transactional.TxType txType, Consumer<EntityManager> function) {
+                function.accept(getEntityManager());
+            }
+
+            @Override
+            public <R> R tx(Transactional.TxType txType, Function<EntityManager, R> function) {
+                return function.apply(getEntityManager());
+            }
+
+            @Override
+            protected boolean isTransactionalSupported(EntityManager em) {
+                return true;
+            }
+        };
+        ownedRepository.setComponentRegistry(Mockito.mock(ComponentRegistry.class));
+        JDBCPool pooledDataSource = new JDBCPool();
+        pooledDataSource.setUrl("jdbc:hsqldb:mem:containertenantdb");
+        pooledDataSource.setUser("sa");
+        pooledDataSource.setPassword("");
+        TenantRouting tenantRouting = ownedRepository.createTenantRouting(pooledDataSource);
+        tenantRouting.setAutoProvisioning(true);
+        ownedRepository.setTenantRouting(tenantRouting);
+        String tenant = tenantRouting.tenantOf(1);
+        TestOwnedEntity entity = new TestOwnedEntity();
+        entity.setName("committed");
+        entity.setOwnerUserId(1L);
+        entity = ownedRepository.persist(entity);
+        Assertions.assertEquals(1, TenantContext.callAs(tenant, () -> ownedRepository.countAll(null)));
+        entity.setName("committedUpdated");
+        ownedRepository.update(entity);
+        long entityId = entity.getId();
+        Assertions.assertEquals("committedUpdated", TenantContext.callAs(tenant, () -> ownedRepository.find(entityId)).getName());
+        //failing writes are rolled back
+        TestOwnedEntity failingEntity = new TestOwnedEntity();
+        failingEntity.setName("rolledBack");
+        failingEntity.setOwnerUserId(1L);
+        Assertions.assertThrows(IllegalStateException.class, () -> ownedRepository.persist(failingEntity, () -> {
+            throw new IllegalStateException("failure");
+        }));
+        Assertions.assertEquals(1, TenantContext.callAs(tenant, () -> ownedRepository.countAll(null)));
+        //units of work are committed once
+        TenantContext.runAs(tenant, () -> ownedRepository.unitOfWork(repository -> {
+            TestOwnedEntity unitEntity = new TestOwnedEntity();
+            unitEntity.setName("unitOfWork");
+            unitEntity.setOwnerUserId(1L);
+            repository.persist(unitEntity);
+        }));
+        Assertions.assertEquals(2, TenantContext.callAs(tenant, () -> ownedRepository.countAll(null)));
+        TenantContext.runAs(tenant, () -> ownedRepository.remove(entityId));
+        Assertions.assertEquals(1, TenantContext.callAs(tenant, () -> ownedRepository.countAll(null)));
+        tenantRouting.getEntityManagerFactory().close();
+    }
+
+    @Test
+    @Order(28)
+    void testDefaultConnectionPool() {
+        TestEntityRepositoryImpl pooledRepository = new TestEntityRepositoryImpl(TestEntity.class, "water-pooled-persistence-unit") {
+            @Override
+            protected EntityManagerFactory createDefaultEntityManagerFactory() {
+                return setupDefaultEntityManagerFactory(getPersistenceUnitName(), "org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:pooldb", "sa", "", new Properties());
+            }
+        };
+        EntityManagerFactory firstFactory = pooledRepository.getEntityManager().getEntityManagerFactory();
+        HikariDataSource firstPool = (HikariDataSource) pooledDataSourceOf(firstFactory);
+        Assertions.assertEquals("water-pooled-persistence-unit", firstPool.getPoolName());
+        //small idle pool and no JMX registration unless configured
+        Assertions.assertEquals(PooledDataSourceFactory.DEFAULT_MINIMUM_IDLE, firstPool.getMinimumIdle());
+        Assertions.assertFalse(firstPool.isRegisterMbeans());
+        //connections used by the persistence provider are borrowed from the pool
+        int activeConnections = pooledRepository.tx(Transactional.TxType.REQUIRED, em -> em.unwrap(Session.class)
+                .doReturningWork(connection -> pooledRepository.getDefaultPoolMetrics().activeConnections()));
+        Assertions.assertTrue(activeConnections >= 1);
+        Assertions.assertEquals(0, pooledRepository.countAll(null));
+        PooledDataSourceFactory.PoolMetrics metrics = pooledRepository.getDefaultPoolMetrics();
+        Assertions.assertTrue(metrics.totalConnections() > 0);
+        Assertions.assertEquals(0, metrics.activeConnections());
+        //a factory created with the same pool name gets its own pool and closing it leaves the first pool open
+        EntityManagerFactory secondFactory = pooledRepository.setupDefaultEntityManagerFactory(pooledRepository.getPersistenceUnitName(), "org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:pooldb", "sa", "", new Properties());
+        HikariDataSource secondPool = (HikariDataSource) pooledDataSourceOf(secondFactory);
+        Assertions.assertNotSame(firstPool, secondPool);
+        secondFactory.close();
+        Assertions.assertTrue(secondPool.isClosed());
+        Assertions.assertFalse(firstPool.isClosed());
+        Assertions.assertEquals(0, pooledRepository.countAll(null));
+        //the pool is closed with its entity manager factory
+        pooledRepository.getEntityManager().close();
+        firstFactory.close();
+        Assertions.assertTrue(firstPool.isClosed());
+        Assertions.assertNull(pooledRepository.getDefaultPoolMetrics());
+        Properties poolProperties = new Properties();
+        poolProperties.setProperty(PooledDataSourceFactory.POOL_MINIMUM_IDLE_PROPERTY, "5");
+        poolProperties.setProperty(PooledDataSourceFactory.POOL_JMX_PROPERTY, "true");
+        HikariDataSource configuredPool = (HikariDataSource) PooledDataSourceFactory.create("water-configured-pool", "org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:pooldb", "sa", "", poolProperties);
+        try {
+            Assertions.assertEquals(5, configuredPool.getMinimumIdle());
+            Assertions.assertTrue(configuredPool.isRegisterMbeans());
+        } finally {
+            configuredPool.close();
+        }
+    }
+
+    private DataSource pooledDataSourceOf(EntityManagerFactory entityManagerFactory) {
+        return entityManagerFactory.unwrap(SessionFactoryImplementor.class).getServiceRegistry()
+                .getService(ConnectionProvider.class).unwrap(DataSource.class);
+    }
+
+    @Test
+    @Order(29)
+    void testUnitOfWork() {
+        long count = testEntityRepository.countAll(null);
+        EntityManager entityManager = testEntityRepository.getEntityManager();
+        testEntityRepository.unitOfWork(repository -> {
+            repository.persist(createUniqueTestEntity("uow1"));
+            Assertions.assertTrue(entityManager.getTransaction().isActive());
+            //nested units join the outer transaction
+            TestEntity nested = repository.inTransaction(nestedRepository -> nestedRepository.persist(createUniqueTestEntity("uow2")));
+            Assertions.assertTrue(nested.getId() > 0);
+            Assertions.assertTrue(entityManager.getTransaction().isActive());
+            Assertions.assertEquals(FlushModeType.COMMIT, entityManager.getFlushMode());
+        });
+        Assertions.assertFalse(entityManager.getTransaction().isActive());
+        Assertions.assertEquals(FlushModeType.AUTO, entityManager.getFlushMode());
+        Assertions.assertEquals(count + 2, testEntityRepository.countAll(null));
+        //a failure rolls back all the operations of the unit
+        Assertions.assertThrows(IllegalStateException.class, () -> testEntityRepository.unitOfWork(repository -> {
+            repository.persist(createUniqueTestEntity("uow3"));
+            throw new IllegalStateException("failure");
+        }));
+        Assertions.assertFalse(entityManager.getTransaction().isActive());
+        Assertions.assertEquals(count + 2, testEntityRepository.countAll(null));
+        Assertions.assertThrows(NoResultException.class, () -> testEntityRepository.find("uniqueField=uow3"));
+    }
+
+    @Test
+    @Order(30)
+    void testBatchPersistWithBisection() {
+        TestEntityRepositoryImpl batchRepository = new TestEntityRepositoryImpl();
+        long count = batchRepository.countAll(null);
+        List<TestEntity> entities = List.of(createUniqueTestEntity("batch1"), createUniqueTestEntity("batch2"),
+                //duplicated on database, rejected by validators
+                createUniqueTestEntity("uow1"),
+                createUniqueTestEntity("batch3"),
+                //duplicated inside the batch, rejected by the unique index and isolated by bisection
+                createUniqueTestEntity("batch1"));
+        BatchResult<TestEntity> result = batchRepository.persistAll(entities, 10);
+        Assertions.assertFalse(result.isSuccessful());
+        Assertions.assertEquals(5, result.getRows().size());
+        Assertions.assertEquals(3, result.getWritten().size());
+        Assertions.assertEquals(List.of(2, 4), result.getRejected().stream().map(BatchResult.RowResult::index).toList());
+        Assertions.assertInstanceOf(DuplicateEntityException.class, result.getRows().get(2).error());
+        Assertions.assertInstanceOf(PersistenceException.class, result.getRows().get(4).error());
+        result.getWritten().forEach(entity -> Assertions.assertTrue(entity.getId() > 0));
+        Assertions.assertEquals(count + 3, batchRepository.countAll(null));
+        Assertions.assertEquals(result.getRows().get(0).entity().getId(), batchRepository.find("uniqueField=batch1").getId());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> batchRepository.persistAll(entities, 0));
     }
 
+    @Test
+    @Order(31)
+    void testDatabaseEnforcedUniqueness() {
+        TestEntityRepositoryImpl checkedRepository = new TestEntityRepositoryImpl();
+        Assertions.assertEquals(UniquenessMode.CHECK, checkedRepository.getUniquenessMode());
+        TestEntityRepositoryImpl databaseRepository = new TestEntityRepositoryImpl();
+        databaseRepository.setUniquenessMode(UniquenessMode.DATABASE);
+        long count = databaseRepository.countAll(null);
+        TestEntity duplicated = createUniqueTestEntity("uniqueness1");
+        duplicated.setUniqueField("uow1");
+        //violation raised by the unique index is translated
+        Assertions.assertThrows(DuplicateEntityException.class, () -> databaseRepository.persist(duplicated));
+        Assertions.assertFalse(databaseRepository.getEntityManager().getTransaction().isActive());
+        Assertions.assertEquals(count, databaseRepository.countAll(null));
+        TestEntity entity = databaseRepository.persist(createUniqueTestEntity("uniqueness2"));
+        Assertions.assertEquals(count + 1, databaseRepository.countAll(null));
+        entity.setUniqueField("uow1");
+        Assertions.assertThrows(DuplicateEntityException.class, () -> databaseRepository.update(entity));
+        Assertions.assertEquals("uniqueness2", databaseRepository.find(entity.getId()).getUniqueField());
+        Assertions.assertEquals(UniquenessMode.DATABASE, UniquenessMode.fromProperties(Map.of(UniquenessMode.UNIQUENESS_MODE_PROPERTY, "database")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> UniquenessMode.fromProperties(Map.of(UniquenessMode.UNIQUENESS_MODE_PROPERTY, "wrong")));
+    }
+
+    @Test
+    @Order(32)
+    void testDuplicateBloomFilter() {
+        TestEntityRepositoryImpl bloomRepository = new TestEntityRepositoryImpl();
+        Assertions.assertNull(bloomRepository.getDuplicateBloomFilter());
+        Assertions.assertThrows(IllegalStateException.class, bloomRepository::rebuildDuplicateBloomFilter);
+        DuplicateBloomFilter bloomFilter = bloomRepository.enableDuplicateBloomFilter(64 * 1024);
+        Assertions.assertTrue(bloomFilter.isReady());
+        Assertions.assertSame(bloomFilter, bloomRepository.getDuplicateBloomFilter());
+        //keys found by the warm up scan
+        Assertions.assertTrue(bloomFilter.mightContain(0, createUniqueTestEntity("uow1")));
+        Assertions.assertTrue(bloomFilter.mightContain(1, createUniqueTestEntity("uow1")));
+        TestEntity newEntity = createUniqueTestEntity("bloom1");
+        Assertions.assertFalse(bloomFilter.mightContain(0, newEntity));
+        bloomRepository.persist(newEntity);
+        //keys are added on persist and duplicates are still detected by the check query
+        Assertions.assertTrue(bloomFilter.mightContain(0, newEntity));
+        Assertions.assertThrows(DuplicateEntityException.class, () -> bloomRepository.persist(createUniqueTestEntity("bloom1")));
+        bloomRepository.rebuildDuplicateBloomFilter();
+        Assertions.assertTrue(bloomFilter.mightContain(0, newEntity));
+        //keys written before the warm up of rows not visible to the scan are kept
+        DuplicateBloomFilter coldFilter = new DuplicateBloomFilter(TestEntity.class, 64 * 1024);
+        TestEntity uncommittedEntity = createUniqueTestEntity("bloomUncommitted");
+        coldFilter.put(uncommittedEntity);
+        Assertions.assertFalse(coldFilter.isReady());
+        EntityManager scanEntityManager = bloomRepository.getEntityManager().getEntityManagerFactory().createEntityManager();
+        coldFilter.rebuild(scanEntityManager);
+        scanEntityManager.close();
+        Assertions.assertTrue(coldFilter.isReady());
+        Assertions.assertTrue(coldFilter.mightContain(0, uncommittedEntity));
+        Assertions.assertTrue(coldFilter.mightContain(0, newEntity));
+        Assertions.assertFalse(coldFilter.mightContain(0, createUniqueTestEntity("bloomNeverWritten")));
+        Assertions.assertTrue(DuplicateBloomFilter.isEnabledFor(TestEntity.class, Map.of(DuplicateBloomFilter.BLOOM_ENTITIES_PROPERTY, "Other, TestEntity")));
+        Assertions.assertFalse(DuplicateBloomFilter.isEnabledFor(TestEntity.class, Map.of(DuplicateBloomFilter.BLOOM_ENTITIES_PROPERTY, "Other")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new DuplicateBloomFilter(TestEntity.class, 1));
+    }
+
+    @Test
+    @Order(33)
+    void testUpdateChecksOnlyChangedUniqueConstraints() {
+        TestEntityRepositoryImpl updateRepository = Mockito.spy(new TestEntityRepositoryImpl());
+        TestEntity entity = updateRepository.persist(createUniqueTestEntity("changes1"));
+        TestEntity detached = updateRepository.find(entity.getId());
+        updateRepository.getEntityManager().clear();
+        Mockito.clearInvocations(updateRepository);
+        //no unique column changed, no duplicate check query
+        detached.setNumberField(5d);
+        detached = updateRepository.update(detached);
+        Mockito.verify(updateRepository, Mockito.never()).find(Mockito.any(Query.class));
+        //only the changed constraint is checked
+        detached.setUniqueField("changes2");
+        detached = updateRepository.update(detached);
+        Mockito.verify(updateRepository, Mockito.times(1)).find(Mockito.any(Query.class));
+        Assertions.assertEquals("changes2", updateRepository.find(entity.getId()).getUniqueField());
+        //duplicates are still detected on changed columns
+        detached.setUniqueField("uow1");
+        TestEntity duplicated = detached;
+        Assertions.assertThrows(DuplicateEntityException.class, () -> updateRepository.update(duplicated));
+        updateRepository.getEntityManager().clear();
+    }
+
+    @Test
+    @Order(34)
+    void testFindByNaturalKey() {
+        TestEntity entity = testEntityRepository.persist(createUniqueTestEntity("natural1"));
+        Assertions.assertEquals(entity.getId(), testEntityRepository.findByNaturalKey("uniqueField", "natural1").getId());
+        //second lookup is resolved by id
+        Assertions.assertEquals(entity.getId(), testEntityRepository.findByNaturalKey("uniqueField", "natural1").getId());
+        Map<String, Object> combinedKey = new HashMap<>();
+        combinedKey.put("combinedUniqueField1", "natural1-1");
+        combinedKey.put("combinedUniqueField2", "natural1-2");
+        Assertions.assertEquals(entity.getId(), testEntityRepository.findByNaturalKey(combinedKey).getId());
+        Assertions.assertThrows(NoResultException.class, () -> testEntityRepository.findByNaturalKey("uniqueField", "natural2"));
+        Assertions.assertThrows(WaterRuntimeException.class, () -> testEntityRepository.findByNaturalKey("numberField", 1d));
+        //resolved keys are never stale after updates and removals
+        TestEntity updated = testEntityRepository.find(entity.getId());
+        updated.setUniqueField("natural2");
+        testEntityRepository.update(updated);
+        Assertions.assertThrows(NoResultException.class, () -> testEntityRepository.findByNaturalKey("uniqueField", "natural1"));
+        Assertions.assertEquals(entity.getId(), testEntityRepository.findByNaturalKey("uniqueField", "natural2").getId());
+        testEntityRepository.remove(entity.getId());
+        Assertions.assertThrows(NoResultException.class, () -> testEntityRepository.findByNaturalKey("uniqueField", "natural2"));
+        //resolved ids are evicted in least recently used order
+        EntityManager em = testEntityRepository.getEntityManager();
+        NaturalKeyLookup<TestEntity> lookup = new NaturalKeyLookup<>(TestEntity.class, Map.of(NaturalKeyLookup.NATURAL_ID_CACHE_SIZE_PROPERTY, "2"));
+        List<Long> lruIds = new ArrayList<>();
+        for (String uniqueField : List.of("lru1", "lru2", "lru3")) {
+            lruIds.add(testEntityRepository.persist(createUniqueTestEntity(uniqueField)).getId());
+            Assertions.assertNotNull(lookup.load(Map.of("uniqueField", uniqueField), em));
+        }
+        Assertions.assertEquals(2, lookup.size());
+        lruIds.forEach(testEntityRepository::remove);
+        //keys mapped with @NaturalId are resolved by hibernate, without filling the id map
+        BaseJpaRepositoryImpl<TestNaturalIdEntity> naturalIdRepository = new BaseJpaRepositoryImpl<>(TestNaturalIdEntity.class, em) {
+            @Override
+            public void txExpr(Transactional.TxType txType, Consumer<EntityManager> function) {
+                function.accept(getEntityManager());
+            }
+
+            @Override
+            public <R> R tx(Transactional.TxType txType, Function<EntityManager, R> function) {
+                return function.apply(getEntityManager());
+            }
+        };
+        naturalIdRepository.setComponentRegistry(Mockito.mock(ComponentRegistry.class));
+        TestNaturalIdEntity naturalIdEntity = new TestNaturalIdEntity();
+        naturalIdEntity.setCode("code1");
+        naturalIdEntity = naturalIdRepository.persist(naturalIdEntity);
+        Assertions.assertEquals(naturalIdEntity.getId(), naturalIdRepository.findByNaturalKey("code", "code1").getId());
+        NaturalKeyLookup<TestNaturalIdEntity> naturalIdLookup = new NaturalKeyLookup<>(TestNaturalIdEntity.class, null);
+        Assertions.assertEquals(naturalIdEntity.getId(), naturalIdLookup.load(Map.of("code", "code1"), em).getId());
+        Assertions.assertNull(naturalIdLookup.load(Map.of("code", "code2"), em));
+        Assertions.assertEquals(0, naturalIdLookup.size());
+        naturalIdRepository.remove(naturalIdEntity.getId());
+    }
+
+    @Test
+    @Order(35)
+    void testParsedQueryCache() {
+        TestEntityRepositoryImpl cachedRepository = new TestEntityRepositoryImpl();
+        Query filter = cachedRepository.parseQueryFilter("uniqueField=a OR uniqueField=a1");
+        Assertions.assertSame(filter, cachedRepository.parseQueryFilter("  uniqueField=a   OR uniqueField=a1 "));
+        Assertions.assertEquals(cachedRepository.getQueryBuilderInstance().createQueryFilter("uniqueField=a OR uniqueField=a1").getDefinition(), filter.getDefinition());
+        ParsedQueryCache cache = new ParsedQueryCache(2);
+        QueryBuilder queryBuilder = cachedRepository.getQueryBuilderInstance();
+        Query first = cache.get("uniqueField=a", queryBuilder::createQueryFilter);
+        cache.get("uniqueField=b", queryBuilder::createQueryFilter);
+        //first is the most recently used, b is evicted
+        Assertions.assertSame(first, cache.get("uniqueField=a", queryBuilder::createQueryFilter));
+        cache.get("uniqueField=c", queryBuilder::createQueryFilter);
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertSame(first, cache.get("uniqueField=a", queryBuilder::createQueryFilter));
+        Assertions.assertNotSame(cache.get("uniqueField='x  y'", queryBuilder::createQueryFilter), cache.get("uniqueField='x y'", queryBuilder::createQueryFilter));
+        Assertions.assertNotSame(first, new ParsedQueryCache(0).get("uniqueField=a", queryBuilder::createQueryFilter));
+    }
+
+    @Test
+    @Order(36)
+    void testQueryNormalization() {
+        QueryBuilder queryBuilder = testEntityRepository.getQueryBuilderInstance();
+        Query orFilter = queryBuilder.field("uniqueField").equalTo("a")
+                .or(queryBuilder.field("uniqueField").equalTo("a1"))
+                .or(queryBuilder.field("uniqueField").equalTo("a"));
+        QueryNormalizer.Node normalized = QueryNormalizer.normalize(orFilter);
+        Assertions.assertInstanceOf(QueryNormalizer.InValues.class, normalized);
+        Assertions.assertEquals(List.of("a", "a1"), ((QueryNormalizer.InValues) normalized).values());
+        Assertions.assertEquals(testEntityRepository.countAll(queryBuilder.field("uniqueField").equalTo("a")) + testEntityRepository.countAll(queryBuilder.field("uniqueField").equalTo("a1")),
+                testEntityRepository.countAll(orFilter));
+
+        Like like = new Like();
+        like.defineOperands(queryBuilder.field("uniqueField"), new FieldValueOperand("a%"));
+        Query andFilter = like.and(queryBuilder.field("uniqueField").equalTo("a1")).and(queryBuilder.field("id").equalTo(1));
+        normalized = QueryNormalizer.normalize(andFilter);
+        Assertions.assertInstanceOf(QueryNormalizer.And.class, normalized);
+        List<QueryNormalizer.Node> terms = ((QueryNormalizer.And) normalized).terms();
+        Assertions.assertEquals(3, terms.size());
+        Assertions.assertEquals(queryBuilder.field("id").equalTo(1).getDefinition(), terms.get(0).key());
+        Assertions.assertEquals(like.getDefinition(), terms.get(2).key());
+
+        NotOperation notOperation = new NotOperation();
+        notOperation.defineOperands(queryBuilder.field("uniqueField").equalTo("a"));
+        NotOperation doubleNotOperation = new NotOperation();
+        doubleNotOperation.defineOperands(notOperation);
+        normalized = QueryNormalizer.normalize(doubleNotOperation);
+        Assertions.assertInstanceOf(QueryNormalizer.Condition.class, normalized);
+        Assertions.assertEquals(testEntityRepository.countAll(queryBuilder.field("uniqueField").equalTo("a")), testEntityRepository.countAll(doubleNotOperation));
+    }
+
+    @Test
+    @Order(37)
+    void testLeftDeepOrFolding() {
+        QueryBuilder queryBuilder = testEntityRepository.getQueryBuilderInstance();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 1; i <= 5; i++)
+            ids.add(testEntityRepository.persist(createUniqueTestEntity("fold" + i)).getId());
+        //same shape built by findAllById: ((id=1 OR id=2) OR id=3) OR ...
+        Query idsOr = queryBuilder.field("id").equalTo(ids.get(0));
+        for (int i = 1; i < ids.size(); i++)
+            idsOr = idsOr.or(queryBuilder.field("id").equalTo(ids.get(i)));
+        QueryNormalizer.Node normalized = QueryNormalizer.normalize(idsOr);
+        Assertions.assertInstanceOf(QueryNormalizer.InValues.class, normalized);
+        Assertions.assertEquals(ids, ((QueryNormalizer.InValues) normalized).values());
+        Assertions.assertEquals(ids.size(), testEntityRepository.countAll(idsOr));
+        //already folded terms are merged with equalities of outer levels
+        NotOperation notOperation = new NotOperation();
+        notOperation.defineOperands(queryBuilder.field("id").equalTo(ids.get(0)).or(queryBuilder.field("id").equalTo(ids.get(1))));
+        NotOperation doubleNotOperation = new NotOperation();
+        doubleNotOperation.defineOperands(notOperation);
+        Query mixed = doubleNotOperation.or(queryBuilder.field("uniqueField").equalTo("fold5")).or(queryBuilder.field("id").equalTo(ids.get(2)));
+        normalized = QueryNormalizer.normalize(mixed);
+        Assertions.assertInstanceOf(QueryNormalizer.Or.class, normalized);
+        List<QueryNormalizer.Node> terms = ((QueryNormalizer.Or) normalized).terms();
+        Assertions.assertEquals(2, terms.size());
+        Assertions.assertEquals(ids.subList(0, 3), ((QueryNormalizer.InValues) terms.get(0)).values());
+        Assertions.assertEquals(4, testEntityRepository.countAll(mixed));
+    }
+
+    @Test
+    @Order(38)
+    void testExtensionPersistenceUnitResolution() {
+        //jdbc batching is enabled by the default bootstrap
+        Assertions.assertEquals("50", String.valueOf(testEntityRepository.getEntityManager().getEntityManagerFactory().getProperties().get(WaterPersistenceUnitInfo.HIBERNATE_JDBC_BATCH_SIZE)));
+        ComponentRegistry registry = Mockito.mock(ComponentRegistry.class);
+        TestEntityRepositoryImpl repository = new TestEntityRepositoryImpl(TestEntity.class, testEntityRepository.getEntityManager());
+        repository.setComponentRegistry(registry);
+        //same entity manager factory: the extension is persisted by the master entity manager, with the validators of its own repository
+        RepositoryConstraintValidator extensionValidator = Mockito.mock(RepositoryConstraintValidator.class);
+        TestEntityDetailsRepositoryImpl sameUnitRepository = new TestEntityDetailsRepositoryImpl(TestEntityDetails.class, testEntityRepository.getEntityManager(), new DuplicateConstraintValidator(), extensionValidator);
+        Mockito.doReturn(sameUnitRepository).when(registry).findEntityExtensionRepository(TestEntity.class);
+        BaseJpaRepositoryImpl.invalidateExtensionRepositories();
+        Assertions.assertTrue(repository.isSamePersistenceUnit(sameUnitRepository));
+        TestEntity testEntity = createUniqueTestEntity("sameUnitExtension");
+        TestEntityDetails testEntityDetails = new TestEntityDetails();
+        testEntityDetails.setExtensionField("sameUnit");
+        testEntity.setExtension(testEntityDetails);
+        long sameUnitEntityId = repository.persist(testEntity).getId();
+        Mockito.verify(extensionValidator).checkConstraint(Mockito.any(TestEntityDetails.class), Mockito.eq(TestEntityDetails.class), Mockito.any());
+        Query sameUnitExtension = testEntityDetailsRepository.getQueryBuilderInstance().field("relatedEntityId").equalTo(sameUnitEntityId);
+        Assertions.assertEquals(1, testEntityDetailsRepository.countAll(sameUnitExtension));
+        repository.remove(sameUnitEntityId);
+        //different entity manager factory, even if the extension class is mapped by both: the extension repository writes it
+        TestEntityDetailsRepository otherUnitRepository = Mockito.mock(TestEntityDetailsRepository.class);
+        EntityManager otherUnitEntityManager = Mockito.mock(EntityManager.class);
+        Mockito.when(otherUnitEntityManager.getEntityManagerFactory()).thenReturn(Mockito.mock(EntityManagerFactory.class));
+        Mockito.when(otherUnitRepository.getEntityManager()).thenReturn(otherUnitEntityManager);
+        Mockito.doReturn(otherUnitRepository).when(registry).findEntityExtensionRepository(TestEntity.class);
+        BaseJpaRepositoryImpl.invalidateExtensionRepositories();
+        Assertions.assertFalse(repository.isSamePersistenceUnit(otherUnitRepository));
+        testEntity = createUniqueTestEntity("otherUnitExtension");
+        TestEntityDetails otherUnitDetails = new TestEntityDetails();
+        otherUnitDetails.setExtensionField("otherUnit");
+        testEntity.setExtension(otherUnitDetails);
+        long otherUnitEntityId = repository.persist(testEntity).getId();
+        Mockito.verify(otherUnitRepository).persist(otherUnitDetails);
+        Mockito.verify(otherUnitRepository, Mockito.never()).validateConstraints(Mockito.any());
+        Assertions.assertEquals(0, testEntityDetailsRepository.countAll(testEntityDetailsRepository.getQueryBuilderInstance().field("relatedEntityId").equalTo(otherUnitEntityId)));
+        repository.remove(otherUnitEntityId);
+        //same entity manager factory but no constraint validation support: the extension repository writes it
+        TestEntityDetailsRepository notValidatingRepository = Mockito.mock(TestEntityDetailsRepository.class);
+        Mockito.when(notValidatingRepository.getEntityManager()).thenReturn(testEntityRepository.getEntityManager());
+        Mockito.doThrow(UnsupportedOperationException.class).when(notValidatingRepository).validateConstraints(Mockito.any());
+        Mockito.doReturn(notValidatingRepository).when(registry).findEntityExtensionRepository(TestEntity.class);
+        BaseJpaRepositoryImpl.invalidateExtensionRepositories();
+        Assertions.assertTrue(repository.isSamePersistenceUnit(notValidatingRepository));
+        testEntity = createUniqueTestEntity("notValidatingExtension");
+        TestEntityDetails notValidatingDetails = new TestEntityDetails();
+        testEntity.setExtension(notValidatingDetails);
+        long notValidatingEntityId = repository.persist(testEntity).getId();
+        Mockito.verify(notValidatingRepository).persist(notValidatingDetails);
+        Assertions.assertEquals(0, testEntityDetailsRepository.countAll(testEntityDetailsRepository.getQueryBuilderInstance().field("relatedEntityId").equalTo(notValidatingEntityId)));
+        repository.remove(notValidatingEntityId);
+        //batch chunks cannot roll back writes of another persistence unit
+        TestEntity otherUnitBatchEntity = createUniqueTestEntity("otherUnitBatch");
+        otherUnitBatchEntity.setExtension(new TestEntityDetails());
+        BatchResult<TestEntity> batchResult = repository.persistAll(List.of(otherUnitBatchEntity, createUniqueTestEntity("otherUnitBatchPlain")));
+        Assertions.assertEquals(1, batchResult.getRejected().size());
+        Assertions.assertEquals(0, batchResult.getRejected().get(0).index());
+        Assertions.assertInstanceOf(WaterRuntimeException.class, batchResult.getRejected().get(0).error());
+        Assertions.assertEquals(1, batchResult.getWritten().size());
+        Mockito.verify(otherUnitRepository, Mockito.times(1)).persist(Mockito.any());
+        repository.remove(batchResult.getWritten().get(0).getId());
+        BaseJpaRepositoryImpl.invalidateExtensionRepositories();
+    }
+
+    @Test
+    @Order(39)
+    @SuppressWarnings("unchecked")
+    void testJpaRepositoryDefaultMethods() {
+        JpaRepository<TestEntity> repository = Mockito.mock(JpaRepository.class, Mockito.CALLS_REAL_METHODS);
+        TestEntity entity = createUniqueTestEntity("defaultMethods");
+        PaginableResult<TestEntity> page = Mockito.mock(PaginableResult.class);
+        Mockito.doReturn(entity).when(repository).find(1L);
+        Mockito.doReturn(entity).when(repository).find(Mockito.any(Query.class));
+        Mockito.doReturn(page).when(repository).findAll(1, 1, null, null);
+        Mockito.doReturn(testEntityRepository.getQueryBuilderInstance()).when(repository).getQueryBuilderInstance();
+        Mockito.doAnswer(invocation -> ((Function<EntityManager, Object>) invocation.getArgument(1)).apply(null))
+                .when(repository).tx(Mockito.any(Transactional.TxType.class), Mockito.any(Function.class));
+        //fetch plans are hints, without a specific implementation entities are loaded following their mapping
+        FetchPlan fetchPlan = FetchPlan.paths("uniqueField");
+        Assertions.assertSame(entity, repository.find(1L, fetchPlan));
+        Assertions.assertSame(entity, repository.find(testEntityRepository.getQueryBuilderInstance().field("uniqueField").equalTo("defaultMethods"), fetchPlan));
+        Assertions.assertSame(page, repository.findAll(1, 1, null, null, fetchPlan));
+        //natural keys are searched with an equality filter
+        Assertions.assertSame(entity, repository.findByNaturalKey("uniqueField", "defaultMethods"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repository.findByNaturalKey("uniqueField", null));
+        //units of work run in a required transaction
+        Assertions.assertSame(entity, repository.inTransaction(jpaRepository -> jpaRepository.find(1L)));
+        Mockito.verify(repository).tx(Mockito.eq(Transactional.TxType.REQUIRED), Mockito.any(Function.class));
+    }
+
+    private TestEntity createUniqueTestEntity(String uniqueField) {
+        TestEntity testEntity = new TestEntity();
+        testEntity.setUniqueField(uniqueField);
+        testEntity.setCombinedUniqueField1(uniqueField + "-1");
+        testEntity.setCombinedUniqueField2(uniqueField + "-2");
+        return testEntity;
+    }
 
     @SuppressWarnings("unused")
     private void createAndPersisteExampleEntity() {
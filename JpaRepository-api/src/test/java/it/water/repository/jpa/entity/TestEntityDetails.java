@@ -3,6 +3,7 @@ package it.water.repository.jpa.entity;
 import it.water.repository.jpa.model.AbstractJpaEntityExpansion;
 import jakarta.persistence.Access;
 import jakarta.persistence.AccessType;
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -15,4 +16,6 @@ public class TestEntityDetails extends AbstractJpaEntityExpansion {
 
     private String extensionField;
     private Integer extensionField2;
+    @Column(updatable = false)
+    private String immutableField;
 }
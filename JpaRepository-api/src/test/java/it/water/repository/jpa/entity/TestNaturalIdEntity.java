@@ -0,0 +1,19 @@
+package it.water.repository.jpa.entity;
+
+import it.water.repository.jpa.model.AbstractJpaEntity;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import lombok.Getter;
+import lombok.Setter;
+import org.hibernate.annotations.NaturalId;
+
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"code"}))
+@Getter
+@Setter
+public class TestNaturalIdEntity extends AbstractJpaEntity {
+    @NaturalId
+    private String code;
+    private String name;
+}
@@ -0,0 +1,15 @@
+package it.water.repository.jpa.entity;
+
+import it.water.core.api.entity.owned.OwnedResource;
+import it.water.repository.jpa.model.AbstractJpaEntity;
+import jakarta.persistence.Entity;
+import lombok.Getter;
+import lombok.Setter;
+
+@Entity
+@Getter
+@Setter
+public class TestOwnedEntity extends AbstractJpaEntity implements OwnedResource {
+    private String name;
+    private Long ownerUserId;
+}
@@ -17,10 +17,13 @@
 package it.water.repository.jpa.osgi;
 
 import com.arjuna.ats.jta.UserTransaction;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
 import it.water.core.api.model.BaseEntity;
 import it.water.core.model.exceptions.WaterRuntimeException;
 import it.water.repository.jpa.BaseJpaRepositoryImpl;
 import it.water.repository.jpa.WaterPersistenceUnitInfo;
+import it.water.repository.jpa.datasource.PooledDataSourceFactory;
+import it.water.repository.jpa.osgi.hibernate.OsgiArchiveDescriptor;
 import it.water.repository.jpa.osgi.hibernate.OsgiScanner;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
@@ -29,17 +32,14 @@ import jakarta.transaction.*;
 import org.hibernate.cfg.EnvironmentSettings;
 import org.hibernate.cfg.JdbcSettings;
 import org.hibernate.cfg.PersistenceSettings;
-import org.hibernate.cfg.SchemaToolingSettings;
 import org.hibernate.jpa.HibernatePersistenceProvider;
-import org.osgi.framework.*;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.wiring.BundleWiring;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Optional;
 import java.util.Properties;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -52,8 +52,6 @@ import java.util.function.Function;
  */
 public abstract class OsgiBaseJpaRepository<T extends BaseEntity> extends BaseJpaRepositoryImpl<T> {
 
-    private static Logger log = LoggerFactory.getLogger(OsgiBaseJpaRepository.class);
-
     protected OsgiBaseJpaRepository(Class<T> type, String persistenceUnitName) {
         super(type, persistenceUnitName);
     }
@@ -62,7 +60,7 @@ public abstract class OsgiBaseJpaRepository<T extends BaseEntity> extends BaseJp
     public void txExpr(Transactional.TxType txType, Consumer<EntityManager> function) {
         try {
             manageTransaction(txType, em -> {
-                function.accept(getEntityManager());
+                function.accept(em);
                 return null;
             });
         } catch (Exception e) {
@@ -73,67 +71,110 @@ public abstract class OsgiBaseJpaRepository<T extends BaseEntity> extends BaseJp
     @Override
     public <R> R tx(Transactional.TxType txType, Function<EntityManager, R> function) {
         try {
-            return manageTransaction(txType, entityManager -> function.apply(getEntityManager()));
+            return manageTransaction(txType, function);
         } catch (Exception e) {
             throw new WaterRuntimeException(e.getMessage());
         }
     }
 
+    /**
+     * Entity managers are shared through the OsgiEntityManagerFactoryRegistry, keyed by bundle and persistence unit.
+     *
+     * @return
+     */
+    @Override
+    protected EntityManager initDefaultEntityManager() {
+        return getEntityManager();
+    }
+
+    @Override
+    public EntityManager getEntityManager() {
+        return OsgiEntityManagerFactoryRegistry.getInstance().getEntityManager(getPersistenceBundle(), getPersistenceUnitName(), this::buildEntityManagerFactory);
+    }
+
     @Override
     protected EntityManagerFactory createDefaultEntityManagerFactory() {
-        Bundle persistenceBundle = FrameworkUtil.getBundle(this.type);
-        DataSource ds = getDataSource();
-        ClassLoader entityClassLoader = FrameworkUtil.getBundle(this.type).adapt(BundleWiring.class).getClassLoader();
+        return OsgiEntityManagerFactoryRegistry.getInstance().getEntityManagerFactory(getPersistenceBundle(), getPersistenceUnitName(), this::buildEntityManagerFactory);
+    }
+
+    protected EntityManagerFactory buildEntityManagerFactory(DataSource ds) {
+        return buildEntityManagerFactory(ds, null);
+    }
+
+    /**
+     * Bundle bootstrap, used for the persistence unit and for factories created from jdbc settings, like read replicas.
+     *
+     * @param ds             DataSource of the persistence unit
+     * @param unitProperties additional persistence unit properties, can be null
+     * @return
+     */
+    @Override
+    protected EntityManagerFactory buildEntityManagerFactory(DataSource ds, Properties unitProperties) {
+        if (ds == null)
+            throw new WaterRuntimeException("A DataSource is required to create entity manager factories of " + getPersistenceUnitName() + ", enable " + PooledDataSourceFactory.POOL_ENABLED_PROPERTY);
+        Bundle persistenceBundle = getPersistenceBundle();
+        ClassLoader entityClassLoader = persistenceBundle.adapt(BundleWiring.class).getClassLoader();
         Collection<ClassLoader> classLoaders = new ArrayList<>();
         classLoaders.add(entityClassLoader);
         classLoaders.add(Thread.currentThread().getContextClassLoader());
+        WaterPersistenceUnitInfo waterPersistenceUnitInfo = new WaterPersistenceUnitInfo(getPersistenceUnitName(),type, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.JTA, ds, null, unitProperties);
+        waterPersistenceUnitInfo.setClassLoader(entityClassLoader);
+        //using the build time jpa class index of the bundle when available, scanning the bundle otherwise
+        boolean indexed = waterPersistenceUnitInfo.addManagedClassesFromIndex(OsgiArchiveDescriptor.findBundleIndexUrls(persistenceBundle));
         Properties properties = new Properties();
+        if (unitProperties != null)
+            properties.putAll(unitProperties);
         properties.put("hibernate.transaction.jta.platform", "org.hibernate.service.jta.platform.internal.JBossStandAloneJtaPlatform");
-        properties.put(PersistenceSettings.SCANNER_DISCOVERY, "class");
+        if (!indexed)
+            properties.put(PersistenceSettings.SCANNER_DISCOVERY, "class");
         properties.put(PersistenceSettings.SCANNER, new OsgiScanner(persistenceBundle));
-        properties.put(SchemaToolingSettings.HBM2DDL_AUTO, "update");
         properties.put(JdbcSettings.JAKARTA_JTA_DATASOURCE, ds);
         properties.put(EnvironmentSettings.CLASSLOADERS, classLoaders);
-        WaterPersistenceUnitInfo waterPersistenceUnitInfo = new WaterPersistenceUnitInfo(getPersistenceUnitName(),type, "org.hibernate.jpa.HibernatePersistenceProvider", PersistenceUnitTransactionType.JTA, ds, null, null);
-        waterPersistenceUnitInfo.setClassLoader(entityClassLoader);
-        return new HibernatePersistenceProvider().createContainerEntityManagerFactory(waterPersistenceUnitInfo, properties);
-    }
-
-    private DataSource getDataSource() {
-        BundleContext ctx = FrameworkUtil.getBundle(this.getClass()).getBundleContext();
-        String filter = "(osgi.jndi.service.name=water)";
-        ServiceReference<DataSource> osgiDataSource = null;
+        //schema mode is defined by the persistence unit info (water.repository.jpa.schema.mode)
+        EntityManagerFactory entityManagerFactory;
         try {
-            Collection<ServiceReference<DataSource>> transactionControlServiceReferences = ctx.getServiceReferences(DataSource.class, filter);
-            //should not be more than one
-            if (!transactionControlServiceReferences.isEmpty()) {
-                Optional<ServiceReference<DataSource>> serviceReferenceOptional = transactionControlServiceReferences.stream().findFirst();
-                if (serviceReferenceOptional.isPresent())
-                    osgiDataSource = serviceReferenceOptional.get();
-            }
-        } catch (InvalidSyntaxException e) {
-            log.error(e.getMessage(), e);
+            entityManagerFactory = new HibernatePersistenceProvider().createContainerEntityManagerFactory(waterPersistenceUnitInfo, properties);
+        } catch (RuntimeException e) {
+            waterPersistenceUnitInfo.onEntityManagerFactoryFailed();
+            throw e;
         }
-        if (osgiDataSource == null)
-            throw new WaterRuntimeException("No transaction control found!");
+        waterPersistenceUnitInfo.onEntityManagerFactoryCreated();
+        return entityManagerFactory;
+    }
 
-        return ctx.getService(osgiDataSource);
+    private Bundle getPersistenceBundle() {
+        return FrameworkUtil.getBundle(this.type);
     }
 
     private <R> R manageTransaction(Transactional.TxType txType, Function<EntityManager, R> function) throws SystemException, InvalidTransactionException, NotSupportedException, HeuristicRollbackException, HeuristicMixedException, RollbackException {
-        jakarta.transaction.UserTransaction userTransaction = UserTransaction.userTransaction();
-        TransactionManager transactionManager = com.arjuna.ats.jta.TransactionManager.transactionManager();
-        Transaction suspendedTransaction = null;
-        if ((txType == Transactional.TxType.REQUIRED || txType == Transactional.TxType.REQUIRES_NEW || txType == Transactional.TxType.MANDATORY) && userTransaction.getStatus() == Status.STATUS_MARKED_ROLLBACK || userTransaction.getStatus() == Status.STATUS_ROLLEDBACK || userTransaction.getStatus() == Status.STATUS_ROLLING_BACK) {
+        jakarta.transaction.UserTransaction userTransaction = getUserTransaction();
+        TransactionManager transactionManager = getTransactionManager();
+        //status is read once and then tracked locally, since each read is a lookup of the thread transaction
+        int status = userTransaction.getStatus();
+        boolean restarted = false;
+        //only transactional calls restart a transaction which cannot be committed anymore
+        if ((txType == Transactional.TxType.REQUIRED || txType == Transactional.TxType.REQUIRES_NEW || txType == Transactional.TxType.MANDATORY)
+                && (status == Status.STATUS_MARKED_ROLLBACK || status == Status.STATUS_ROLLEDBACK || status == Status.STATUS_ROLLING_BACK)) {
             userTransaction.rollback();
             transactionManager.begin();
+            status = Status.STATUS_ACTIVE;
+            restarted = true;
         }
+        Transaction suspendedTransaction = null;
+        boolean owner = isTransactionOwner(txType, status, restarted);
         try {
-            suspendedTransaction = this.setupTransaction(userTransaction, txType, transactionManager);
-            return runTransaction(userTransaction, txType, function);
+            suspendedTransaction = this.setupTransaction(userTransaction, txType, transactionManager, status);
+            if (suspendedTransaction != null)
+                status = Status.STATUS_NO_TRANSACTION;
+            if (owner)
+                status = Status.STATUS_ACTIVE;
+            return runTransaction(userTransaction, owner, txType, function, status);
         } catch (Exception e) {
             if (userTransaction.getStatus() == Status.STATUS_ACTIVE) {
-                userTransaction.rollback();
+                if (owner)
+                    userTransaction.rollback();
+                else if (txType != Transactional.TxType.NOT_SUPPORTED && txType != Transactional.TxType.NEVER)
+                    userTransaction.setRollbackOnly();
             }
             throw e;
         } finally {
@@ -143,29 +184,45 @@ public abstract class OsgiBaseJpaRepository<T extends BaseEntity> extends BaseJp
         }
     }
 
+    /**
+     * Only the call which begins the transaction commits or rolls it back, nested calls join the outer one
+     * and mark it for rollback on failure, so units of work are committed once by the outermost call.
+     *
+     * @param txType    transaction type of the call
+     * @param status    transaction status before the call
+     * @param restarted true if a transaction which could not be committed has been replaced by a new one
+     * @return true if the call owns the transaction
+     */
+    private boolean isTransactionOwner(Transactional.TxType txType, int status, boolean restarted) {
+        if (txType == Transactional.TxType.REQUIRES_NEW)
+            return true;
+        return txType == Transactional.TxType.REQUIRED && (restarted || status != Status.STATUS_ACTIVE);
+    }
+
     /**
      * returns the suspended transaction if any
      *
      * @param userTransaction
      * @param txType
+     * @param status          current transaction status
      * @return
      */
-    private Transaction setupTransaction(jakarta.transaction.UserTransaction userTransaction, Transactional.TxType txType, TransactionManager transactionManager) throws SystemException, NotSupportedException {
+    private Transaction setupTransaction(jakarta.transaction.UserTransaction userTransaction, Transactional.TxType txType, TransactionManager transactionManager, int status) throws SystemException, NotSupportedException {
         Transaction suspendedTransaction = null;
         switch (txType) {
             case REQUIRED:
-                if (userTransaction.getStatus() != Status.STATUS_ACTIVE) {
+                if (status != Status.STATUS_ACTIVE) {
                     userTransaction.begin();
                 }
                 break;
             case REQUIRES_NEW:
-                if (userTransaction.getStatus() == Status.STATUS_ACTIVE) {
+                if (status == Status.STATUS_ACTIVE) {
                     suspendedTransaction = transactionManager.suspend();
                 }
                 userTransaction.begin();
                 break;
             case MANDATORY:
-                if (userTransaction.getStatus() != Status.STATUS_ACTIVE) {
+                if (status != Status.STATUS_ACTIVE) {
                     throw new IllegalStateException("No active transaction");
                 }
                 break;
@@ -173,12 +230,12 @@ public abstract class OsgiBaseJpaRepository<T extends BaseEntity> extends BaseJp
                 // No action required; if a transaction is active, it will be used
                 break;
             case NOT_SUPPORTED:
-                if (userTransaction.getStatus() == Status.STATUS_ACTIVE) {
+                if (status == Status.STATUS_ACTIVE) {
                     suspendedTransaction = transactionManager.suspend();
                 }
                 break;
             case NEVER:
-                if (userTransaction.getStatus() == Status.STATUS_ACTIVE) {
+                if (status == Status.STATUS_ACTIVE) {
                     throw new IllegalStateException("Transaction context exists");
                 }
                 break;
@@ -188,21 +245,71 @@ public abstract class OsgiBaseJpaRepository<T extends BaseEntity> extends BaseJp
         return suspendedTransaction;
     }
 
-    private <R> R runTransaction(jakarta.transaction.UserTransaction userTransaction, Transactional.TxType txType, Function<EntityManager, R> function) throws SystemException, HeuristicRollbackException, HeuristicMixedException, RollbackException {
-        if (userTransaction.getStatus() == Status.STATUS_ACTIVE && txType != Transactional.TxType.NOT_SUPPORTED && txType != Transactional.TxType.NEVER) {
-            getEntityManager().joinTransaction();
+    private <R> R runTransaction(jakarta.transaction.UserTransaction userTransaction, boolean owner, Transactional.TxType txType, Function<EntityManager, R> function, int status) throws SystemException, HeuristicRollbackException, HeuristicMixedException, RollbackException {
+        EntityManager entityManager = getEntityManager();
+        if (status == Status.STATUS_ACTIVE && txType != Transactional.TxType.NOT_SUPPORTED && txType != Transactional.TxType.NEVER) {
+            joinTransactionOnce(entityManager);
         }
-        R result = function.apply(getEntityManager());
-        if (userTransaction.getStatus() == Status.STATUS_ACTIVE &&
-                (txType == Transactional.TxType.REQUIRED || txType == Transactional.TxType.REQUIRES_NEW)) {
+        R result = function.apply(entityManager);
+        //status can be changed by the function (eg. marked for rollback), so it is read again only before committing
+        if (owner && userTransaction.getStatus() == Status.STATUS_ACTIVE) {
             userTransaction.commit();
         }
         return result;
     }
 
+    /**
+     * Joins the entity manager to the current transaction only once per transaction,
+     * using the transaction synchronization registry resources which live as long as the transaction.
+     *
+     * @param entityManager
+     */
+    private void joinTransactionOnce(EntityManager entityManager) {
+        TransactionSynchronizationRegistry registry = getTransactionSynchronizationRegistry();
+        if (registry.getResource(entityManager) == null) {
+            entityManager.joinTransaction();
+            registry.putResource(entityManager, Boolean.TRUE);
+        }
+    }
+
     @Override
     protected boolean isTransactionalSupported(EntityManager em) {
         return true;
     }
 
+    /**
+     * @return the user transaction bound to the calling thread
+     */
+    protected jakarta.transaction.UserTransaction getUserTransaction() {
+        return JtaHandles.USER_TRANSACTION;
+    }
+
+    /**
+     * @return the transaction manager used to suspend and resume transactions
+     */
+    protected TransactionManager getTransactionManager() {
+        return JtaHandles.TRANSACTION_MANAGER;
+    }
+
+    /**
+     * @return the synchronization registry holding the resources of the current transaction
+     */
+    protected TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+        return JtaHandles.SYNCHRONIZATION_REGISTRY;
+    }
+
+    /**
+     * Narayana handles are thread safe singletons bound to the transaction of the calling thread,
+     * so they are resolved once instead of on each operation.
+     * The synchronization registry is the one configured in the narayana jta environment, as used by the transaction manager.
+     */
+    private static class JtaHandles {
+        private static final jakarta.transaction.UserTransaction USER_TRANSACTION = UserTransaction.userTransaction();
+        private static final TransactionManager TRANSACTION_MANAGER = com.arjuna.ats.jta.TransactionManager.transactionManager();
+        private static final TransactionSynchronizationRegistry SYNCHRONIZATION_REGISTRY = jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry();
+
+        private JtaHandles() {
+        }
+    }
+
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.osgi;
+
+import it.water.core.api.repository.BaseRepository;
+import it.water.core.model.exceptions.WaterRuntimeException;
+import it.water.repository.jpa.BaseJpaRepositoryImpl;
+import it.water.repository.jpa.api.JpaRepository;
+import it.water.repository.jpa.api.WaterJpaRepository;
+import org.osgi.framework.*;
+
+/**
+ * @Author Aristide Cittadino
+ * In OSGi components (extensions and their repositories) can be registered or unregistered at any time.
+ * This listener invalidates the extension repositories cached by jpa repositories when a repository service is registered or unregistered.
+ * It is registered inside the jpa repository bundle context and removed when that bundle stops.
+ */
+public class OsgiComponentLifecycleListener implements ServiceListener {
+    public static final String REPOSITORY_SERVICES_FILTER = "(|(" + Constants.OBJECTCLASS + "=" + BaseRepository.class.getName() + ")("
+            + Constants.OBJECTCLASS + "=" + JpaRepository.class.getName() + ")(" + Constants.OBJECTCLASS + "=" + WaterJpaRepository.class.getName() + "))";
+    private static OsgiComponentLifecycleListener instance;
+
+    private final BundleContext ctx;
+    private final SynchronousBundleListener bundleListener;
+
+    private OsgiComponentLifecycleListener(BundleContext ctx) {
+        this.ctx = ctx;
+        this.bundleListener = event -> {
+            if (event.getType() == BundleEvent.STOPPING && event.getBundle().getBundleId() == ctx.getBundle().getBundleId())
+                unregister();
+        };
+    }
+
+    /**
+     * Registers the listener once inside the jpa repository bundle context
+     */
+    public static synchronized void register() {
+        if (instance == null) {
+            BundleContext ctx = FrameworkUtil.getBundle(OsgiComponentLifecycleListener.class).getBundleContext();
+            if (ctx == null)
+                throw new WaterRuntimeException("Jpa repository bundle is not active");
+            OsgiComponentLifecycleListener listener = new OsgiComponentLifecycleListener(ctx);
+            try {
+                ctx.addServiceListener(listener, REPOSITORY_SERVICES_FILTER);
+            } catch (InvalidSyntaxException e) {
+                throw new WaterRuntimeException(e.getMessage());
+            }
+            ctx.addBundleListener(listener.bundleListener);
+            instance = listener;
+            //registrations are notified by the service listener, so missing extensions can be cached
+            BaseJpaRepositoryImpl.setExtensionMissesCacheable(true);
+        }
+    }
+
+    /**
+     * Removes the listener, invoked when the jpa repository bundle stops
+     */
+    public static synchronized void unregister() {
+        if (instance == null)
+            return;
+        try {
+            instance.ctx.removeServiceListener(instance);
+            instance.ctx.removeBundleListener(instance.bundleListener);
+        } catch (IllegalStateException e) {
+            //bundle context is no longer valid, listeners are already removed by the framework
+        }
+        instance = null;
+        //repositories created after a restart must not use extension repositories of the stopped bundle
+        BaseJpaRepositoryImpl.setExtensionMissesCacheable(false);
+    }
+
+    @Override
+    public void serviceChanged(ServiceEvent event) {
+        if (event.getType() == ServiceEvent.REGISTERED || event.getType() == ServiceEvent.UNREGISTERING)
+            BaseJpaRepositoryImpl.invalidateExtensionRepositories();
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.osgi;
+
+import it.water.core.model.exceptions.WaterRuntimeException;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.osgi.framework.*;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * @Author Aristide Cittadino
+ * Registry of entity manager factories shared by all osgi repositories.
+ * Exactly one entity manager factory is created for each (bundle, persistence unit) pair.
+ * The water DataSource is obtained through a service tracker, so no service lookup is done while creating repositories.
+ * When the DataSource service changes or goes away, all factories are closed and lazily rebuilt on next access.
+ * The registry lives as long as the jpa repository bundle: when the bundle stops, the tracker is closed,
+ * all the factories are released and a new registry is created on the next start.
+ * Factories are created and invalidated under the same lock, so a factory built on a stale DataSource is never kept.
+ */
+public class OsgiEntityManagerFactoryRegistry {
+    private static final Logger log = LoggerFactory.getLogger(OsgiEntityManagerFactoryRegistry.class);
+    public static final String WATER_DATASOURCE_FILTER = "(&(" + Constants.OBJECTCLASS + "=javax.sql.DataSource)(osgi.jndi.service.name=water))";
+
+    private static OsgiEntityManagerFactoryRegistry instance;
+
+    private final Map<String, EntityManagerFactory> entityManagerFactories = new ConcurrentHashMap<>();
+    private final Map<String, EntityManager> entityManagers = new ConcurrentHashMap<>();
+    private final BundleContext ctx;
+    private final ServiceTracker<DataSource, DataSource> dataSourceTracker;
+    private final SynchronousBundleListener bundleListener;
+    private boolean closed;
+
+    /**
+     * @return the registry of the running jpa repository bundle
+     */
+    public static synchronized OsgiEntityManagerFactoryRegistry getInstance() {
+        if (instance == null) {
+            BundleContext ctx = FrameworkUtil.getBundle(OsgiEntityManagerFactoryRegistry.class).getBundleContext();
+            if (ctx == null)
+                throw new WaterRuntimeException("Jpa repository bundle is not active");
+            instance = new OsgiEntityManagerFactoryRegistry(ctx);
+        }
+        return instance;
+    }
+
+    private static synchronized void release(OsgiEntityManagerFactoryRegistry registry) {
+        if (instance == registry)
+            instance = null;
+    }
+
+    OsgiEntityManagerFactoryRegistry(BundleContext ctx) {
+        this.ctx = ctx;
+        try {
+            this.dataSourceTracker = new ServiceTracker<>(ctx, ctx.createFilter(WATER_DATASOURCE_FILTER), new DataSourceCustomizer(ctx));
+        } catch (InvalidSyntaxException e) {
+            throw new WaterRuntimeException(e.getMessage());
+        }
+        this.dataSourceTracker.open();
+        //factories hold bundle class loaders, so they are released when the owning bundle stops
+        this.bundleListener = event -> {
+            if (event.getType() != BundleEvent.STOPPING)
+                return;
+            if (event.getBundle().getBundleId() == ctx.getBundle().getBundleId())
+                close();
+            else
+                invalidate(event.getBundle());
+        };
+        ctx.addBundleListener(bundleListener);
+    }
+
+    /**
+     * @return the current water DataSource
+     */
+    public DataSource getDataSource() {
+        DataSource dataSource = dataSourceTracker.getService();
+        if (dataSource == null)
+            throw new WaterRuntimeException("No transaction control found!");
+        return dataSource;
+    }
+
+    /**
+     * Returns the shared entity manager factory for the given bundle and persistence unit, creating it if needed.
+     *
+     * @param bundle              bundle owning the entities
+     * @param persistenceUnitName persistence unit name
+     * @param factoryBuilder      creates the entity manager factory given the current DataSource
+     * @return
+     */
+    public EntityManagerFactory getEntityManagerFactory(Bundle bundle, String persistenceUnitName, Function<DataSource, EntityManagerFactory> factoryBuilder) {
+        String key = registryKey(bundle, persistenceUnitName);
+        EntityManagerFactory entityManagerFactory = entityManagerFactories.get(key);
+        if (entityManagerFactory != null)
+            return entityManagerFactory;
+        synchronized (this) {
+            checkNotClosed();
+            return entityManagerFactories.computeIfAbsent(key, k -> {
+                log.debug("Creating entity manager factory for {}", k);
+                return factoryBuilder.apply(getDataSource());
+            });
+        }
+    }
+
+    /**
+     * Returns the shared entity manager for the given bundle and persistence unit.
+     *
+     * @param bundle              bundle owning the entities
+     * @param persistenceUnitName persistence unit name
+     * @param factoryBuilder      creates the entity manager factory given the current DataSource
+     * @return
+     */
+    public EntityManager getEntityManager(Bundle bundle, String persistenceUnitName, Function<DataSource, EntityManagerFactory> factoryBuilder) {
+        String key = registryKey(bundle, persistenceUnitName);
+        EntityManager entityManager = entityManagers.get(key);
+        if (entityManager != null)
+            return entityManager;
+        synchronized (this) {
+            checkNotClosed();
+            return entityManagers.computeIfAbsent(key, k -> getEntityManagerFactory(bundle, persistenceUnitName, factoryBuilder).createEntityManager());
+        }
+    }
+
+    /**
+     * Closes and removes all the factories, they will be rebuilt on next access.
+     */
+    public synchronized void invalidateAll() {
+        entityManagerFactories.keySet().stream().toList().forEach(this::close);
+    }
+
+    /**
+     * Closes and removes the factories related to a specific bundle.
+     *
+     * @param bundle
+     */
+    public synchronized void invalidate(Bundle bundle) {
+        String prefix = bundle.getBundleId() + "/";
+        entityManagerFactories.keySet().stream().filter(key -> key.startsWith(prefix)).toList().forEach(this::close);
+    }
+
+    /**
+     * Releases the DataSource tracker and all the factories, invoked when the jpa repository bundle stops
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            ctx.removeBundleListener(bundleListener);
+        } catch (IllegalStateException e) {
+            //bundle context is no longer valid
+            log.debug("Bundle listener not removed: {}", e.getMessage());
+        }
+        dataSourceTracker.close();
+        invalidateAll();
+        release(this);
+    }
+
+    private void checkNotClosed() {
+        if (closed)
+            throw new WaterRuntimeException("Entity manager factory registry has been closed");
+    }
+
+    private void close(String key) {
+        EntityManager entityManager = entityManagers.remove(key);
+        EntityManagerFactory entityManagerFactory = entityManagerFactories.remove(key);
+        try {
+            if (entityManager != null && entityManager.isOpen())
+                entityManager.close();
+            if (entityManagerFactory != null && entityManagerFactory.isOpen())
+                entityManagerFactory.close();
+        } catch (Exception e) {
+            log.warn("Error while closing entity manager factory {}: {}", key, e.getMessage());
+        }
+    }
+
+    private static String registryKey(Bundle bundle, String persistenceUnitName) {
+        return bundle.getBundleId() + "/" + persistenceUnitName;
+    }
+
+    /**
+     * Rebuilds factories only when the DataSource service changes
+     */
+    private class DataSourceCustomizer implements ServiceTrackerCustomizer<DataSource, DataSource> {
+        private final BundleContext ctx;
+
+        private DataSourceCustomizer(BundleContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public DataSource addingService(ServiceReference<DataSource> reference) {
+            //a new DataSource may take precedence over the current one
+            if (!entityManagerFactories.isEmpty())
+                invalidateAll();
+            return ctx.getService(reference);
+        }
+
+        @Override
+        public void modifiedService(ServiceReference<DataSource> reference, DataSource service) {
+            log.info("Water DataSource modified, entity manager factories will be rebuilt");
+            invalidateAll();
+        }
+
+        @Override
+        public void removedService(ServiceReference<DataSource> reference, DataSource service) {
+            log.info("Water DataSource removed, entity manager factories will be rebuilt");
+            invalidateAll();
+            ctx.ungetService(reference);
+        }
+    }
+}
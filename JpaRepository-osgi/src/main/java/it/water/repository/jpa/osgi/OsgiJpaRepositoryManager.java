@@ -37,6 +37,8 @@ public class OsgiJpaRepositoryManager implements JpaRepositoryManager {
 
     @Override
     public <T extends BaseEntity> JpaRepository<T> createConcreteRepository(Class<T> entityType, String persistenceUnit) {
+        //keeping cached extension repositories aligned with osgi registrations
+        OsgiComponentLifecycleListener.register();
         OsgiBaseJpaRepository<T> osgiBaseJpaRepository = new OsgiBaseJpaRepository<T>(entityType, persistenceUnit) {};
         osgiBaseJpaRepository.setComponentRegistry(componentRegistry);
         return osgiBaseJpaRepository;
@@ -16,6 +16,7 @@
 
 package it.water.repository.jpa.osgi.hibernate;
 
+import it.water.repository.jpa.index.JpaClassIndex;
 import jakarta.persistence.PersistenceException;
 import org.hibernate.boot.archive.spi.ArchiveContext;
 import org.hibernate.boot.archive.spi.ArchiveDescriptor;
@@ -28,15 +29,24 @@ import org.osgi.framework.wiring.BundleWiring;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * @Author Aristide Cittadino
  * Take from the old hibernate-osgi project but simplfying it.
+ * When the bundle contains a jpa class index generated by JpaClassIndexProcessor only indexed classes are visited,
+ * otherwise all bundle resources are scanned.
  */
 public class OsgiArchiveDescriptor implements ArchiveDescriptor {
     private static final CoreMessageLogger LOG = CoreLogging.messageLogger(OsgiArchiveDescriptor.class);
 
+    private static final String ORM_XML = "META-INF/orm.xml";
+
     private final Bundle persistenceBundle;
     private final BundleWiring bundleWiring;
 
@@ -53,55 +63,104 @@ public class OsgiArchiveDescriptor implements ArchiveDescriptor {
 
     @Override
     public void visitArchive(ArchiveContext context) {
-        final Collection<String> resources = bundleWiring.listResources("/", "*", BundleWiring.LISTRESOURCES_RECURSE);
+        Collection<URL> indexUrls = findBundleIndexUrls(persistenceBundle);
+        Collection<String> resources;
+        if (!indexUrls.isEmpty()) {
+            resources = findIndexedResources(indexUrls);
+        } else {
+            LOG.debugf("No jpa class index found inside bundle %s, scanning all bundle resources", persistenceBundle.getSymbolicName());
+            resources = bundleWiring.listResources("/", "*", BundleWiring.LISTRESOURCES_RECURSE);
+        }
         for (final String resource : resources) {
             if (!resource.endsWith("/")) {
-                try {
-                    final InputStreamAccess inputStreamAccess = new InputStreamAccess() {
-                        @Override
-                        public String getStreamName() {
-                            return resource;
-                        }
-
-                        @Override
-                        public InputStream accessInputStream() {
-                            return openInputStream();
-                        }
-
-                        private InputStream openInputStream() {
-                            try {
-                                return persistenceBundle.getResource(resource).openStream();
-                            } catch (IOException e) {
-                                throw new PersistenceException(
-                                        "Unable to open an InputStream on the OSGi Bundle resource!",
-                                        e);
-                            }
-                        }
-
-                    };
-
-                    final ArchiveEntry entry = new ArchiveEntry() {
-                        @Override
-                        public String getName() {
-                            return resource;
-                        }
-
-                        @Override
-                        public String getNameWithinArchive() {
-                            return resource;
-                        }
-
-                        @Override
-                        public InputStreamAccess getStreamAccess() {
-                            return inputStreamAccess;
-                        }
-                    };
-
-                    context.obtainArchiveEntryHandler(entry).handleEntry(entry, context);
-                } catch (Exception e) {
-                    LOG.unableToLoadScannedClassOrResource(e);
-                }
+                visitResource(context, resource);
             }
         }
     }
+
+    /**
+     * Reads the class index generated at build time (atteo classindex format) for jpa annotations.
+     * Only classes listed in the index are handed to hibernate, avoiding a full walk of the bundle.
+     * Listed classes which are not contained in the bundle are skipped, since resources are loaded through the bundle
+     * class loader and a stale or shaded index would otherwise register classes owned by imported packages.
+     *
+     * @param indexUrls jpa class index files contained in the bundle
+     * @return resources related to indexed classes
+     */
+    private Collection<String> findIndexedResources(Collection<URL> indexUrls) {
+        Set<String> resources = new LinkedHashSet<>();
+        JpaClassIndex.readClassNames(indexUrls).forEach(className -> {
+            String resource = className.replace('.', '/') + ".class";
+            if (persistenceBundle.getEntry(resource) != null)
+                resources.add(resource);
+            else
+                LOG.debugf("Indexed class %s is not contained inside bundle %s, skipping it", className, persistenceBundle.getSymbolicName());
+        });
+        if (persistenceBundle.getEntry(ORM_XML) != null) {
+            resources.add(ORM_XML);
+        }
+        return resources;
+    }
+
+    /**
+     * @param bundle
+     * @return jpa class index files contained in the bundle itself
+     */
+    public static Collection<URL> findBundleIndexUrls(Bundle bundle) {
+        List<URL> indexUrls = new ArrayList<>();
+        for (String annotation : JpaClassIndex.INDEXED_ANNOTATIONS) {
+            URL indexUrl = bundle.getEntry(JpaClassIndex.ANNOTATION_INDEX_PATH + annotation);
+            if (indexUrl != null)
+                indexUrls.add(indexUrl);
+        }
+        return indexUrls;
+    }
+
+    private void visitResource(ArchiveContext context, final String resource) {
+        try {
+            final InputStreamAccess inputStreamAccess = new InputStreamAccess() {
+                @Override
+                public String getStreamName() {
+                    return resource;
+                }
+
+                @Override
+                public InputStream accessInputStream() {
+                    return openInputStream();
+                }
+
+                private InputStream openInputStream() {
+                    try {
+                        return persistenceBundle.getResource(resource).openStream();
+                    } catch (IOException e) {
+                        throw new PersistenceException(
+                                "Unable to open an InputStream on the OSGi Bundle resource!",
+                                e);
+                    }
+                }
+
+            };
+
+            final ArchiveEntry entry = new ArchiveEntry() {
+                @Override
+                public String getName() {
+                    return resource;
+                }
+
+                @Override
+                public String getNameWithinArchive() {
+                    return resource;
+                }
+
+                @Override
+                public InputStreamAccess getStreamAccess() {
+                    return inputStreamAccess;
+                }
+            };
+
+            context.obtainArchiveEntryHandler(entry).handleEntry(entry, context);
+        } catch (Exception e) {
+            LOG.unableToLoadScannedClassOrResource(e);
+        }
+    }
 }
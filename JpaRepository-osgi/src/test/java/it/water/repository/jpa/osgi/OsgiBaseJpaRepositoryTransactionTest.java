@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.osgi;
+
+import it.water.osgi.test.bundle.entity.TestEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.transaction.Status;
+import jakarta.transaction.TransactionManager;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import jakarta.transaction.Transactional;
+import jakarta.transaction.UserTransaction;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Transaction demarcation of OsgiBaseJpaRepository, with mocked jta handles so it runs outside the container
+ */
+public class OsgiBaseJpaRepositoryTransactionTest {
+    private UserTransaction userTransaction;
+    private TransactionManager transactionManager;
+    private TransactionSynchronizationRegistry synchronizationRegistry;
+    private EntityManager entityManager;
+    private OsgiBaseJpaRepository<TestEntity> repository;
+
+    @Before
+    public void setup() {
+        userTransaction = Mockito.mock(UserTransaction.class);
+        transactionManager = Mockito.mock(TransactionManager.class);
+        synchronizationRegistry = Mockito.mock(TransactionSynchronizationRegistry.class);
+        entityManager = Mockito.mock(EntityManager.class);
+        UserTransaction mockedUserTransaction = userTransaction;
+        TransactionManager mockedTransactionManager = transactionManager;
+        TransactionSynchronizationRegistry mockedSynchronizationRegistry = synchronizationRegistry;
+        EntityManager mockedEntityManager = entityManager;
+        repository = new OsgiBaseJpaRepository<>(TestEntity.class, "water-test-persistence-unit") {
+            @Override
+            public EntityManager getEntityManager() {
+                return mockedEntityManager;
+            }
+
+            @Override
+            protected UserTransaction getUserTransaction() {
+                return mockedUserTransaction;
+            }
+
+            @Override
+            protected TransactionManager getTransactionManager() {
+                return mockedTransactionManager;
+            }
+
+            @Override
+            protected TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+                return mockedSynchronizationRegistry;
+            }
+        };
+    }
+
+    @Test
+    public void ownerBeginsAndCommits() throws Exception {
+        Mockito.when(userTransaction.getStatus()).thenReturn(Status.STATUS_NO_TRANSACTION, Status.STATUS_ACTIVE);
+        Assert.assertEquals("done", repository.tx(Transactional.TxType.REQUIRED, em -> "done"));
+        Mockito.verify(userTransaction).begin();
+        Mockito.verify(entityManager).joinTransaction();
+        Mockito.verify(userTransaction).commit();
+    }
+
+    @Test
+    public void nestedCallJoinsWithoutCommitting() throws Exception {
+        Mockito.when(userTransaction.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        //entity manager already joined by the outer call
+        Mockito.when(synchronizationRegistry.getResource(entityManager)).thenReturn(Boolean.TRUE);
+        Assert.assertEquals("done", repository.tx(Transactional.TxType.REQUIRED, em -> "done"));
+        Mockito.verify(userTransaction, Mockito.never()).begin();
+        Mockito.verify(entityManager, Mockito.never()).joinTransaction();
+        Mockito.verify(userTransaction, Mockito.never()).commit();
+    }
+
+    @Test
+    public void nestedCallFailureMarksOuterTransactionForRollback() throws Exception {
+        Mockito.when(userTransaction.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        try {
+            repository.tx(Transactional.TxType.REQUIRED, em -> {
+                throw new IllegalStateException("failure");
+            });
+            Assert.fail("Failure must be propagated");
+        } catch (RuntimeException e) {
+            //expected
+        }
+        Mockito.verify(userTransaction).setRollbackOnly();
+        Mockito.verify(userTransaction, Mockito.never()).rollback();
+        Mockito.verify(userTransaction, Mockito.never()).commit();
+    }
+
+    @Test
+    public void requiredRestartsTransactionMarkedForRollback() throws Exception {
+        Mockito.when(userTransaction.getStatus()).thenReturn(Status.STATUS_MARKED_ROLLBACK, Status.STATUS_ACTIVE);
+        Assert.assertEquals("done", repository.tx(Transactional.TxType.REQUIRED, em -> "done"));
+        Mockito.verify(userTransaction).rollback();
+        Mockito.verify(transactionManager).begin();
+        Mockito.verify(userTransaction).commit();
+    }
+
+    @Test
+    public void supportsDoesNotRestartRolledBackTransaction() throws Exception {
+        for (int status : new int[]{Status.STATUS_MARKED_ROLLBACK, Status.STATUS_ROLLEDBACK, Status.STATUS_ROLLING_BACK}) {
+            Mockito.when(userTransaction.getStatus()).thenReturn(status);
+            Assert.assertEquals("read", repository.tx(Transactional.TxType.SUPPORTS, em -> "read"));
+        }
+        Mockito.verify(userTransaction, Mockito.never()).rollback();
+        Mockito.verify(transactionManager, Mockito.never()).begin();
+        Mockito.verify(userTransaction, Mockito.never()).begin();
+        Mockito.verify(userTransaction, Mockito.never()).commit();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.osgi;
+
+import it.water.core.model.exceptions.WaterRuntimeException;
+import jakarta.persistence.EntityManagerFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.osgi.framework.*;
+
+import javax.sql.DataSource;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Lifecycle of the shared entity manager factories, with a mocked bundle context so it runs outside the container
+ */
+public class OsgiEntityManagerFactoryRegistryTest {
+    private static final String PERSISTENCE_UNIT = "water-test-persistence-unit";
+
+    private BundleContext ctx;
+    private Bundle jpaBundle;
+    private Bundle entityBundle;
+    private Bundle otherEntityBundle;
+    private DataSource dataSource;
+    private ServiceReference<DataSource> dataSourceReference;
+    private ServiceListener serviceListener;
+    private BundleListener bundleListener;
+    private OsgiEntityManagerFactoryRegistry registry;
+    private AtomicInteger builtFactories;
+    private Function<DataSource, EntityManagerFactory> factoryBuilder;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        ctx = Mockito.mock(BundleContext.class);
+        jpaBundle = mockBundle(1);
+        entityBundle = mockBundle(2);
+        otherEntityBundle = mockBundle(3);
+        dataSource = Mockito.mock(DataSource.class);
+        dataSourceReference = Mockito.mock(ServiceReference.class);
+        Mockito.when(ctx.getBundle()).thenReturn(jpaBundle);
+        Mockito.when(ctx.createFilter(OsgiEntityManagerFactoryRegistry.WATER_DATASOURCE_FILTER)).thenReturn(Mockito.mock(Filter.class));
+        Mockito.when(ctx.getService(dataSourceReference)).thenReturn(dataSource);
+        registry = new OsgiEntityManagerFactoryRegistry(ctx);
+        ArgumentCaptor<ServiceListener> serviceListenerCaptor = ArgumentCaptor.forClass(ServiceListener.class);
+        Mockito.verify(ctx).addServiceListener(serviceListenerCaptor.capture(), Mockito.anyString());
+        serviceListener = serviceListenerCaptor.getValue();
+        ArgumentCaptor<BundleListener> bundleListenerCaptor = ArgumentCaptor.forClass(BundleListener.class);
+        Mockito.verify(ctx).addBundleListener(bundleListenerCaptor.capture());
+        bundleListener = bundleListenerCaptor.getValue();
+        builtFactories = new AtomicInteger();
+        factoryBuilder = ds -> {
+            Assert.assertSame(dataSource, ds);
+            builtFactories.incrementAndGet();
+            EntityManagerFactory entityManagerFactory = Mockito.mock(EntityManagerFactory.class);
+            Mockito.when(entityManagerFactory.isOpen()).thenReturn(true);
+            return entityManagerFactory;
+        };
+    }
+
+    @Test
+    public void factoryIsNotBuiltWithoutDataSource() {
+        try {
+            registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder);
+            Assert.fail("Factory should not be built without a DataSource");
+        } catch (WaterRuntimeException e) {
+            Assert.assertEquals(0, builtFactories.get());
+        }
+    }
+
+    @Test
+    public void factoryIsSharedPerBundleAndPersistenceUnit() {
+        registerDataSource();
+        EntityManagerFactory entityManagerFactory = registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder);
+        Assert.assertSame(entityManagerFactory, registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder));
+        Assert.assertEquals(1, builtFactories.get());
+        Assert.assertNotSame(entityManagerFactory, registry.getEntityManagerFactory(entityBundle, "other-persistence-unit", factoryBuilder));
+        Assert.assertNotSame(entityManagerFactory, registry.getEntityManagerFactory(otherEntityBundle, PERSISTENCE_UNIT, factoryBuilder));
+        Assert.assertEquals(3, builtFactories.get());
+    }
+
+    @Test
+    public void dataSourceRemovalReleasesFactories() {
+        registerDataSource();
+        EntityManagerFactory entityManagerFactory = registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder);
+        serviceListener.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, dataSourceReference));
+        Mockito.verify(entityManagerFactory).close();
+        Mockito.verify(ctx).ungetService(dataSourceReference);
+        try {
+            registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder);
+            Assert.fail("Factory should not be rebuilt once the DataSource is gone");
+        } catch (WaterRuntimeException e) {
+            Assert.assertEquals(1, builtFactories.get());
+        }
+        registerDataSource();
+        Assert.assertNotSame(entityManagerFactory, registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder));
+        Assert.assertEquals(2, builtFactories.get());
+    }
+
+    @Test
+    public void stoppingEntityBundleReleasesOnlyItsFactories() {
+        registerDataSource();
+        EntityManagerFactory entityManagerFactory = registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder);
+        EntityManagerFactory otherEntityManagerFactory = registry.getEntityManagerFactory(otherEntityBundle, PERSISTENCE_UNIT, factoryBuilder);
+        bundleListener.bundleChanged(new BundleEvent(BundleEvent.STOPPED, entityBundle));
+        Mockito.verify(entityManagerFactory, Mockito.never()).close();
+        bundleListener.bundleChanged(new BundleEvent(BundleEvent.STOPPING, entityBundle));
+        Mockito.verify(entityManagerFactory).close();
+        Mockito.verify(otherEntityManagerFactory, Mockito.never()).close();
+        Assert.assertSame(otherEntityManagerFactory, registry.getEntityManagerFactory(otherEntityBundle, PERSISTENCE_UNIT, factoryBuilder));
+        Assert.assertNotSame(entityManagerFactory, registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder));
+        Assert.assertEquals(3, builtFactories.get());
+    }
+
+    @Test
+    public void stoppingJpaBundleClosesRegistry() {
+        registerDataSource();
+        EntityManagerFactory entityManagerFactory = registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder);
+        EntityManagerFactory otherEntityManagerFactory = registry.getEntityManagerFactory(otherEntityBundle, PERSISTENCE_UNIT, factoryBuilder);
+        bundleListener.bundleChanged(new BundleEvent(BundleEvent.STOPPING, jpaBundle));
+        Mockito.verify(entityManagerFactory).close();
+        Mockito.verify(otherEntityManagerFactory).close();
+        Mockito.verify(ctx).removeBundleListener(bundleListener);
+        Mockito.verify(ctx).removeServiceListener(serviceListener);
+        try {
+            registry.getEntityManagerFactory(entityBundle, PERSISTENCE_UNIT, factoryBuilder);
+            Assert.fail("Closed registry should not build factories");
+        } catch (WaterRuntimeException e) {
+            Assert.assertEquals(2, builtFactories.get());
+        }
+        //closing twice is harmless
+        registry.close();
+        Mockito.verify(ctx).removeBundleListener(bundleListener);
+    }
+
+    private void registerDataSource() {
+        serviceListener.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, dataSourceReference));
+    }
+
+    private static Bundle mockBundle(long bundleId) {
+        Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getBundleId()).thenReturn(bundleId);
+        return bundle;
+    }
+}
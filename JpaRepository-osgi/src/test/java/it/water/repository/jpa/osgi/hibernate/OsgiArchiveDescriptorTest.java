@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.repository.jpa.osgi.hibernate;
+
+import it.water.repository.jpa.index.JpaClassIndex;
+import org.hibernate.boot.archive.spi.ArchiveContext;
+import org.hibernate.boot.archive.spi.ArchiveEntry;
+import org.hibernate.boot.archive.spi.ArchiveEntryHandler;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWiring;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index driven scanning of OsgiArchiveDescriptor, with a mocked bundle so it runs outside the container
+ */
+public class OsgiArchiveDescriptorTest {
+    private static final String ENTITY_INDEX = JpaClassIndex.ANNOTATION_INDEX_PATH + "jakarta.persistence.Entity";
+    private static final String BUNDLE_ENTITY = "it/water/test/BundleEntity.class";
+    private static final String IMPORTED_ENTITY = "it/water/imported/ImportedEntity.class";
+
+    private Bundle bundle;
+    private BundleWiring bundleWiring;
+    private ArchiveContext archiveContext;
+    private List<String> visitedResources;
+
+    @Before
+    public void setup() {
+        bundle = Mockito.mock(Bundle.class);
+        bundleWiring = Mockito.mock(BundleWiring.class);
+        Mockito.when(bundle.adapt(BundleWiring.class)).thenReturn(bundleWiring);
+        Mockito.when(bundle.getSymbolicName()).thenReturn("it.water.test");
+        visitedResources = new ArrayList<>();
+        ArchiveEntryHandler entryHandler = Mockito.mock(ArchiveEntryHandler.class);
+        Mockito.doAnswer(invocation -> visitedResources.add(((ArchiveEntry) invocation.getArgument(0)).getNameWithinArchive()))
+                .when(entryHandler).handleEntry(Mockito.any(ArchiveEntry.class), Mockito.any(ArchiveContext.class));
+        archiveContext = Mockito.mock(ArchiveContext.class);
+        Mockito.when(archiveContext.obtainArchiveEntryHandler(Mockito.any(ArchiveEntry.class))).thenReturn(entryHandler);
+    }
+
+    @Test
+    public void indexedClassesOutsideTheBundleAreSkipped() throws IOException {
+        URL indexUrl = writeIndex("it.water.test.BundleEntity", "it.water.imported.ImportedEntity");
+        Mockito.when(bundle.getEntry(ENTITY_INDEX)).thenReturn(indexUrl);
+        Mockito.when(bundle.getEntry(BUNDLE_ENTITY)).thenReturn(indexUrl);
+        new OsgiArchiveDescriptor(bundle).visitArchive(archiveContext);
+        Assert.assertEquals(List.of(BUNDLE_ENTITY), visitedResources);
+        Mockito.verify(bundleWiring, Mockito.never()).listResources(Mockito.anyString(), Mockito.anyString(), Mockito.anyInt());
+    }
+
+    @Test
+    public void indexWithoutBundleClassesDoesNotScanTheBundle() throws IOException {
+        URL indexUrl = writeIndex("it.water.imported.ImportedEntity");
+        Mockito.when(bundle.getEntry(ENTITY_INDEX)).thenReturn(indexUrl);
+        new OsgiArchiveDescriptor(bundle).visitArchive(archiveContext);
+        Assert.assertTrue(visitedResources.isEmpty());
+        Mockito.verify(bundleWiring, Mockito.never()).listResources(Mockito.anyString(), Mockito.anyString(), Mockito.anyInt());
+    }
+
+    @Test
+    public void bundleWithoutIndexIsScanned() {
+        Mockito.when(bundleWiring.listResources("/", "*", BundleWiring.LISTRESOURCES_RECURSE)).thenReturn(List.of("it/water/test/", BUNDLE_ENTITY, IMPORTED_ENTITY));
+        new OsgiArchiveDescriptor(bundle).visitArchive(archiveContext);
+        Assert.assertEquals(List.of(BUNDLE_ENTITY, IMPORTED_ENTITY), visitedResources);
+    }
+
+    private static URL writeIndex(String... classNames) throws IOException {
+        Path index = Files.createTempFile("jpa-class-index", ".txt");
+        index.toFile().deleteOnExit();
+        Files.write(index, List.of(classNames), StandardCharsets.UTF_8);
+        return index.toUri().toURL();
+    }
+}